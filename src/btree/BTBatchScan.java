@@ -0,0 +1,175 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTBatchScan returns the records of a key range of a tree with integer keys
+ * many at a time, into arrays the caller provides and reuses: next_batch fills
+ * an int[] with the keys and a long[] with the rids, each packed into a long
+ * by pack(). It is created by BTreeFile.new_batch_scan.
+ *
+ * A batch never goes beyond the current leaf page. The records of a BTLeafPage
+ * are read from the slot directory and the record bytes of the pinned frame,
+ * those of packed and posting list pages from their decoded block, so no
+ * KeyDataEntry, key or RID is allocated per record. Other leaf pages are read
+ * through getCurrent. One leaf page is pinned at a time, until the end of the
+ * range or DestroyBTreeFileScan().
+ */
+public class BTBatchScan implements GlobalConst {
+
+	BTreeFile bfile;
+	BTLeafPage leafPage; // leaf page containing the next record, null at the end
+	RID curRid; // position in leafPage, for getCurrent
+	int slot; // the next record of leafPage
+	boolean bounded; // false if there is no upper bound
+	int hikey; // largest key the scan returns
+
+	/**
+	 * fill keys and rids with the next records of the range, at most as many as
+	 * the shorter of the arrays holds and never more than the rest of the current
+	 * leaf page.
+	 *
+	 * @param keys the keys of the records. Output parameter.
+	 * @param rids the rids of the records, packed by pack(). Output parameter.
+	 * @return the number of records, 0 at the end of the range
+	 * @exception ScanIteratorException iterator error
+	 */
+	public int next_batch(int[] keys, long[] rids) throws ScanIteratorException {
+		int max = Math.min(keys.length, rids.length);
+		try {
+			while (leafPage != null && max > 0) {
+				int n = copy(keys, rids, max);
+				if (n > 0)
+					return n;
+				if (leafPage == null)
+					return 0;
+
+				// end of this page, have to go right
+				PageId nextpage = leafPage.getNextPage();
+				unpin();
+				if (nextpage.pid != INVALID_PAGE) {
+					leafPage = bfile.openLeaf(bfile.pinPage(nextpage));
+					slot = 0;
+				}
+			}
+			return 0;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * @param pageNo the page number of a rid. Input parameter.
+	 * @param slotNo the slot number of a rid. Input parameter.
+	 * @return the rid packed into a long, the page number in the high half
+	 */
+	public static long pack(int pageNo, int slotNo) {
+		return ((long) pageNo << 32) | (slotNo & 0xffffffffL);
+	}
+
+	/**
+	 * @param rid a rid packed by pack(). Input parameter.
+	 * @return its page number
+	 */
+	public static int pageNo(long rid) {
+		return (int) (rid >>> 32);
+	}
+
+	/**
+	 * @param rid a rid packed by pack(). Input parameter.
+	 * @return its slot number
+	 */
+	public static int slotNo(long rid) {
+		return (int) rid;
+	}
+
+	/**
+	 * destructor. unpin the current leaf page if the end of the range was not
+	 * reached.
+	 *
+	 * @exception IOException                 error from the lower layer
+	 * @exception InvalidFrameNumberException error from the lower layer
+	 * @exception ReplacerException           error from the lower layer
+	 * @exception PageUnpinnedException       error from the lower layer
+	 * @exception HashEntryNotFoundException  error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException, InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		unpin();
+	}
+
+	/*
+	 * copies up to max records of the current leaf page from slot on, and
+	 * unpins the page if a record past the upper bound was found.
+	 */
+	private int copy(int[] keys, long[] rids, int max) throws IOException, IteratorException,
+			InvalidFrameNumberException, ReplacerException, PageUnpinnedException, HashEntryNotFoundException {
+		int n;
+		if (leafPage instanceof BTPackedLeafPage)
+			n = ((BTPackedLeafPage) leafPage).copyRecords(slot, keys, rids, max);
+		else if (leafPage instanceof BTPostingLeafPage)
+			n = ((BTPostingLeafPage) leafPage).copyRecords(slot, keys, rids, max);
+		else if (leafPage.getClass() == BTLeafPage.class)
+			n = copySlots(keys, rids, max);
+		else
+			n = copyEntries(keys, rids, max);
+		slot += n;
+
+		if (bounded) {
+			for (int i = 0; i < n; i++) {
+				// the test of BT.keyCompare
+				if (keys[i] - hikey > 0) {
+					unpin();
+					return i;
+				}
+			}
+		}
+		return n;
+	}
+
+	/*
+	 * a BTLeafPage record is the key, the slot number and the page number of
+	 * the rid.
+	 */
+	private int copySlots(int[] keys, long[] rids, int max) throws IOException {
+		byte[] data = leafPage.getHFpageArray();
+		int slots = BTPageViews.getShort(data, HFPage.SLOT_CNT);
+		int n = 0;
+		for (int i = slot; i < slots && n < max; i++) {
+			int entry = HFPage.DPFIXED + i * HFPage.SIZE_OF_SLOT;
+			int length = BTPageViews.getShort(data, entry);
+			int offset = BTPageViews.getShort(data, entry + 2);
+			keys[n] = BTPageViews.getInt(data, offset);
+			rids[n] = pack(BTPageViews.getInt(data, offset + length - 4), BTPageViews.getInt(data, offset + length - 8));
+			n++;
+		}
+		return n;
+	}
+
+	private int copyEntries(int[] keys, long[] rids, int max) throws IOException, IteratorException {
+		int n = 0;
+		curRid.pageNo = leafPage.getCurPage();
+		for (curRid.slotNo = slot; n < max; curRid.slotNo = slot + n) {
+			KeyDataEntry entry = leafPage.getCurrent(curRid);
+			if (entry == null)
+				break;
+			RID rid = ((LeafData) entry.data).getData();
+			keys[n] = ((IntegerKey) entry.key).getKey().intValue();
+			rids[n] = pack(rid.pageNo.pid, rid.slotNo);
+			n++;
+		}
+		return n;
+	}
+
+	private void unpin() throws IOException, InvalidFrameNumberException, ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException {
+		if (leafPage != null)
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+		leafPage = null;
+	}
+}
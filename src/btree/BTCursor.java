@@ -0,0 +1,215 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTCursor is a bidirectional scan over a range of a B+ tree. It is created by
+ * BTreeFile.new_cursor or BTreeFile.new_descending_scan.
+ *
+ * The cursor always sits between two records of the leaf chain: get_next()
+ * returns the record behind it and moves forward, get_prev() returns the record
+ * in front of it and moves backward, so the direction can be changed at any
+ * time (calling get_prev() right after get_next() returns the same record
+ * again). Forward moves follow the nextPage links of BTLeafPage, backward moves
+ * the prevPage links. The current leaf page stays pinned until
+ * DestroyBTreeFileScan() is called, even when one end of the range is reached,
+ * so that the cursor can turn around there.
+ */
+public class BTCursor extends IndexFileScan implements GlobalConst {
+
+	BTreeFile bfile;
+	String treeFilename; // B+ tree we're scanning
+	BTLeafPage leafPage; // leaf page containing current record
+	RID curRid; // position of the cursor, reused for page iteration
+	int slot; // the cursor is in front of this slot of leafPage
+	int lastSlot; // slot of the record returned last, -1 if none
+	boolean dirty; // leafPage was changed by delete_current
+	KeyClass lokey; // smallest key the cursor returns, null for none
+	KeyClass hikey; // largest key the cursor returns, null for none
+	int keyType;
+	int maxKeysize;
+
+	/**
+	 * Iterate once (during a scan), moving forward.
+	 *
+	 * @return null if there is no more record in the range; otherwise, the record
+	 *         behind the cursor.
+	 * @exception ScanIteratorException iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+
+		KeyDataEntry entry;
+		PageId nextpage;
+
+		try {
+			if (leafPage == null)
+				return null;
+
+			entry = entryAt(slot);
+			while (entry == null) {
+				// end of this page, have to go right
+				nextpage = leafPage.getNextPage();
+				if (nextpage.pid == INVALID_PAGE)
+					return null;
+
+				moveTo(nextpage);
+				slot = 0;
+				entry = entryAt(slot);
+			}
+
+			if (hikey != null && BT.keyCompare(entry.key, hikey) > 0) {
+				// went past right end of scan
+				return null;
+			}
+
+			lastSlot = slot;
+			slot++;
+			return entry;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Iterate once (during a scan), moving backward.
+	 *
+	 * @return null if there is no more record in the range; otherwise, the record
+	 *         in front of the cursor.
+	 * @exception ScanIteratorException iterator error
+	 */
+	public KeyDataEntry get_prev() throws ScanIteratorException {
+
+		KeyDataEntry entry;
+		PageId prevpage;
+
+		try {
+			if (leafPage == null)
+				return null;
+
+			while (slot == 0) {
+				// start of this page, have to go left
+				prevpage = leafPage.getPrevPage();
+				if (prevpage.pid == INVALID_PAGE)
+					return null;
+
+				moveTo(prevpage);
+				slot = leafPage.getSlotCnt();
+			}
+			entry = entryAt(slot - 1);
+
+			if (lokey != null && BT.keyCompare(entry.key, lokey) < 0) {
+				// went past left end of scan
+				return null;
+			}
+
+			slot--;
+			lastSlot = slot;
+			return entry;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Delete the record returned last by get_next() or get_prev().
+	 *
+	 * @exception ScanDeleteException delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+
+		if (leafPage == null || lastSlot < 0)
+			throw new ScanDeleteException(null, "No Record to delete!");
+		if (bfile.hasSnapshots()) {
+			// the leaf page may still be read by a snapshot
+			throw new ScanDeleteException(null, "snapshots are open, use BTreeFile.Delete");
+		}
+
+		try {
+			KeyDataEntry entry = entryAt(lastSlot);
+			leafPage.deleteSortedRecord(new RID(leafPage.getCurPage(), lastSlot));
+			bfile.recordDeleted(entry.key, leafPage.getCurPage());
+			// the slot directory is compacted, records behind it move down by one
+			if (lastSlot < slot)
+				slot--;
+			lastSlot = -1;
+			dirty = true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "");
+		}
+	}
+
+	/**
+	 * The value of the record returned last by get_next() or get_prev(), on a
+	 * tree created with IndexOption.VALUES.
+	 *
+	 * @return the value
+	 * @exception ScanIteratorException there is no such record, or the tree holds
+	 *                                  no values
+	 */
+	public byte[] get_value() throws ScanIteratorException {
+		if (leafPage == null || lastSlot < 0 || !(leafPage instanceof BTValueLeafPage))
+			throw new ScanIteratorException(null, "no value to return");
+
+		try {
+			return ((BTValueLeafPage) leafPage).getValue(new RID(leafPage.getCurPage(), lastSlot));
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return maxKeysize;
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do some
+	 * clearing work.
+	 *
+	 * @exception IOException                 error from the lower layer
+	 * @exception InvalidFrameNumberException error from the lower layer
+	 * @exception ReplacerException           error from the lower layer
+	 * @exception PageUnpinnedException       error from the lower layer
+	 * @exception HashEntryNotFoundException  error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException, InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null) {
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), dirty);
+		}
+		leafPage = null;
+	}
+
+	/*
+	 * returns the record in slot i of the current leaf page, or null if the page
+	 * has no such slot.
+	 */
+	private KeyDataEntry entryAt(int i) throws IteratorException {
+		if (i < 0)
+			return null;
+		curRid.slotNo = i;
+		return leafPage.getCurrent(curRid);
+	}
+
+	/*
+	 * unpin the current leaf page and pin its neighbour `pageno' instead.
+	 */
+	private void moveTo(PageId pageno) throws IOException, ConstructPageException, PinPageException,
+			InvalidFrameNumberException, ReplacerException, PageUnpinnedException, HashEntryNotFoundException {
+		SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), dirty);
+		dirty = false;
+		lastSlot = -1;
+		leafPage = bfile.openLeaf(bfile.pinPage(pageno));
+	}
+}
@@ -0,0 +1,145 @@
+package btree;
+
+import java.util.*;
+
+/**
+ * BTHashIndex remembers where the hot keys of a tree created with
+ * IndexOption.ADAPTIVE_HASH are, so that lookup() can go to their leaf page
+ * right away instead of descending from the root.
+ *
+ * A key becomes hot when it is looked up HOT times while it is among the last
+ * CAPACITY keys looked up; from then on its leaf page and slot are kept, for
+ * at most CAPACITY keys, and the least recently used is dropped first. The
+ * positions are kept in memory only. A position is dropped when its leaf page,
+ * or the leaf page before it, is written or freed, so that a split or a delete
+ * never sends a lookup to the wrong slot; lookup() still checks the key it
+ * finds there.
+ */
+class BTHashIndex {
+
+	/** the number of keys kept, and of keys counted on the way to being hot */
+	static final int CAPACITY = 4096;
+
+	/** lookups of a key before its position is kept */
+	static final int HOT = 2;
+
+	// key value -> {leaf page, slot, leaf page before it}
+	private LinkedHashMap<Object, int[]> positions = new LinkedHashMap<Object, int[]>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Object, int[]> eldest) {
+			if (size() <= CAPACITY)
+				return false;
+			unlist(eldest.getKey(), eldest.getValue());
+			return true;
+		}
+	};
+
+	// leaf page -> the keys whose position depends on it
+	private Map<Integer, Set<Object>> byLeaf = new HashMap<Integer, Set<Object>>();
+
+	// key value -> lookups so far, for keys that are not hot yet
+	private LinkedHashMap<Object, Integer> seen = new LinkedHashMap<Object, Integer>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Object, Integer> eldest) {
+			return size() > CAPACITY;
+		}
+	};
+
+	/*
+	 * the {leaf page, slot} kept for key, or null.
+	 */
+	int[] get(KeyClass key) {
+		return positions.get(keyValue(key));
+	}
+
+	/*
+	 * counts a lookup of key that went down the tree. Returns true if the key is
+	 * hot now and its position should be kept.
+	 */
+	boolean hit(KeyClass key) {
+		Object value = keyValue(key);
+		Integer count = seen.get(value);
+		int n = count == null ? 1 : count + 1;
+		if (n < HOT) {
+			seen.put(value, n);
+			return false;
+		}
+		seen.remove(value);
+		return true;
+	}
+
+	/*
+	 * keeps slot of leaf page leaf as the position of key; prev is the leaf page
+	 * before it, INVALID_PAGE for none.
+	 */
+	void put(KeyClass key, int leaf, int slot, int prev) {
+		Object value = keyValue(key);
+		remove(value);
+		int[] position = new int[] { leaf, slot, prev };
+		positions.put(value, position);
+		list(value, leaf);
+		list(value, prev);
+	}
+
+	/*
+	 * drops the position of key.
+	 */
+	void remove(KeyClass key) {
+		remove(keyValue(key));
+	}
+
+	/*
+	 * drops the positions that depend on page pageno, which was written or
+	 * freed.
+	 */
+	void pageChanged(int pageno) {
+		Set<Object> values = byLeaf.remove(pageno);
+		if (values == null)
+			return;
+		for (Object value : values) {
+			int[] position = positions.remove(value);
+			if (position != null)
+				unlist(value, position);
+		}
+	}
+
+	/*
+	 * drops all positions.
+	 */
+	void clear() {
+		positions.clear();
+		byLeaf.clear();
+		seen.clear();
+	}
+
+	private void remove(Object value) {
+		int[] position = positions.remove(value);
+		if (position != null)
+			unlist(value, position);
+	}
+
+	private void list(Object value, int pageno) {
+		Set<Object> values = byLeaf.get(pageno);
+		if (values == null) {
+			values = new HashSet<Object>();
+			byLeaf.put(pageno, values);
+		}
+		values.add(value);
+	}
+
+	private void unlist(Object value, int[] position) {
+		unlist(value, position[0]);
+		unlist(value, position[2]);
+	}
+
+	private void unlist(Object value, int pageno) {
+		Set<Object> values = byLeaf.get(pageno);
+		if (values == null)
+			return;
+		values.remove(value);
+		if (values.isEmpty())
+			byLeaf.remove(pageno);
+	}
+
+	private static Object keyValue(KeyClass key) {
+		return key instanceof IntegerKey ? (Object) ((IntegerKey) key).getKey() : ((StringKey) key).getKey();
+	}
+}
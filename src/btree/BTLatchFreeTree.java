@@ -0,0 +1,650 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTLatchFreeTree is an in-memory write front for a B+ tree that many threads
+ * can change at the same time without taking a latch, in the style of a
+ * Bw-tree.
+ *
+ * The records live in logical pages. A mapping table maps the logical page id
+ * to the current state of the page: a base page with the records in key order,
+ * with delta records on top of it. An insert or delete puts a delta record in
+ * front of the state with a compare-and-set on its slot of the mapping table,
+ * and starts over if another thread got there first. Once a chain holds
+ * CONSOLIDATE_AT delta records it is consolidated into a new base page the same
+ * way.
+ *
+ * A page that grows past what fits into a BTLeafPage of the tree is split in
+ * two phases. The upper half is put on a new logical page, and a split delta
+ * that points there is put on the old page; from then on the records are
+ * reachable through the split delta. The separator is then added to the index
+ * level, a sorted array of separators that is copied on every change and
+ * replaced with a compare-and-set. A thread that comes across a split whose
+ * separator is not in the index yet adds it itself. Pages are never merged.
+ *
+ * The tree is loaded from a BTreeFile when it is created. The changes made
+ * since are kept with every page, and flush() writes them into the BTreeFile
+ * with insert and Delete, where they end up in the usual page layout. Scans
+ * see every page as it is when they get there, not the whole tree at one point
+ * in time.
+ */
+public class BTLatchFreeTree implements GlobalConst {
+
+	/** a chain is consolidated when it has this many delta records */
+	public static final int CONSOLIDATE_AT = 8;
+
+	private static final int INSERT = 0;
+	private static final int DELETE = 1;
+
+	// the mapping table is a list of chunks that are added as it grows
+	private static final int CHUNK = 1024;
+
+	private BTreeFile bfile;
+	private int keyType;
+	private int maxRecords; // records of a page before it is split
+
+	private AtomicReferenceArray<AtomicReferenceArray<Node>> table = new AtomicReferenceArray<AtomicReferenceArray<Node>>(
+			CHUNK);
+	private AtomicInteger nextPid = new AtomicInteger();
+	private ConcurrentLinkedQueue<Integer> freePids = new ConcurrentLinkedQueue<Integer>();
+	private AtomicReference<Index> index = new AtomicReference<Index>();
+
+	/*
+	 * a state of a logical page: a base page, or a delta record on top of an older
+	 * state.
+	 */
+	private static abstract class Node {
+		final Node next; // older state, null for a base page
+		final int length; // number of delta records down to the base page
+		final int size; // about the number of records
+
+		Node(Node next, int size) {
+			this.next = next;
+			this.length = next == null ? 0 : next.length + 1;
+			this.size = size;
+		}
+	}
+
+	/*
+	 * the records of a page in (key, rid) order, and the changes among them that
+	 * are not flushed yet, oldest first.
+	 */
+	private static final class Base extends Node {
+		final KeyDataEntry[] records;
+		final Change[] pending;
+		final KeyClass high; // first key of the right neighbour, null for none
+		final int right; // the right neighbour, -1 for none
+
+		Base(KeyDataEntry[] records, Change[] pending, KeyClass high, int right) {
+			super(null, records.length);
+			this.records = records;
+			this.pending = pending;
+			this.high = high;
+			this.right = right;
+		}
+	}
+
+	/*
+	 * an insert or a delete of one record.
+	 */
+	private static final class Change extends Node {
+		final int op;
+		final KeyDataEntry entry;
+
+		Change(int op, KeyDataEntry entry, Node next) {
+			super(next, next == null ? 0 : next.size + (op == INSERT ? 1 : -1));
+			this.op = op;
+			this.entry = entry;
+		}
+	}
+
+	/*
+	 * the records from key sep on have moved to page right.
+	 */
+	private static final class Split extends Node {
+		final KeyClass sep;
+		final int right;
+
+		Split(KeyClass sep, int right, Node next) {
+			super(next, next.size);
+			this.sep = sep;
+			this.right = right;
+		}
+	}
+
+	/*
+	 * the index level: page ids[i] holds the keys from seps[i - 1] up to seps[i].
+	 * Pages that are not in it yet are found through their left neighbour.
+	 */
+	private static final class Index {
+		final KeyClass[] seps;
+		final int[] ids;
+
+		Index(KeyClass[] seps, int[] ids) {
+			this.seps = seps;
+			this.ids = ids;
+		}
+	}
+
+	/*
+	 * a page consolidated from a chain.
+	 */
+	private static final class View {
+		List<KeyDataEntry> records;
+		List<Change> pending;
+		KeyClass high;
+		int right;
+	}
+
+	/**
+	 * load a tree into memory.
+	 *
+	 * @param bfile the tree. Input parameter.
+	 * @exception IOException           error from the lower layer
+	 * @exception KeyNotMatchException  key is not integer key nor string key
+	 * @exception ScanIteratorException error when read the tree
+	 */
+	public BTLatchFreeTree(BTreeFile bfile) throws IOException, KeyNotMatchException, ScanIteratorException {
+		this.bfile = bfile;
+		this.keyType = bfile.getHeaderPage().get_keyType();
+		int keysize = bfile.getHeaderPage().get_maxKeySize();
+		this.maxRecords = (MAX_SPACE - HFPage.DPFIXED) / (keysize + 8 + HFPage.SIZE_OF_SLOT);
+
+		List<KeyDataEntry> all = new ArrayList<KeyDataEntry>();
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				BTCursor scan = bfile.new_cursor(null, null);
+				for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next())
+					all.add(entry);
+				scan.DestroyBTreeFileScan();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+
+		// half full pages, cut where the key changes
+		List<Integer> starts = new ArrayList<Integer>();
+		starts.add(0);
+		int start = 0;
+		for (int i = 1; i < all.size(); i++) {
+			if (i - start >= maxRecords / 2 && BT.keyCompare(all.get(i).key, all.get(i - 1).key) != 0) {
+				starts.add(i);
+				start = i;
+			}
+		}
+		starts.add(all.size());
+
+		int pages = starts.size() - 1;
+		KeyClass[] seps = new KeyClass[pages - 1];
+		int[] ids = new int[pages];
+		for (int p = 0; p < pages; p++) {
+			ids[p] = allocate();
+			if (p > 0)
+				seps[p - 1] = all.get(starts.get(p)).key;
+		}
+		for (int p = 0; p < pages; p++) {
+			KeyDataEntry[] records = all.subList(starts.get(p), starts.get(p + 1)).toArray(new KeyDataEntry[0]);
+			slot(ids[p]).set(ids[p] % CHUNK, new Base(records, new Change[0], p + 1 < pages ? seps[p] : null,
+					p + 1 < pages ? ids[p + 1] : -1));
+		}
+		index.set(new Index(seps, ids));
+	}
+
+	/**
+	 * insert a record.
+	 *
+	 * @param key the key of the record. Input parameter.
+	 * @param rid the rid of the record. Input parameter.
+	 * @exception KeyNotMatchException key is not of the type of the tree
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyNotMatchException {
+		checkKey(key);
+		KeyDataEntry entry = new KeyDataEntry(key, rid);
+		while (true) {
+			int pid = locate(key);
+			Node head = get(pid);
+			if (!covers(head, key))
+				continue;
+
+			Change delta = new Change(INSERT, entry, head);
+			if (cas(pid, head, delta)) {
+				changed(pid, delta);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * delete a record.
+	 *
+	 * @param key the key of the record. Input parameter.
+	 * @param rid the rid of the record. Input parameter.
+	 * @return true if the record was found and deleted
+	 * @exception KeyNotMatchException key is not of the type of the tree
+	 */
+	public boolean delete(KeyClass key, RID rid) throws KeyNotMatchException {
+		checkKey(key);
+		KeyDataEntry entry = new KeyDataEntry(key, rid);
+		while (true) {
+			int pid = locate(key);
+			Node head = get(pid);
+			if (!covers(head, key))
+				continue;
+			if (!contains(head, entry))
+				return false;
+
+			Change delta = new Change(DELETE, entry, head);
+			if (cas(pid, head, delta)) {
+				changed(pid, delta);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * look up the first record with the given key.
+	 *
+	 * @param key the key to look for. Input parameter.
+	 * @return the first record with this key, or null if there is none
+	 * @exception KeyNotMatchException key is not of the type of the tree
+	 */
+	public KeyDataEntry lookup(KeyClass key) throws KeyNotMatchException {
+		checkKey(key);
+		while (true) {
+			int pid = locate(key);
+			Node head = get(pid);
+			if (!covers(head, key))
+				continue;
+
+			List<KeyDataEntry> records = view(head).records;
+			int pos = lowerBound(records, key);
+			if (pos < records.size() && BT.keyCompare(records.get(pos).key, key) == 0)
+				return records.get(pos);
+			return null;
+		}
+	}
+
+	/**
+	 * read the records of a key range.
+	 *
+	 * @param lo_key the smallest key of the range, null for none. Input
+	 *               parameter.
+	 * @param hi_key the largest key of the range, null for none. Input parameter.
+	 * @return the records in key order
+	 * @exception KeyNotMatchException key is not of the type of the tree
+	 */
+	public List<KeyDataEntry> scan(KeyClass lo_key, KeyClass hi_key) throws KeyNotMatchException {
+		List<KeyDataEntry> result = new ArrayList<KeyDataEntry>();
+		int pid = lo_key == null ? index.get().ids[0] : locate(lo_key);
+		while (pid != -1) {
+			View view = view(get(pid));
+			int pos = lo_key == null ? 0 : lowerBound(view.records, lo_key);
+			for (; pos < view.records.size(); pos++) {
+				KeyDataEntry entry = view.records.get(pos);
+				if (hi_key != null && BT.keyCompare(entry.key, hi_key) > 0)
+					return result;
+				result.add(entry);
+			}
+			if (view.high != null && hi_key != null && BT.keyCompare(view.high, hi_key) > 0)
+				break;
+			pid = view.right;
+		}
+		return result;
+	}
+
+	/**
+	 * write the changes made since the last flush into the BTreeFile. Flushes
+	 * run one at a time, while inserts and deletes go on.
+	 *
+	 * @exception KeyNotMatchException key is not integer key nor string key
+	 * @exception InsertException      error when insert a record into the file
+	 * @exception LeafDeleteException  error when delete a record from the file
+	 */
+	public synchronized void flush() throws KeyNotMatchException, InsertException, LeafDeleteException {
+		// only pages that are linked in already; a page that is being split off
+		// still has its changes on the old page
+		int pid = index.get().ids[0];
+		while (pid != -1) {
+			Node head = get(pid);
+			View view = view(head);
+			if (head instanceof Base && ((Base) head).pending.length == 0) {
+				pid = view.right;
+				continue;
+			}
+			// the pending changes go with the old state, so no one else writes them
+			if (!cas(pid, head, base(view, new Change[0])))
+				continue;
+
+			synchronized (SystemDefs.JavabaseBM) {
+				for (Change change : view.pending)
+					write(change);
+			}
+			pid = view.right;
+		}
+	}
+
+	/**
+	 * @return the number of logical pages
+	 */
+	public int getPageCount() {
+		return nextPid.get() - freePids.size();
+	}
+
+	private void write(Change change) throws InsertException, LeafDeleteException {
+		RID rid = ((LeafData) change.entry.data).getData();
+		if (change.op == INSERT) {
+			try {
+				bfile.insert(change.entry.key, rid);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new InsertException(e, "");
+			}
+		} else {
+			try {
+				bfile.Delete(change.entry.key, rid);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new LeafDeleteException(e, "");
+			}
+		}
+	}
+
+	/*
+	 * the page that holds key, found through the index level and the right links
+	 * of the pages it skips. Splits found on the way get their separator added to
+	 * the index level.
+	 */
+	private int locate(KeyClass key) throws KeyNotMatchException {
+		Index idx = index.get();
+		int pid = idx.ids[upperBound(idx.seps, key)];
+		while (true) {
+			Node node = get(pid);
+			while (!(node instanceof Base) && !(node instanceof Split))
+				node = node.next;
+
+			KeyClass high = node instanceof Split ? ((Split) node).sep : ((Base) node).high;
+			if (high == null || BT.keyCompare(key, high) < 0)
+				return pid;
+
+			int right = node instanceof Split ? ((Split) node).right : ((Base) node).right;
+			addSeparator(high, right);
+			pid = right;
+		}
+	}
+
+	/*
+	 * true if key belongs to the page in state head and not to a page split off
+	 * from it.
+	 */
+	private boolean covers(Node head, KeyClass key) throws KeyNotMatchException {
+		for (Node node = head; node != null; node = node.next) {
+			if (node instanceof Split)
+				return BT.keyCompare(key, ((Split) node).sep) < 0;
+			if (node instanceof Base)
+				return ((Base) node).high == null || BT.keyCompare(key, ((Base) node).high) < 0;
+		}
+		return false;
+	}
+
+	/*
+	 * true if the page in state head holds the record.
+	 */
+	private boolean contains(Node head, KeyDataEntry entry) throws KeyNotMatchException {
+		int count = 0;
+		Node node;
+		for (node = head; !(node instanceof Base); node = node.next) {
+			if (node instanceof Change && compare(((Change) node).entry, entry) == 0)
+				count += ((Change) node).op == INSERT ? 1 : -1;
+		}
+		KeyDataEntry[] records = ((Base) node).records;
+		for (int i = lowerBound(Arrays.asList(records), entry.key); i < records.length; i++) {
+			int cmp = compare(records[i], entry);
+			if (cmp > 0)
+				break;
+			if (cmp == 0)
+				count++;
+		}
+		return count > 0;
+	}
+
+	/*
+	 * consolidates and splits page pid after delta was put on it.
+	 */
+	private void changed(int pid, Change delta) throws KeyNotMatchException {
+		if (delta.length >= CONSOLIDATE_AT)
+			consolidate(pid);
+		if (delta.size > maxRecords)
+			split(pid);
+	}
+
+	private void consolidate(int pid) throws KeyNotMatchException {
+		Node head = get(pid);
+		if (head instanceof Base)
+			return;
+		View view = view(head);
+		cas(pid, head, base(view, view.pending.toArray(new Change[0])));
+	}
+
+	/*
+	 * moves the upper half of page pid to a new page. Does nothing if another
+	 * thread changed the page in the meantime; the next change tries again.
+	 */
+	private void split(int pid) throws KeyNotMatchException {
+		Node head = get(pid);
+		View view = view(head);
+		List<KeyDataEntry> records = view.records;
+		int n = records.size();
+		if (n <= maxRecords)
+			return;
+
+		// records with the same key stay on one page
+		int m = n / 2;
+		while (m > 0 && BT.keyCompare(records.get(m - 1).key, records.get(m).key) == 0)
+			m--;
+		if (m == 0) {
+			m = n / 2;
+			while (m < n && BT.keyCompare(records.get(m - 1).key, records.get(m).key) == 0)
+				m++;
+			if (m == n)
+				return;
+		}
+		KeyClass sep = records.get(m).key;
+
+		List<Change> moved = new ArrayList<Change>();
+		for (Change change : view.pending) {
+			if (BT.keyCompare(change.entry.key, sep) >= 0)
+				moved.add(change);
+		}
+		int right = allocate();
+		slot(right).set(right % CHUNK, new Base(records.subList(m, n).toArray(new KeyDataEntry[0]),
+				moved.toArray(new Change[0]), view.high, view.right));
+
+		// phase one: the records from sep on are reachable through the split delta
+		if (!cas(pid, head, new Split(sep, right, head))) {
+			slot(right).set(right % CHUNK, null);
+			freePids.add(right);
+			return;
+		}
+		// phase two: the new page goes into the index level
+		addSeparator(sep, right);
+		consolidate(pid);
+	}
+
+	/*
+	 * adds separator sep for page right to the index level, unless it is there
+	 * already.
+	 */
+	private void addSeparator(KeyClass sep, int right) throws KeyNotMatchException {
+		while (true) {
+			Index idx = index.get();
+			int pos = upperBound(idx.seps, sep);
+			if (pos > 0 && BT.keyCompare(idx.seps[pos - 1], sep) == 0)
+				return;
+
+			KeyClass[] seps = new KeyClass[idx.seps.length + 1];
+			System.arraycopy(idx.seps, 0, seps, 0, pos);
+			seps[pos] = sep;
+			System.arraycopy(idx.seps, pos, seps, pos + 1, idx.seps.length - pos);
+			int[] ids = new int[idx.ids.length + 1];
+			System.arraycopy(idx.ids, 0, ids, 0, pos + 1);
+			ids[pos + 1] = right;
+			System.arraycopy(idx.ids, pos + 1, ids, pos + 2, idx.ids.length - pos - 1);
+			if (index.compareAndSet(idx, new Index(seps, ids)))
+				return;
+		}
+	}
+
+	/*
+	 * applies the delta records of a chain to its base page, oldest first.
+	 */
+	private View view(Node head) throws KeyNotMatchException {
+		List<Node> deltas = new ArrayList<Node>();
+		Node node;
+		for (node = head; !(node instanceof Base); node = node.next)
+			deltas.add(node);
+		Base base = (Base) node;
+
+		View view = new View();
+		view.records = new ArrayList<KeyDataEntry>(Arrays.asList(base.records));
+		view.pending = new ArrayList<Change>(Arrays.asList(base.pending));
+		view.high = base.high;
+		view.right = base.right;
+		for (int i = deltas.size() - 1; i >= 0; i--) {
+			node = deltas.get(i);
+			if (node instanceof Split) {
+				Split split = (Split) node;
+				view.high = split.sep;
+				view.right = split.right;
+				view.records.subList(lowerBound(view.records, split.sep), view.records.size()).clear();
+				view.pending.removeIf(change -> keyCompare(change.entry.key, split.sep) >= 0);
+			} else {
+				Change change = (Change) node;
+				int pos = search(view.records, change.entry);
+				if (change.op == INSERT)
+					view.records.add(pos < 0 ? -pos - 1 : pos, change.entry);
+				else if (pos >= 0)
+					view.records.remove(pos);
+				view.pending.add(new Change(change.op, change.entry, null));
+			}
+		}
+		return view;
+	}
+
+	private static Base base(View view, Change[] pending) {
+		return new Base(view.records.toArray(new KeyDataEntry[0]), pending, view.high, view.right);
+	}
+
+	/*
+	 * position of the record in records, or -(insertion point) - 1.
+	 */
+	private int search(List<KeyDataEntry> records, KeyDataEntry entry) throws KeyNotMatchException {
+		int lo = 0;
+		int hi = records.size() - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compare(records.get(mid), entry);
+			if (cmp < 0)
+				lo = mid + 1;
+			else if (cmp > 0)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -lo - 1;
+	}
+
+	/*
+	 * the first position whose key is >= key.
+	 */
+	private int lowerBound(List<KeyDataEntry> records, KeyClass key) throws KeyNotMatchException {
+		int lo = 0;
+		int hi = records.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (BT.keyCompare(records.get(mid).key, key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/*
+	 * the number of separators <= key.
+	 */
+	private int upperBound(KeyClass[] seps, KeyClass key) throws KeyNotMatchException {
+		int lo = 0;
+		int hi = seps.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (BT.keyCompare(seps[mid], key) <= 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/*
+	 * records are ordered by key, then by rid.
+	 */
+	private int compare(KeyDataEntry a, KeyDataEntry b) throws KeyNotMatchException {
+		int cmp = BT.keyCompare(a.key, b.key);
+		if (cmp != 0)
+			return cmp;
+		RID ra = ((LeafData) a.data).getData();
+		RID rb = ((LeafData) b.data).getData();
+		if (ra.pageNo.pid != rb.pageNo.pid)
+			return Integer.compare(ra.pageNo.pid, rb.pageNo.pid);
+		return Integer.compare(ra.slotNo, rb.slotNo);
+	}
+
+	private static int keyCompare(KeyClass a, KeyClass b) {
+		try {
+			return BT.keyCompare(a, b);
+		} catch (KeyNotMatchException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void checkKey(KeyClass key) throws KeyNotMatchException {
+		if ((keyType == AttrType.attrInteger && !(key instanceof IntegerKey))
+				|| (keyType == AttrType.attrString && !(key instanceof StringKey)))
+			throw new KeyNotMatchException(null, "key types do not match");
+	}
+
+	/*
+	 * a free logical page id; the chunk of the mapping table that holds it is
+	 * there.
+	 */
+	private int allocate() {
+		Integer free = freePids.poll();
+		int pid = free != null ? free : nextPid.getAndIncrement();
+		if (pid / CHUNK >= CHUNK)
+			throw new IllegalStateException("mapping table is full");
+		if (table.get(pid / CHUNK) == null)
+			table.compareAndSet(pid / CHUNK, null, new AtomicReferenceArray<Node>(CHUNK));
+		return pid;
+	}
+
+	private AtomicReferenceArray<Node> slot(int pid) {
+		return table.get(pid / CHUNK);
+	}
+
+	private Node get(int pid) {
+		AtomicReferenceArray<Node> chunk = slot(pid);
+		return chunk == null ? null : chunk.get(pid % CHUNK);
+	}
+
+	private boolean cas(int pid, Node expect, Node update) {
+		return slot(pid).compareAndSet(pid % CHUNK, expect, update);
+	}
+}
@@ -0,0 +1,245 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTMultiRangeScan returns the records of a sorted list of key ranges, or of an
+ * IN list of keys, as one scan in key order. It is created by
+ * BTreeFile.new_multi_scan or BTreeFile.new_in_scan.
+ *
+ * The scan descends the tree for the first range and then walks the leaf
+ * chain forward, so the records of ranges that follow each other are read
+ * from the leaf pages already on the way. When the next range starts behind
+ * the current leaf page, the scan descends again, but not from the root: the
+ * index pages of the last descent are remembered together with the largest
+ * key each of them leads to, and the descent starts at the lowest of them
+ * that still leads to the key, mostly the parent of the current leaf page.
+ * Walking to the next leaf page instead would cost one page for a near range
+ * and a wasted page before the descent for a distant one; the descent from
+ * the parent costs two. A record is returned once even if ranges overlap.
+ * One leaf page is pinned at a time, until DestroyBTreeFileScan() is called.
+ * The tree must not be changed while the scan is open, except through
+ * delete_current().
+ */
+public class BTMultiRangeScan extends IndexFileScan implements GlobalConst {
+
+	BTreeFile bfile;
+	BTLeafPage leafPage; // leaf page containing current record
+	RID curRid; // position in leafPage, reused for page iteration
+	int slot; // the scan is in front of this slot of leafPage
+	int lastSlot; // slot of the record returned last, -1 if none
+	boolean dirty; // leafPage was changed by delete_current
+	KeyClass[] lokeys; // smallest key of each range, null for none
+	KeyClass[] hikeys; // largest key of each range, null for none
+	int range; // the range the scan is in
+	int[] path; // index pages of the last descent, the root first
+	KeyClass[] bounds; // largest key that a descent from path[i] can serve
+	int depth; // number of index pages on path
+	int descents; // descents so far
+	int maxKeysize;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if there is no more record in the ranges; otherwise, the next
+	 *         record in key order.
+	 * @exception ScanIteratorException iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+
+		KeyDataEntry entry;
+		PageId nextpage;
+
+		try {
+			while (true) {
+				// a descent finds no page when no record is left
+				if (leafPage == null)
+					return null;
+
+				entry = entryAt(slot);
+				if (entry == null) {
+					// end of this page, have to go right
+					nextpage = leafPage.getNextPage();
+					if (nextpage.pid == INVALID_PAGE)
+						return null;
+					moveTo(nextpage);
+					slot = 0;
+					continue;
+				}
+
+				// the ranges that end in front of the record are done
+				while (range < hikeys.length && hikeys[range] != null
+						&& BT.keyCompare(entry.key, hikeys[range]) > 0)
+					range++;
+				if (range == hikeys.length)
+					return null;
+
+				if (lokeys[range] == null || BT.keyCompare(entry.key, lokeys[range]) >= 0) {
+					lastSlot = slot;
+					slot++;
+					return entry;
+				}
+				skipTo(lokeys[range]);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Delete the record returned last by get_next().
+	 *
+	 * @exception ScanDeleteException delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+
+		if (leafPage == null || lastSlot < 0)
+			throw new ScanDeleteException(null, "No Record to delete!");
+		if (bfile.hasSnapshots()) {
+			// the leaf page may still be read by a snapshot
+			throw new ScanDeleteException(null, "snapshots are open, use BTreeFile.Delete");
+		}
+
+		try {
+			KeyDataEntry entry = entryAt(lastSlot);
+			leafPage.deleteSortedRecord(new RID(leafPage.getCurPage(), lastSlot));
+			bfile.recordDeleted(entry.key, leafPage.getCurPage());
+			// the records behind it move down by one, the scan goes on from its
+			// slot (records already passed there are checked against the ranges again)
+			slot = lastSlot;
+			lastSlot = -1;
+			dirty = true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "");
+		}
+	}
+
+	/**
+	 * @return the number of times the scan descended the tree so far
+	 */
+	public int getDescents() {
+		return descents;
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return maxKeysize;
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do some
+	 * clearing work.
+	 *
+	 * @exception IOException                 error from the lower layer
+	 * @exception InvalidFrameNumberException error from the lower layer
+	 * @exception ReplacerException           error from the lower layer
+	 * @exception PageUnpinnedException       error from the lower layer
+	 * @exception HashEntryNotFoundException  error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException, InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null) {
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), dirty);
+		}
+		leafPage = null;
+	}
+
+	/*
+	 * places the scan in front of the first record >= lo_key, which is behind
+	 * the current record: on the current leaf page if it is there, by a new
+	 * descent otherwise.
+	 */
+	private void skipTo(KeyClass lo_key) throws Exception {
+		if (seek(lo_key) || leafPage.getNextPage().pid == INVALID_PAGE)
+			return;
+
+		SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), dirty);
+		dirty = false;
+		descend(lo_key);
+	}
+
+	/*
+	 * descends to the leaf page of lo_key, from the lowest index page of the
+	 * last descent that the key is known to be under, and places the scan in
+	 * front of the first record >= lo_key there, or at the end of the page.
+	 */
+	void descend(KeyClass lo_key) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		int level = depth;
+		while (level > 0 && bounds[level - 1] != null && BT.keyCompare(lo_key, bounds[level - 1]) > 0)
+			level--;
+		// lo_key is under path[level - 1]
+		lastSlot = -1;
+		leafPage = bfile.descend(this, lo_key, Math.max(level - 1, 0));
+		descents++;
+		slot = 0;
+		if (leafPage != null)
+			seek(lo_key);
+	}
+
+	/*
+	 * places the scan in front of the first record >= lo_key of the current
+	 * leaf page and returns true, or at its end if there is none.
+	 */
+	private boolean seek(KeyClass lo_key) throws IOException, IteratorException, KeyNotMatchException {
+		int count = leafPage.getSlotCnt();
+		KeyDataEntry last = entryAt(count - 1);
+		if (lo_key != null && (last == null || BT.keyCompare(last.key, lo_key) < 0)) {
+			slot = count;
+			return false;
+		}
+		slot = lowerBound(lo_key, count);
+		return true;
+	}
+
+	/*
+	 * the first slot of the current leaf page with a key >= lo_key; the page
+	 * has count records and the last one is >= lo_key.
+	 */
+	private int lowerBound(KeyClass lo_key, int count) throws IteratorException, KeyNotMatchException {
+		if (lo_key == null)
+			return 0;
+		int lo = slot;
+		int hi = count - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (BT.keyCompare(entryAt(mid).key, lo_key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/*
+	 * returns the record in slot i of the current leaf page, or null if the page
+	 * has no such slot.
+	 */
+	private KeyDataEntry entryAt(int i) throws IteratorException {
+		if (i < 0)
+			return null;
+		curRid.slotNo = i;
+		return leafPage.getCurrent(curRid);
+	}
+
+	/*
+	 * unpin the current leaf page and pin its neighbour `pageno' instead.
+	 */
+	private void moveTo(PageId pageno) throws IOException, ConstructPageException, PinPageException,
+			InvalidFrameNumberException, ReplacerException, PageUnpinnedException, HashEntryNotFoundException {
+		SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), dirty);
+		dirty = false;
+		lastSlot = -1;
+		leafPage = bfile.openLeaf(bfile.pinPage(pageno));
+		slot = 0;
+	}
+}
@@ -0,0 +1,95 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTPackedFileScan is the scan returned by BTreeFile.new_scan for a tree with
+ * packed, value or posting list leaf pages. BTFileScan reads the slot
+ * directory of the leaf pages as <key, rid> records, so the records are read
+ * through a BTCursor instead, which goes through the iterators of
+ * BTPackedLeafPage, BTValueLeafPage and BTPostingLeafPage. As in BTFileScan,
+ * the leaf page of the cursor is unpinned once get_next() reaches the end of
+ * the range, and DestroyBTreeFileScan() is only needed for a scan that stops
+ * before.
+ */
+public class BTPackedFileScan extends BTFileScan {
+
+	private BTCursor cursor;
+
+	BTPackedFileScan(BTCursor cursor) {
+		this.cursor = cursor;
+		this.bfile = cursor.bfile;
+		this.treeFilename = cursor.treeFilename;
+		this.keyType = cursor.keyType;
+		this.maxKeysize = cursor.maxKeysize;
+		this.endkey = cursor.hikey;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		KeyDataEntry entry = cursor.get_next();
+		if (entry == null) {
+			// end of the range, the cursor need not turn around here
+			try {
+				cursor.DestroyBTreeFileScan();
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new ScanIteratorException(e, "");
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * The value of the record returned last, on a tree created with
+	 * IndexOption.VALUES.
+	 *
+	 * @return the value
+	 * @exception ScanIteratorException there is no such record, or the tree holds
+	 *                                  no values
+	 */
+	public byte[] get_value() throws ScanIteratorException {
+		return cursor.get_value();
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		cursor.delete_current();
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return cursor.keysize();
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do some
+	 * clearing work.
+	 *
+	 * @exception IOException                 error from the lower layer
+	 * @exception InvalidFrameNumberException error from the lower layer
+	 * @exception ReplacerException           error from the lower layer
+	 * @exception PageUnpinnedException       error from the lower layer
+	 * @exception HashEntryNotFoundException  error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException, InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		cursor.DestroyBTreeFileScan();
+	}
+}
@@ -0,0 +1,400 @@
+package btree;
+
+import java.io.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTPackedLeafPage is the leaf page of a tree created with IndexOption.PACKED.
+ * It holds the same records as a BTLeafPage, <IntegerKey, RID> pairs in key
+ * order, but instead of one slot per record the page stores a single block of
+ * variable length numbers behind the header:
+ *
+ * <pre>
+ * DPFIXED     record count (short)
+ * DPFIXED+2   bytes used by the block (short)
+ * DPFIXED+4   change counter (short)
+ * DPFIXED+6   for each record: key, page number and slot number of the rid,
+ *             each as the zig-zag varint of the difference to the record before
+ * </pre>
+ *
+ * Clustered keys and rids of the same data page take two to four bytes per
+ * record instead of twelve plus a four byte slot. The slot count of the
+ * underlying HFPage stays 0.
+ *
+ * The block is decoded on the first getFirst/getNext after the page was
+ * pinned or changed, and every change encodes it again. A record is addressed
+ * by its position, like the slot number of a BTLeafPage record.
+ */
+public class BTPackedLeafPage extends BTLeafPage {
+
+	private static final int COUNT = DPFIXED;
+	private static final int USED = DPFIXED + 2;
+	private static final int CHANGES = DPFIXED + 4;
+	private static final int BLOCK = DPFIXED + 6;
+	static final int CAPACITY = MAX_SPACE - BLOCK;
+
+	// decoded block, valid while the change counter is cachedChanges
+	private int count;
+	private int[] keys = new int[0];
+	private int[] pageNos = new int[0];
+	private int[] slotNos = new int[0];
+	private int cachedChanges = -1;
+
+	/**
+	 * pin the page with pageno, and associate it with a BTPackedLeafPage.
+	 *
+	 * @param pageno  the page number. Input parameter.
+	 * @param keyType must be AttrType.attrInteger. Input parameter.
+	 * @exception IOException            error from the lower layer
+	 * @exception ConstructPageException error when BTPackedLeafPage constructor
+	 */
+	public BTPackedLeafPage(PageId pageno, int keyType) throws IOException, ConstructPageException {
+		super(pageno, keyType);
+	}
+
+	/**
+	 * associate the BTPackedLeafPage instance with the Page instance.
+	 *
+	 * @param page    the page. Input parameter.
+	 * @param keyType must be AttrType.attrInteger. Input parameter.
+	 * @exception IOException            error from the lower layer
+	 * @exception ConstructPageException error when BTPackedLeafPage constructor
+	 */
+	public BTPackedLeafPage(Page page, int keyType) throws IOException, ConstructPageException {
+		super(page, keyType);
+	}
+
+	/**
+	 * point this object at another page; its decoded block is dropped.
+	 *
+	 * @param apage the page. Input parameter.
+	 */
+	public void openHFpage(Page apage) {
+		super.openHFpage(apage);
+		cachedChanges = -1;
+	}
+
+	/**
+	 * make the page an empty packed leaf page. Called once on a new page, after
+	 * HFPage.init.
+	 *
+	 * @exception IOException error from the lower layer
+	 */
+	public void clear() throws IOException {
+		count = 0;
+		cachedChanges = -1;
+		Convert.setShortValue((short) 0, COUNT, data);
+		Convert.setShortValue((short) 0, USED, data);
+		Convert.setShortValue((short) 0, CHANGES, data);
+	}
+
+	/**
+	 * insert a record into the page, behind the records with the same key.
+	 *
+	 * @param key     the key value of the data record. Input parameter.
+	 * @param dataRid the rid of the data record. Input parameter.
+	 * @return the position of the record in the page
+	 * @exception LeafInsertRecException the key is not an integer key, or the
+	 *                                   block would not fit into the page
+	 */
+	public RID insertRecord(KeyClass key, RID dataRid) throws LeafInsertRecException {
+		try {
+			if (!(key instanceof IntegerKey))
+				throw new LeafInsertRecException(null, "packed leaf pages hold integer keys");
+			decode();
+
+			int k = ((IntegerKey) key).getKey().intValue();
+			int pos = count;
+			while (pos > 0 && keys[pos - 1] > k)
+				pos--;
+
+			if (!fits(pos, k, dataRid))
+				throw new LeafInsertRecException(null, "packed leaf page is full");
+
+			grow(count + 1);
+			System.arraycopy(keys, pos, keys, pos + 1, count - pos);
+			System.arraycopy(pageNos, pos, pageNos, pos + 1, count - pos);
+			System.arraycopy(slotNos, pos, slotNos, pos + 1, count - pos);
+			keys[pos] = k;
+			pageNos[pos] = dataRid.pageNo.pid;
+			slotNos[pos] = dataRid.slotNo;
+			count++;
+			encode();
+
+			return new RID(getCurPage(), pos);
+		} catch (LeafInsertRecException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new LeafInsertRecException(e, "");
+		}
+	}
+
+	/**
+	 * @param key     the key of a new record. Input parameter.
+	 * @param dataRid the rid of a new record. Input parameter.
+	 * @return true if the record fits into the page
+	 * @exception IOException error from the lower layer
+	 */
+	public boolean hasRoom(KeyClass key, RID dataRid) throws IOException {
+		decode();
+		int k = ((IntegerKey) key).getKey().intValue();
+		int pos = count;
+		while (pos > 0 && keys[pos - 1] > k)
+			pos--;
+		return fits(pos, k, dataRid);
+	}
+
+	/**
+	 * Iterators. One of the two must be called before any calls to getNext().
+	 *
+	 * @param rid the position of the first record. Output parameter.
+	 * @return the first KeyDataEntry in the leaf page, or null if it is empty
+	 * @exception IteratorException iterator error
+	 */
+	public KeyDataEntry getFirst(RID rid) throws IteratorException {
+		try {
+			rid.pageNo = getCurPage();
+			rid.slotNo = 0;
+			return entry(0);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Iterators. Moves rid to the next record.
+	 *
+	 * @param rid the position of the current record. Input and output parameter.
+	 * @return the next KeyDataEntry in the leaf page, or null if there is none
+	 * @exception IteratorException iterator error
+	 */
+	public KeyDataEntry getNext(RID rid) throws IteratorException {
+		try {
+			rid.slotNo++;
+			return entry(rid.slotNo);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/**
+	 * @param rid the position of a record. Input parameter.
+	 * @return the record at that position, or null if there is none
+	 * @exception IteratorException iterator error
+	 */
+	public KeyDataEntry getCurrent(RID rid) throws IteratorException {
+		try {
+			return entry(rid.slotNo);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/**
+	 * delete a record with the same key and rid.
+	 *
+	 * @param dEntry the entry to delete. Input parameter.
+	 * @return false if there is no such record
+	 * @exception LeafDeleteException error when delete
+	 */
+	public boolean delEntry(KeyDataEntry dEntry) throws LeafDeleteException {
+		try {
+			decode();
+			int k = ((IntegerKey) dEntry.key).getKey().intValue();
+			RID dataRid = ((LeafData) dEntry.data).getData();
+			for (int i = 0; i < count && keys[i] <= k; i++) {
+				if (keys[i] == k && pageNos[i] == dataRid.pageNo.pid && slotNos[i] == dataRid.slotNo) {
+					remove(i);
+					return true;
+				}
+			}
+			return false;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new LeafDeleteException(e, "");
+		}
+	}
+
+	/**
+	 * delete the record at a position. The records behind it move down by one.
+	 *
+	 * @param rid the position of the record. Input parameter.
+	 * @return true
+	 * @exception DeleteRecException there is no such record
+	 */
+	public boolean deleteSortedRecord(RID rid) throws DeleteRecException {
+		try {
+			decode();
+			if (rid.slotNo < 0 || rid.slotNo >= count)
+				throw new DeleteRecException(null, "no record at position " + rid.slotNo);
+			remove(rid.slotNo);
+			return true;
+		} catch (DeleteRecException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new DeleteRecException(e, "");
+		}
+	}
+
+	/**
+	 * @return the number of records in the page
+	 * @exception IOException error from the lower layer
+	 */
+	public short getSlotCnt() throws IOException {
+		return Convert.getShortValue(COUNT, data);
+	}
+
+	protected int numberOfRecords() throws IOException {
+		return getSlotCnt();
+	}
+
+	/**
+	 * @return the bytes left in the block
+	 * @exception IOException error from the lower layer
+	 */
+	public int available_space() throws IOException {
+		return CAPACITY - Convert.getShortValue(USED, data);
+	}
+
+	public boolean empty() throws IOException {
+		return getSlotCnt() == 0;
+	}
+
+	/*
+	 * copies up to n records from position `from' on into keys and rids, the
+	 * rids packed by BTBatchScan.pack. Returns the number copied.
+	 */
+	int copyRecords(int from, int[] outKeys, long[] outRids, int n) throws IOException {
+		decode();
+		n = Math.max(Math.min(n, count - from), 0);
+		System.arraycopy(keys, from, outKeys, 0, n);
+		for (int i = 0; i < n; i++)
+			outRids[i] = BTBatchScan.pack(pageNos[from + i], slotNos[from + i]);
+		return n;
+	}
+
+	private KeyDataEntry entry(int i) throws IOException {
+		decode();
+		if (i < 0 || i >= count)
+			return null;
+		return new KeyDataEntry(new IntegerKey(keys[i]), new RID(new PageId(pageNos[i]), slotNos[i]));
+	}
+
+	private void remove(int i) throws IOException {
+		System.arraycopy(keys, i + 1, keys, i, count - i - 1);
+		System.arraycopy(pageNos, i + 1, pageNos, i, count - i - 1);
+		System.arraycopy(slotNos, i + 1, slotNos, i, count - i - 1);
+		count--;
+		encode();
+	}
+
+	/*
+	 * true if the block still fits with <k, dataRid> inserted at position pos.
+	 */
+	private boolean fits(int pos, int k, RID dataRid) throws IOException {
+		int used = Convert.getShortValue(USED, data);
+		int prevKey = pos > 0 ? keys[pos - 1] : 0;
+		int prevPage = pos > 0 ? pageNos[pos - 1] : 0;
+		int prevSlot = pos > 0 ? slotNos[pos - 1] : 0;
+		int grown = recordSize(k - (long) prevKey, dataRid.pageNo.pid - (long) prevPage,
+				dataRid.slotNo - (long) prevSlot);
+		if (pos < count) {
+			// the next record is stored relative to the new one from now on
+			grown += recordSize(keys[pos] - (long) k, pageNos[pos] - (long) dataRid.pageNo.pid,
+					slotNos[pos] - (long) dataRid.slotNo);
+			grown -= recordSize(keys[pos] - (long) prevKey, pageNos[pos] - (long) prevPage,
+					slotNos[pos] - (long) prevSlot);
+		}
+		return used + grown <= CAPACITY;
+	}
+
+	private void decode() throws IOException {
+		int changes = Convert.getShortValue(CHANGES, data);
+		if (changes == cachedChanges)
+			return;
+
+		count = Convert.getShortValue(COUNT, data);
+		grow(count);
+		int offset = BLOCK;
+		long k = 0, p = 0, s = 0;
+		for (int i = 0; i < count; i++) {
+			long v = 0;
+			for (int field = 0; field < 3; field++) {
+				v = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = data[offset++];
+					v |= (long) (b & 0x7f) << shift;
+					shift += 7;
+				} while ((b & 0x80) != 0);
+				v = (v >>> 1) ^ -(v & 1);
+				if (field == 0)
+					keys[i] = (int) (k += v);
+				else if (field == 1)
+					pageNos[i] = (int) (p += v);
+				else
+					slotNos[i] = (int) (s += v);
+			}
+		}
+		cachedChanges = changes;
+	}
+
+	private void encode() throws IOException {
+		int offset = BLOCK;
+		long k = 0, p = 0, s = 0;
+		for (int i = 0; i < count; i++) {
+			offset = putVarint(keys[i] - k, offset);
+			offset = putVarint(pageNos[i] - p, offset);
+			offset = putVarint(slotNos[i] - s, offset);
+			k = keys[i];
+			p = pageNos[i];
+			s = slotNos[i];
+		}
+		short changes = (short) (Convert.getShortValue(CHANGES, data) + 1);
+		Convert.setShortValue((short) count, COUNT, data);
+		Convert.setShortValue((short) (offset - BLOCK), USED, data);
+		Convert.setShortValue(changes, CHANGES, data);
+		cachedChanges = changes;
+	}
+
+	private int putVarint(long v, int offset) {
+		long z = (v << 1) ^ (v >> 63);
+		while ((z & ~0x7fL) != 0) {
+			data[offset++] = (byte) ((z & 0x7f) | 0x80);
+			z >>>= 7;
+		}
+		data[offset++] = (byte) z;
+		return offset;
+	}
+
+	private static int recordSize(long dk, long dp, long ds) {
+		return varintSize(dk) + varintSize(dp) + varintSize(ds);
+	}
+
+	private static int varintSize(long v) {
+		long z = (v << 1) ^ (v >> 63);
+		int size = 1;
+		while ((z & ~0x7fL) != 0) {
+			z >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private void grow(int n) {
+		if (keys.length < n) {
+			int length = Math.max(n, keys.length * 2);
+			keys = java.util.Arrays.copyOf(keys, length);
+			pageNos = java.util.Arrays.copyOf(pageNos, length);
+			slotNos = java.util.Arrays.copyOf(slotNos, length);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package btree;
+
+import java.io.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTPageViews holds the page objects that the descents of BTreeFile reuse on
+ * the current thread. Every new Page, BTSortedPage, BTIndexPage or BTLeafPage
+ * allocates a page sized buffer of its own before it is pointed at the frame,
+ * so a descent pins into the same Page object on every level, reads the page
+ * type and the separators of integer index pages straight from the frame, and
+ * points a reused view at a frame where it needs one.
+ *
+ * A view is only good until its page is unpinned and is handed out again by
+ * the next call on the same thread, so it must not be kept or returned.
+ */
+final class BTPageViews implements GlobalConst {
+
+	private static final ThreadLocal<BTPageViews> VIEWS = ThreadLocal.withInitial(BTPageViews::new);
+
+	/** the Page object descents pin frames into */
+	final Page page = new Page();
+	/** a RID for iterating over the reused views */
+	final RID rid = new RID();
+
+	private BTIndexPage indexView;
+	private BTLeafPage leafView;
+	private BTPackedLeafPage packedView;
+
+	static BTPageViews get() {
+		return VIEWS.get();
+	}
+
+	/*
+	 * the type of the page in the frame, NodeType.INDEX or NodeType.LEAF.
+	 */
+	static short type(Page page) {
+		return getShort(page.getpage(), HFPage.TYPE);
+	}
+
+	/*
+	 * the index page view, pointed at page.
+	 */
+	BTIndexPage index(Page page, int keyType) throws IOException, ConstructPageException {
+		if (indexView == null)
+			indexView = new BTIndexPage(page, keyType);
+		indexView.openHFpage(page);
+		indexView.keyType = keyType;
+		return indexView;
+	}
+
+	/*
+	 * the leaf page view of the given format, pointed at page.
+	 */
+	BTLeafPage leaf(Page page, int keyType, boolean packed) throws IOException, ConstructPageException {
+		if (packed) {
+			if (packedView == null)
+				packedView = new BTPackedLeafPage(page, keyType);
+			packedView.openHFpage(page);
+			packedView.keyType = keyType;
+			return packedView;
+		}
+		if (leafView == null)
+			leafView = new BTLeafPage(page, keyType);
+		leafView.openHFpage(page);
+		leafView.keyType = keyType;
+		return leafView;
+	}
+
+	/*
+	 * the child of the index page in `page' that a search for `key' goes to: the
+	 * child of the last separator <= key if inclusive, of the last separator < key
+	 * otherwise. A null key goes to the right-most child if inclusive, to the
+	 * left-most one otherwise.
+	 */
+	int child(Page page, KeyClass key, boolean inclusive, int keyType)
+			throws IOException, ConstructPageException, IteratorException, KeyNotMatchException {
+		byte[] data = page.getpage();
+		int slots = getShort(data, HFPage.SLOT_CNT);
+		int leftmost = getInt(data, HFPage.PREV_PAGE);
+
+		if (key == null)
+			return inclusive && slots > 0 ? childAt(data, slots - 1) : leftmost;
+
+		if (keyType == AttrType.attrInteger) {
+			// the slots are in key order; count the separators left of key
+			int k = ((IntegerKey) key).getKey().intValue();
+			int lo = 0;
+			int hi = slots;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				int sep = getInt(data, recordAt(data, mid));
+				if (sep < k || (inclusive && sep == k))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo == 0 ? leftmost : childAt(data, lo - 1);
+		}
+
+		// other keys are decoded by the index page
+		BTIndexPage indexPage = index(page, keyType);
+		int child = leftmost;
+		for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage.getNext(rid)) {
+			int cmp = BT.keyCompare(entry.key, key);
+			if (cmp > 0 || (cmp == 0 && !inclusive))
+				break;
+			child = ((IndexData) entry.data).getData().pid;
+		}
+		return child;
+	}
+
+	/*
+	 * the first separator >= key of the index page in `page', the one right of
+	 * the child that child(page, key, false, keyType) goes to; null if there is
+	 * none. A null key gives the first separator.
+	 */
+	KeyClass nextSeparator(Page page, KeyClass key, int keyType)
+			throws IOException, ConstructPageException, IteratorException, KeyNotMatchException {
+		byte[] data = page.getpage();
+		int slots = getShort(data, HFPage.SLOT_CNT);
+
+		if (keyType == AttrType.attrInteger) {
+			if (key == null)
+				return slots == 0 ? null : new IntegerKey(getInt(data, recordAt(data, 0)));
+			int k = ((IntegerKey) key).getKey().intValue();
+			int lo = 0;
+			int hi = slots;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (getInt(data, recordAt(data, mid)) < k)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo == slots ? null : new IntegerKey(getInt(data, recordAt(data, lo)));
+		}
+
+		BTIndexPage indexPage = index(page, keyType);
+		for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage.getNext(rid)) {
+			if (key == null || BT.keyCompare(entry.key, key) >= 0)
+				return entry.key;
+		}
+		return null;
+	}
+
+	private static int recordAt(byte[] data, int slot) {
+		return getShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT + 2);
+	}
+
+	/*
+	 * an integer index record is the key followed by the child page number.
+	 */
+	private static int childAt(byte[] data, int slot) {
+		return getInt(data, recordAt(data, slot) + 4);
+	}
+
+	// Convert goes through streams; these read the same big-endian values in
+	// place
+	static short getShort(byte[] data, int offset) {
+		return (short) (((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff));
+	}
+
+	static int getInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+				| (data[offset + 3] & 0xff);
+	}
+}
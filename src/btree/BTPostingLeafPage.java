@@ -0,0 +1,525 @@
+package btree;
+
+import java.io.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTPostingLeafPage is the leaf page of a tree created with IndexOption.POSTING.
+ * It holds the same <key, rid> records as a BTLeafPage, but stores each key of
+ * the page once, followed by the list of its rids in ascending order, so an
+ * index over a column with few distinct values takes a fraction of the pages.
+ * Like a BTPackedLeafPage it stores a single block behind the header:
+ *
+ * <pre>
+ * DPFIXED     record count (short)
+ * DPFIXED+2   bytes used by the block (short)
+ * DPFIXED+4   change counter (short)
+ * DPFIXED+6   for each key in key order: the key length (short), the number
+ *             of rids (short), the key written like the key of a leaf record,
+ *             then the page and slot number of every rid, each as the zig-zag
+ *             varint of the difference to the rid before
+ * </pre>
+ *
+ * A list that outgrows the page goes on in the next leaf page when the page is
+ * split, the way runs of duplicates of a BTLeafPage do. delEntry finds the key
+ * and the rid in its list by binary search. A record is addressed by its
+ * position, counted over the rids of all keys of the page.
+ */
+public class BTPostingLeafPage extends BTLeafPage {
+
+	private static final int COUNT = DPFIXED;
+	private static final int USED = DPFIXED + 2;
+	private static final int CHANGES = DPFIXED + 4;
+	private static final int BLOCK = DPFIXED + 6;
+	static final int CAPACITY = MAX_SPACE - BLOCK;
+
+	// key length and rid count in front of every key
+	private static final int GROUP_HEADER = 4;
+
+	// decoded block, valid while the change counter is cachedChanges: the keys,
+	// the position of the first rid of each key, and the rids
+	private int groups;
+	private KeyClass[] keys = new KeyClass[0];
+	private int[] keyLengths = new int[0];
+	private int[] starts = new int[1];
+	private int count;
+	private int[] pageNos = new int[0];
+	private int[] slotNos = new int[0];
+	private int cachedChanges = -1;
+
+	/**
+	 * pin the page with pageno, and associate it with a BTPostingLeafPage.
+	 *
+	 * @param pageno  the page number. Input parameter.
+	 * @param keyType the type of the key. Input parameter.
+	 * @exception IOException            error from the lower layer
+	 * @exception ConstructPageException error when BTPostingLeafPage constructor
+	 */
+	public BTPostingLeafPage(PageId pageno, int keyType) throws IOException, ConstructPageException {
+		super(pageno, keyType);
+	}
+
+	/**
+	 * associate the BTPostingLeafPage instance with the Page instance.
+	 *
+	 * @param page    the page. Input parameter.
+	 * @param keyType the type of the key. Input parameter.
+	 * @exception IOException            error from the lower layer
+	 * @exception ConstructPageException error when BTPostingLeafPage constructor
+	 */
+	public BTPostingLeafPage(Page page, int keyType) throws IOException, ConstructPageException {
+		super(page, keyType);
+	}
+
+	/**
+	 * point this object at another page; its decoded block is dropped.
+	 *
+	 * @param apage the page. Input parameter.
+	 */
+	public void openHFpage(Page apage) {
+		super.openHFpage(apage);
+		cachedChanges = -1;
+	}
+
+	/**
+	 * make the page an empty posting list page. Called once on a new page, after
+	 * HFPage.init.
+	 *
+	 * @exception IOException error from the lower layer
+	 */
+	public void clear() throws IOException {
+		cachedChanges = -1;
+		Convert.setShortValue((short) 0, COUNT, data);
+		Convert.setShortValue((short) 0, USED, data);
+		Convert.setShortValue((short) 0, CHANGES, data);
+	}
+
+	/**
+	 * add a rid to the list of its key.
+	 *
+	 * @param key     the key value of the data record. Input parameter.
+	 * @param dataRid the rid of the data record. Input parameter.
+	 * @return the position of the record in the page
+	 * @exception LeafInsertRecException the block would not fit into the page
+	 */
+	public RID insertRecord(KeyClass key, RID dataRid) throws LeafInsertRecException {
+		try {
+			decode();
+			int g = findKey(key);
+			if (!fits(g, key, dataRid))
+				throw new LeafInsertRecException(null, "posting list leaf page is full");
+
+			if (g < 0) {
+				// a new key, with an empty list
+				g = -g - 1;
+				growGroups(groups + 1);
+				System.arraycopy(keys, g, keys, g + 1, groups - g);
+				System.arraycopy(keyLengths, g, keyLengths, g + 1, groups - g);
+				System.arraycopy(starts, g, starts, g + 1, groups - g + 1);
+				keys[g] = key;
+				keyLengths[g] = BT.getKeyLength(key);
+				groups++;
+			}
+
+			int pos = findRid(g, dataRid);
+			if (pos < 0)
+				pos = -pos - 1;
+			grow(count + 1);
+			System.arraycopy(pageNos, pos, pageNos, pos + 1, count - pos);
+			System.arraycopy(slotNos, pos, slotNos, pos + 1, count - pos);
+			pageNos[pos] = dataRid.pageNo.pid;
+			slotNos[pos] = dataRid.slotNo;
+			count++;
+			for (int i = g + 1; i <= groups; i++)
+				starts[i]++;
+			encode();
+
+			return new RID(getCurPage(), pos);
+		} catch (LeafInsertRecException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new LeafInsertRecException(e, "");
+		}
+	}
+
+	/**
+	 * @param key     the key of a new record. Input parameter.
+	 * @param dataRid the rid of a new record. Input parameter.
+	 * @return true if the record fits into the page
+	 * @exception IOException error from the lower layer
+	 */
+	public boolean hasRoom(KeyClass key, RID dataRid) throws IOException {
+		try {
+			decode();
+			return fits(findKey(key), key, dataRid);
+		} catch (KeyNotMatchException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Iterators. One of the two must be called before any calls to getNext().
+	 *
+	 * @param rid the position of the first record. Output parameter.
+	 * @return the first KeyDataEntry in the leaf page, or null if it is empty
+	 * @exception IteratorException iterator error
+	 */
+	public KeyDataEntry getFirst(RID rid) throws IteratorException {
+		try {
+			rid.pageNo = getCurPage();
+			rid.slotNo = 0;
+			return entry(0);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Iterators. Moves rid to the next record.
+	 *
+	 * @param rid the position of the current record. Input and output parameter.
+	 * @return the next KeyDataEntry in the leaf page, or null if there is none
+	 * @exception IteratorException iterator error
+	 */
+	public KeyDataEntry getNext(RID rid) throws IteratorException {
+		try {
+			rid.slotNo++;
+			return entry(rid.slotNo);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/**
+	 * @param rid the position of a record. Input parameter.
+	 * @return the record at that position, or null if there is none
+	 * @exception IteratorException iterator error
+	 */
+	public KeyDataEntry getCurrent(RID rid) throws IteratorException {
+		try {
+			return entry(rid.slotNo);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/**
+	 * delete a record with the same key and rid. Both are found by binary
+	 * search.
+	 *
+	 * @param dEntry the entry to delete. Input parameter.
+	 * @return false if there is no such record
+	 * @exception LeafDeleteException error when delete
+	 */
+	public boolean delEntry(KeyDataEntry dEntry) throws LeafDeleteException {
+		try {
+			decode();
+			int g = findKey(dEntry.key);
+			if (g < 0)
+				return false;
+			int pos = findRid(g, ((LeafData) dEntry.data).getData());
+			if (pos < 0)
+				return false;
+			remove(pos);
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new LeafDeleteException(e, "");
+		}
+	}
+
+	/**
+	 * delete the record at a position. The records behind it move down by one.
+	 *
+	 * @param rid the position of the record. Input parameter.
+	 * @return true
+	 * @exception DeleteRecException there is no such record
+	 */
+	public boolean deleteSortedRecord(RID rid) throws DeleteRecException {
+		try {
+			decode();
+			if (rid.slotNo < 0 || rid.slotNo >= count)
+				throw new DeleteRecException(null, "no record at position " + rid.slotNo);
+			remove(rid.slotNo);
+			return true;
+		} catch (DeleteRecException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new DeleteRecException(e, "");
+		}
+	}
+
+	/**
+	 * @return the number of records in the page
+	 * @exception IOException error from the lower layer
+	 */
+	public short getSlotCnt() throws IOException {
+		return Convert.getShortValue(COUNT, data);
+	}
+
+	protected int numberOfRecords() throws IOException {
+		return getSlotCnt();
+	}
+
+	/**
+	 * @return the bytes left in the block
+	 * @exception IOException error from the lower layer
+	 */
+	public int available_space() throws IOException {
+		return CAPACITY - Convert.getShortValue(USED, data);
+	}
+
+	public boolean empty() throws IOException {
+		return getSlotCnt() == 0;
+	}
+
+	/*
+	 * copies up to n records from position `from' on into keys and rids, the
+	 * rids packed by BTBatchScan.pack. Returns the number copied; the keys must
+	 * be integer keys.
+	 */
+	int copyRecords(int from, int[] outKeys, long[] outRids, int n) throws IOException {
+		decode();
+		n = Math.max(Math.min(n, count - from), 0);
+		int g = n > 0 ? groupOf(from) : 0;
+		for (int i = 0; i < n; i++) {
+			while (starts[g + 1] <= from + i)
+				g++;
+			outKeys[i] = ((IntegerKey) keys[g]).getKey().intValue();
+			outRids[i] = BTBatchScan.pack(pageNos[from + i], slotNos[from + i]);
+		}
+		return n;
+	}
+
+	private KeyDataEntry entry(int i) throws IOException {
+		decode();
+		if (i < 0 || i >= count)
+			return null;
+		return new KeyDataEntry(keys[groupOf(i)], new RID(new PageId(pageNos[i]), slotNos[i]));
+	}
+
+	/*
+	 * the group of key, or -(insertion point) - 1 if the page does not hold it.
+	 */
+	private int findKey(KeyClass key) throws KeyNotMatchException {
+		int lo = 0;
+		int hi = groups - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = BT.keyCompare(keys[mid], key);
+			if (cmp < 0)
+				lo = mid + 1;
+			else if (cmp > 0)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -lo - 1;
+	}
+
+	/*
+	 * the position of rid in the list of group g, or -(insertion point) - 1 if
+	 * it is not there. g may be -(insertion point) - 1 of a missing key.
+	 */
+	private int findRid(int g, RID rid) {
+		if (g < 0)
+			return -starts[-g - 1] - 1;
+		int lo = starts[g];
+		int hi = starts[g + 1] - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compareRid(pageNos[mid], slotNos[mid], rid.pageNo.pid, rid.slotNo);
+			if (cmp < 0)
+				lo = mid + 1;
+			else if (cmp > 0)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -lo - 1;
+	}
+
+	private static int compareRid(int page1, int slot1, int page2, int slot2) {
+		return page1 != page2 ? Integer.compare(page1, page2) : Integer.compare(slot1, slot2);
+	}
+
+	private int groupOf(int pos) {
+		int lo = 0;
+		int hi = groups - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (starts[mid] <= pos)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	private void remove(int pos) throws IOException {
+		int g = groupOf(pos);
+		System.arraycopy(pageNos, pos + 1, pageNos, pos, count - pos - 1);
+		System.arraycopy(slotNos, pos + 1, slotNos, pos, count - pos - 1);
+		count--;
+		for (int i = g + 1; i <= groups; i++)
+			starts[i]--;
+		if (starts[g] == starts[g + 1]) {
+			// the last rid of the key is gone
+			System.arraycopy(keys, g + 1, keys, g, groups - g - 1);
+			System.arraycopy(keyLengths, g + 1, keyLengths, g, groups - g - 1);
+			System.arraycopy(starts, g + 1, starts, g, groups - g);
+			groups--;
+		}
+		encode();
+	}
+
+	/*
+	 * true if the block still fits with <key, dataRid> added; g is the group of
+	 * key as findKey returns it.
+	 */
+	private boolean fits(int g, KeyClass key, RID dataRid) throws IOException, KeyNotMatchException {
+		int used = Convert.getShortValue(USED, data);
+		int pid = dataRid.pageNo.pid;
+		int slot = dataRid.slotNo;
+		if (g < 0) {
+			int grown = GROUP_HEADER + BT.getKeyLength(key) + ridSize(pid, slot, 0, 0);
+			return used + grown <= CAPACITY;
+		}
+
+		int pos = findRid(g, dataRid);
+		if (pos < 0)
+			pos = -pos - 1;
+		int prevPage = pos > starts[g] ? pageNos[pos - 1] : 0;
+		int prevSlot = pos > starts[g] ? slotNos[pos - 1] : 0;
+		int grown = ridSize(pid, slot, prevPage, prevSlot);
+		if (pos < starts[g + 1]) {
+			// the next rid is stored relative to the new one from now on
+			grown += ridSize(pageNos[pos], slotNos[pos], pid, slot);
+			grown -= ridSize(pageNos[pos], slotNos[pos], prevPage, prevSlot);
+		}
+		return used + grown <= CAPACITY;
+	}
+
+	private void decode() throws IOException {
+		int changes = Convert.getShortValue(CHANGES, data);
+		if (changes == cachedChanges)
+			return;
+
+		count = Convert.getShortValue(COUNT, data);
+		grow(count);
+		int end = BLOCK + Convert.getShortValue(USED, data);
+		int offset = BLOCK;
+		int pos = 0;
+		groups = 0;
+		while (offset < end) {
+			growGroups(groups + 1);
+			int keyLength = Convert.getShortValue(offset, data);
+			int rids = Convert.getShortValue(offset + 2, data);
+			offset += GROUP_HEADER;
+			if (keyType == AttrType.attrInteger)
+				keys[groups] = new IntegerKey(Convert.getIntValue(offset, data));
+			else
+				keys[groups] = new StringKey(Convert.getStrValue(offset, data, keyLength));
+			keyLengths[groups] = keyLength;
+			starts[groups] = pos;
+			offset += keyLength;
+
+			long p = 0, s = 0;
+			for (int i = 0; i < rids; i++, pos++) {
+				for (int field = 0; field < 2; field++) {
+					long v = 0;
+					int shift = 0;
+					byte b;
+					do {
+						b = data[offset++];
+						v |= (long) (b & 0x7f) << shift;
+						shift += 7;
+					} while ((b & 0x80) != 0);
+					v = (v >>> 1) ^ -(v & 1);
+					if (field == 0)
+						pageNos[pos] = (int) (p += v);
+					else
+						slotNos[pos] = (int) (s += v);
+				}
+			}
+			groups++;
+		}
+		starts[groups] = pos;
+		cachedChanges = changes;
+	}
+
+	private void encode() throws IOException {
+		int offset = BLOCK;
+		for (int g = 0; g < groups; g++) {
+			Convert.setShortValue((short) keyLengths[g], offset, data);
+			Convert.setShortValue((short) (starts[g + 1] - starts[g]), offset + 2, data);
+			offset += GROUP_HEADER;
+			if (keys[g] instanceof IntegerKey)
+				Convert.setIntValue(((IntegerKey) keys[g]).getKey().intValue(), offset, data);
+			else
+				Convert.setStrValue(((StringKey) keys[g]).getKey(), offset, data);
+			offset += keyLengths[g];
+
+			long p = 0, s = 0;
+			for (int i = starts[g]; i < starts[g + 1]; i++) {
+				offset = putVarint(pageNos[i] - p, offset);
+				offset = putVarint(slotNos[i] - s, offset);
+				p = pageNos[i];
+				s = slotNos[i];
+			}
+		}
+		short changes = (short) (Convert.getShortValue(CHANGES, data) + 1);
+		Convert.setShortValue((short) count, COUNT, data);
+		Convert.setShortValue((short) (offset - BLOCK), USED, data);
+		Convert.setShortValue(changes, CHANGES, data);
+		cachedChanges = changes;
+	}
+
+	private int putVarint(long v, int offset) {
+		long z = (v << 1) ^ (v >> 63);
+		while ((z & ~0x7fL) != 0) {
+			data[offset++] = (byte) ((z & 0x7f) | 0x80);
+			z >>>= 7;
+		}
+		data[offset++] = (byte) z;
+		return offset;
+	}
+
+	private static int ridSize(int page, int slot, int prevPage, int prevSlot) {
+		return varintSize(page - (long) prevPage) + varintSize(slot - (long) prevSlot);
+	}
+
+	private static int varintSize(long v) {
+		long z = (v << 1) ^ (v >> 63);
+		int size = 1;
+		while ((z & ~0x7fL) != 0) {
+			z >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private void grow(int n) {
+		if (pageNos.length < n) {
+			int size = Math.max(n, pageNos.length * 2);
+			pageNos = java.util.Arrays.copyOf(pageNos, size);
+			slotNos = java.util.Arrays.copyOf(slotNos, size);
+		}
+	}
+
+	private void growGroups(int n) {
+		if (keys.length < n) {
+			int size = Math.max(n, keys.length * 2);
+			keys = java.util.Arrays.copyOf(keys, size);
+			keyLengths = java.util.Arrays.copyOf(keyLengths, size);
+			starts = java.util.Arrays.copyOf(starts, size + 1);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package btree;
+
+import java.io.*;
+
+import global.*;
+
+/**
+ * BTResumableScan is a forward scan over a key range that holds no page
+ * between fetches, so that many scans can be kept open, e.g. one per page of
+ * results handed out to a client. It is created by
+ * BTreeFile.new_resumable_scan.
+ *
+ * Each get_next pins the leaf page it reads and unpins it before it returns.
+ * The scan keeps its place as the key and rid of the record returned last,
+ * the leaf page it is on and the version of that page, see
+ * BTreeFile.pageVersion. If the page is unchanged the next fetch goes on
+ * there; otherwise the tree is descended to the key returned last, and the
+ * scan goes on behind the record with that key and rid. If that record was
+ * deleted meanwhile, it goes on behind as many records with the key as it
+ * returned; changes of records with that key can then make it return one
+ * twice or skip one.
+ */
+public class BTResumableScan implements GlobalConst {
+
+	BTreeFile bfile;
+	KeyClass lokey; // smallest key the scan returns, null for none
+	KeyClass hikey; // largest key the scan returns, null for none
+	RID curRid; // position in leafPage, reused for page iteration
+	int maxKeysize;
+
+	private boolean started; // the first fetch was done
+	private boolean done; // the end of the range was reached
+
+	// the place of the scan between fetches
+	private KeyClass lastKey; // key of the record returned last
+	private RID lastRid; // rid of the record returned last
+	private int dups; // records with lastKey returned
+	private PageId leafId; // leaf page the scan is on
+	private int slot; // the next record of that page
+	private int version; // version of that page when it was unpinned
+
+	private BTLeafPage leafPage; // pinned during a fetch only
+
+	/**
+	 * Iterate once.
+	 *
+	 * @return null if there is no more record in the range; otherwise, the next
+	 *         record.
+	 * @exception ScanIteratorException iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		KeyDataEntry[] entries = new KeyDataEntry[1];
+		return get_next(entries) == 0 ? null : entries[0];
+	}
+
+	/**
+	 * fill entries with the next records of the range; the leaf pages read are
+	 * unpinned before it returns.
+	 *
+	 * @param entries the records. Output parameter.
+	 * @return the number of records, less than entries.length only at the end of
+	 *         the range
+	 * @exception ScanIteratorException iterator error
+	 */
+	public int get_next(KeyDataEntry[] entries) throws ScanIteratorException {
+		if (done || entries.length == 0)
+			return 0;
+
+		int n = 0;
+		try {
+			bfile.applyPending(lastKey != null ? lastKey : lokey, hikey);
+			if (!resume()) {
+				done = true;
+				return 0;
+			}
+
+			while (n < entries.length) {
+				KeyDataEntry entry = entryAt(slot);
+				if (entry == null) {
+					// end of this page, have to go right
+					PageId nextpage = leafPage.getNextPage();
+					if (nextpage.pid == INVALID_PAGE) {
+						done = true;
+						break;
+					}
+					moveTo(nextpage);
+					continue;
+				}
+				if (hikey != null && BT.keyCompare(entry.key, hikey) > 0) {
+					// went past right end of scan
+					done = true;
+					break;
+				}
+
+				if (lastKey != null && BT.keyCompare(entry.key, lastKey) == 0)
+					dups++;
+				else
+					dups = 1;
+				lastKey = entry.key;
+				lastRid = ((LeafData) entry.data).getData();
+				entries[n++] = entry;
+				slot++;
+			}
+
+			leafId = new PageId(leafPage.getCurPage().pid);
+			version = bfile.pageVersion(leafId);
+			release();
+			return n;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * end the scan. It holds no page, so this only makes further calls of
+	 * get_next return nothing.
+	 */
+	public void DestroyBTreeFileScan() {
+		done = true;
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return maxKeysize;
+	}
+
+	/*
+	 * pins the leaf page the scan goes on from and sets slot. Returns false if
+	 * no record is left.
+	 */
+	private boolean resume() throws IOException, IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		if (!started) {
+			started = true;
+			leafPage = bfile.findRunStart(lokey, curRid);
+			slot = curRid.slotNo;
+			return leafPage != null;
+		}
+
+		if (bfile.pageVersion(leafId) == version) {
+			leafPage = bfile.openLeaf(bfile.pinPage(leafId));
+			return true;
+		}
+
+		leafPage = bfile.findRunStart(lastKey, curRid);
+		slot = curRid.slotNo;
+		if (leafPage == null)
+			return false;
+
+		// go behind the record returned last, or behind dups records with its key
+		PageId afterDups = null;
+		int afterDupsSlot = 0;
+		int seen = 0;
+		while (true) {
+			KeyDataEntry entry = entryAt(slot);
+			if (entry == null) {
+				PageId nextpage = leafPage.getNextPage();
+				if (nextpage.pid == INVALID_PAGE)
+					break;
+				moveTo(nextpage);
+				continue;
+			}
+			if (BT.keyCompare(entry.key, lastKey) != 0)
+				break;
+
+			slot++;
+			if (((LeafData) entry.data).getData().equals(lastRid))
+				return true;
+			if (++seen == dups) {
+				afterDups = new PageId(leafPage.getCurPage().pid);
+				afterDupsSlot = slot;
+			}
+		}
+
+		if (afterDups != null) {
+			if (afterDups.pid != leafPage.getCurPage().pid)
+				moveTo(afterDups);
+			slot = afterDupsSlot;
+		}
+		return true;
+	}
+
+	private KeyDataEntry entryAt(int i) throws IteratorException {
+		curRid.slotNo = i;
+		return leafPage.getCurrent(curRid);
+	}
+
+	/*
+	 * unpin the current leaf page and pin `pageno' instead.
+	 */
+	private void moveTo(PageId pageno) throws IOException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		bfile.unpinPage(leafPage.getCurPage());
+		leafPage = bfile.openLeaf(bfile.pinPage(pageno));
+		slot = 0;
+	}
+
+	private void release() throws IOException, UnpinPageException {
+		if (leafPage != null)
+			bfile.unpinPage(leafPage.getCurPage());
+		leafPage = null;
+	}
+}
@@ -0,0 +1,184 @@
+package btree;
+
+import java.util.*;
+import java.util.function.*;
+
+import global.*;
+
+/**
+ * BTScanSpliterator walks the records of a key range of a B+ tree, and can be
+ * split into sub-ranges for a parallel stream. It is created by
+ * BTreeFile.new_spliterator or BTreeFile.parallel_scan.
+ *
+ * trySplit() cuts the range at a separator key taken from the highest
+ * BTIndexPage that has separators inside the range, so the two halves cover
+ * about the same number of subtrees. Each half positions itself with its own
+ * findRunStart descent and then follows the leaf chain.
+ *
+ * The buffer manager is not thread safe, so every pin and unpin is done while
+ * holding the SystemDefs.JavabaseBM monitor; records are decoded from the pinned
+ * leaf outside of it. A leaf is copied out and unpinned before its records are
+ * handed out, so an abandoned stream holds no pages. The tree must not be
+ * changed while the scan runs.
+ */
+public class BTScanSpliterator implements Spliterator<KeyDataEntry>, GlobalConst {
+
+	private BTreeFile bfile;
+	private int keyType;
+	private KeyClass lokey; // first key of the range, null for none
+	private KeyClass hikey; // last key of the range, null for none
+	private boolean hiInclusive; // false if hikey is the start of another part
+	private long est; // size estimate, halved on every split
+
+	private PageId nextLeaf; // next leaf page to read, null before the first one
+	private boolean finished; // no more leaf pages to read
+	private List<KeyDataEntry> buffer = new ArrayList<KeyDataEntry>();
+	private int pos; // next record of buffer to return
+
+	BTScanSpliterator(BTreeFile bfile, KeyClass lo_key, KeyClass hi_key, boolean hiInclusive, long est)
+			throws java.io.IOException {
+		this.bfile = bfile;
+		this.keyType = bfile.getHeaderPage().get_keyType();
+		this.lokey = lo_key;
+		this.hikey = hi_key;
+		this.hiInclusive = hiInclusive;
+		this.est = est;
+	}
+
+	public boolean tryAdvance(Consumer<? super KeyDataEntry> action) {
+		while (pos == buffer.size()) {
+			if (finished)
+				return false;
+			fill();
+		}
+		action.accept(buffer.get(pos++));
+		return true;
+	}
+
+	/**
+	 * Split off the lower half of the range that has not been started yet.
+	 *
+	 * @return a spliterator over [lo_key, separator), or null if the range lies
+	 *         within a single leaf page or the scan already started.
+	 */
+	public Spliterator<KeyDataEntry> trySplit() {
+		if (nextLeaf != null || finished)
+			return null;
+
+		try {
+			KeyClass splitKey = findSplitKey();
+			if (splitKey == null)
+				return null;
+
+			BTScanSpliterator prefix = new BTScanSpliterator(bfile, lokey, splitKey, false, est >>>= 1);
+			lokey = splitKey;
+			return prefix;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+	}
+
+	public long estimateSize() {
+		return est;
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	/*
+	 * returns the middle separator key that lies strictly inside the range, taken
+	 * from the highest index level that has one, or null if there is none.
+	 */
+	private KeyClass findSplitKey() throws Exception {
+		List<KeyClass> inside = new ArrayList<KeyClass>();
+		PageId pageno;
+		PageId childno;
+		BTSortedPage sortPage;
+		BTIndexPage indexPage;
+		KeyDataEntry entry;
+		RID rid = new RID();
+
+		synchronized (SystemDefs.JavabaseBM) {
+			pageno = bfile.getHeaderPage().get_rootId();
+			while (pageno.pid != INVALID_PAGE) {
+				sortPage = new BTSortedPage(pageno, keyType);
+				if (sortPage.getType() != NodeType.INDEX) {
+					SystemDefs.JavabaseBM.unpinPage(pageno, false);
+					return null;
+				}
+
+				indexPage = new BTIndexPage(sortPage, keyType);
+				childno = indexPage.getPrevPage();
+				for (entry = indexPage.getFirst(rid); entry != null; entry = indexPage.getNext(rid)) {
+					if (lokey != null && BT.keyCompare(entry.key, lokey) <= 0) {
+						// the range starts in this child or further right
+						childno = ((IndexData) entry.data).getData();
+					} else if (hikey == null || BT.keyCompare(entry.key, hikey) < 0) {
+						inside.add(entry.key);
+					}
+				}
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+
+				if (!inside.isEmpty())
+					return inside.get(inside.size() / 2);
+
+				// the whole range is covered by one child
+				pageno = childno;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * copies the records in range of the next leaf page into buffer.
+	 */
+	private void fill() {
+		BTLeafPage leafPage;
+		KeyDataEntry entry;
+		RID rid = new RID();
+
+		buffer.clear();
+		pos = 0;
+
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				if (nextLeaf == null) {
+					// first leaf page, positioned at the first record >= lo_key
+					leafPage = bfile.findRunStart(lokey, rid);
+					if (leafPage == null) {
+						finished = true;
+						return;
+					}
+					rid.slotNo--;
+				} else {
+					leafPage = bfile.openLeaf(bfile.pinPage(nextLeaf));
+					rid.slotNo = -1;
+				}
+			}
+
+			for (entry = leafPage.getNext(rid); entry != null; entry = leafPage.getNext(rid)) {
+				if (hikey != null) {
+					int cmp = BT.keyCompare(entry.key, hikey);
+					if (cmp > 0 || (cmp == 0 && !hiInclusive)) {
+						// went past right end of this part
+						finished = true;
+						break;
+					}
+				}
+				buffer.add(entry);
+			}
+			nextLeaf = leafPage.getNextPage();
+			if (nextLeaf.pid == INVALID_PAGE)
+				finished = true;
+
+			synchronized (SystemDefs.JavabaseBM) {
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package btree;
+
+import global.*;
+
+/**
+ * BTSnapshot is a read-only version of a B+ tree, as it was when
+ * BTreeFile.snapshot() was called. Inserts and deletes done afterwards through
+ * the BTreeFile copy the pages they change, so the pages reachable from the
+ * root of the snapshot stay as they were until the snapshot is closed.
+ */
+public class BTSnapshot implements GlobalConst {
+
+	BTreeFile bfile;
+	PageId rootId; // root of the tree when the snapshot was taken
+	int epoch; // orders the snapshots of bfile
+	boolean closed;
+
+	BTSnapshot(BTreeFile bfile, PageId rootId, int epoch) {
+		this.bfile = bfile;
+		this.rootId = new PageId(rootId.pid);
+		this.epoch = epoch;
+	}
+
+	/**
+	 * create a scan over the snapshot with the given key range. The arguments
+	 * are the same as for BTreeFile.new_scan.
+	 *
+	 * @param lo_key the key where we begin scanning. Input parameter.
+	 * @param hi_key the key where we stop scanning. Input parameter.
+	 * @return a scan that returns the records of the snapshot in key order
+	 */
+	public BTSnapshotScan new_scan(KeyClass lo_key, KeyClass hi_key) {
+		return new BTSnapshotScan(this, lo_key, hi_key);
+	}
+
+	/**
+	 * @return the root page of the snapshot, INVALID_PAGE if the tree was empty.
+	 */
+	public PageId getRootId() {
+		return rootId;
+	}
+
+	/**
+	 * close the snapshot. Page versions that no open snapshot reads any more are
+	 * freed. Scans of the snapshot can not be used afterwards.
+	 *
+	 * @exception FreePageException error when free a page
+	 */
+	public void close() throws FreePageException {
+		if (!closed) {
+			closed = true;
+			bfile.releaseSnapshot(this);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTSnapshotScan returns the records of a key range of a BTSnapshot. It is
+ * created by BTSnapshot.new_scan.
+ *
+ * The leaf links are changed in place when a writer copies a leaf page, so the
+ * scan does not follow them. It walks down from the root of the snapshot
+ * instead, keeping the child lists of the index pages on the current path. A
+ * leaf page is copied out and unpinned before its records are returned, so the
+ * scan holds no pages between calls and writers can go on while it runs.
+ */
+public class BTSnapshotScan extends IndexFileScan implements GlobalConst {
+
+	BTSnapshot snapshot;
+	KeyClass lokey; // smallest key the scan returns, null for none
+	KeyClass hikey; // largest key the scan returns, null for none
+	int keyType;
+	int maxKeysize;
+
+	private List<PageId[]> path = new ArrayList<PageId[]>(); // children of the index pages above the leaf
+	private List<Integer> nextChild = new ArrayList<Integer>(); // next child to visit on each level
+	private boolean started;
+	private boolean finished;
+	private List<KeyDataEntry> buffer = new ArrayList<KeyDataEntry>();
+	private int pos; // next record of buffer to return
+
+	BTSnapshotScan(BTSnapshot snapshot, KeyClass lo_key, KeyClass hi_key) {
+		this.snapshot = snapshot;
+		this.lokey = lo_key;
+		this.hikey = hi_key;
+		try {
+			this.keyType = snapshot.bfile.getHeaderPage().get_keyType();
+			this.maxKeysize = snapshot.bfile.getHeaderPage().get_maxKeySize();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if there is no more record in the range; otherwise, the next
+	 *         record.
+	 * @exception ScanIteratorException iterator error, or the snapshot was closed
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		if (snapshot.closed)
+			throw new ScanIteratorException(null, "snapshot is closed");
+
+		try {
+			while (pos == buffer.size()) {
+				if (finished)
+					return null;
+				fill();
+			}
+			return buffer.get(pos++);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * A snapshot can not be changed.
+	 *
+	 * @exception ScanDeleteException always
+	 */
+	public void delete_current() throws ScanDeleteException {
+		throw new ScanDeleteException(null, "snapshot scans are read only");
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return maxKeysize;
+	}
+
+	/*
+	 * copies the records in range of the next leaf page into buffer.
+	 */
+	private void fill() throws Exception {
+		buffer.clear();
+		pos = 0;
+
+		PageId leafId = nextLeaf();
+		if (leafId == null) {
+			finished = true;
+			return;
+		}
+
+		BTLeafPage leafPage = snapshot.bfile.openLeaf(snapshot.bfile.pinPage(leafId));
+		RID rid = new RID();
+		for (KeyDataEntry entry = leafPage.getFirst(rid); entry != null; entry = leafPage.getNext(rid)) {
+			if (lokey != null && BT.keyCompare(entry.key, lokey) < 0)
+				continue;
+			if (hikey != null && BT.keyCompare(entry.key, hikey) > 0) {
+				// went past right end of scan
+				finished = true;
+				break;
+			}
+			buffer.add(entry);
+		}
+		SystemDefs.JavabaseBM.unpinPage(leafId, false);
+	}
+
+	/*
+	 * returns the leaf page after the one read last, or null if there is none.
+	 */
+	private PageId nextLeaf() throws Exception {
+		if (!started) {
+			started = true;
+			if (snapshot.rootId.pid == INVALID_PAGE)
+				return null;
+			return descend(snapshot.rootId);
+		}
+
+		while (!path.isEmpty()) {
+			int top = path.size() - 1;
+			PageId[] children = path.get(top);
+			int next = nextChild.get(top);
+			if (next < children.length) {
+				nextChild.set(top, next + 1);
+				return descend(children[next]);
+			}
+			path.remove(top);
+			nextChild.remove(top);
+		}
+		return null;
+	}
+
+	/*
+	 * walks down from pageno to the first leaf page that can hold lo_key,
+	 * remembering the index pages on the way.
+	 */
+	private PageId descend(PageId pageno) throws Exception {
+		while (true) {
+			BTSortedPage sortPage = new BTSortedPage(pageno, keyType);
+			if (sortPage.getType() != NodeType.INDEX) {
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+				return pageno;
+			}
+
+			BTIndexPage indexPage = new BTIndexPage(sortPage, keyType);
+			PageId[] children = snapshot.bfile.childIds(indexPage);
+			int first = 0; // last child whose separator is < lo_key
+			if (lokey != null) {
+				RID rid = new RID();
+				int i = 1;
+				for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage.getNext(rid), i++) {
+					if (BT.keyCompare(entry.key, lokey) < 0)
+						first = i;
+				}
+			}
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+
+			path.add(children);
+			nextChild.add(first + 1);
+			pageno = children[first];
+		}
+	}
+}
@@ -0,0 +1,367 @@
+package btree;
+
+import java.io.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTValueLeafPage is the leaf page of a tree created with IndexOption.VALUES.
+ * Its records hold a value of any length next to the key instead of the rid of
+ * a data record, so that a lookup or a scan finds the values in the leaf pages
+ * and needs no second page fetch from a heap file. The records are kept in key
+ * order in the slots of the page like those of a BTLeafPage; a record is
+ *
+ * <pre>
+ * 0      key length (short)
+ * 2      value length (int)
+ * 6      key, written like the key of a leaf record
+ * 6+key  the value if it is at most MAX_INLINE bytes long, else the page
+ *        number of the first of its overflow pages
+ * </pre>
+ *
+ * An overflow page holds the page number of the next one followed by the next
+ * part of the value. The iterators return the key with the position of the
+ * record in place of a rid; getValue reads the value at a position.
+ */
+public class BTValueLeafPage extends BTLeafPage {
+
+	/** values longer than this are kept in overflow pages */
+	public static final int MAX_INLINE = 200;
+
+	private static final int VALUE_LENGTH = 2;
+	private static final int KEY = 6;
+
+	// an overflow page: next page number, then part of the value
+	private static final int OVERFLOW_DATA = MINIBASE_PAGESIZE - 4;
+
+	/**
+	 * pin the page with pageno, and associate it with a BTValueLeafPage.
+	 *
+	 * @param pageno  the page number. Input parameter.
+	 * @param keyType the type of the key. Input parameter.
+	 * @exception IOException            error from the lower layer
+	 * @exception ConstructPageException error when BTValueLeafPage constructor
+	 */
+	public BTValueLeafPage(PageId pageno, int keyType) throws IOException, ConstructPageException {
+		super(pageno, keyType);
+	}
+
+	/**
+	 * associate the BTValueLeafPage instance with the Page instance.
+	 *
+	 * @param page    the page. Input parameter.
+	 * @param keyType the type of the key. Input parameter.
+	 * @exception IOException            error from the lower layer
+	 * @exception ConstructPageException error when BTValueLeafPage constructor
+	 */
+	public BTValueLeafPage(Page page, int keyType) throws IOException, ConstructPageException {
+		super(page, keyType);
+	}
+
+	/**
+	 * the record for a key and value. A value longer than MAX_INLINE is written
+	 * to new overflow pages right away.
+	 *
+	 * @param key   the key. Input parameter.
+	 * @param value the value. Input parameter.
+	 * @return the bytes of the record
+	 * @exception LeafInsertRecException error when write the overflow pages
+	 */
+	public static byte[] makeRecord(KeyClass key, byte[] value) throws LeafInsertRecException {
+		try {
+			int keyLength = BT.getKeyLength(key);
+			boolean inline = value.length <= MAX_INLINE;
+			byte[] record = new byte[KEY + keyLength + (inline ? value.length : 4)];
+			Convert.setShortValue((short) keyLength, 0, record);
+			Convert.setIntValue(value.length, VALUE_LENGTH, record);
+			if (key instanceof IntegerKey)
+				Convert.setIntValue(((IntegerKey) key).getKey().intValue(), KEY, record);
+			else
+				Convert.setStrValue(((StringKey) key).getKey(), KEY, record);
+
+			if (inline)
+				System.arraycopy(value, 0, record, KEY + keyLength, value.length);
+			else
+				Convert.setIntValue(writeOverflow(value), KEY + keyLength, record);
+			return record;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new LeafInsertRecException(e, "");
+		}
+	}
+
+	/**
+	 * refused: the records of this page hold values, see insertValueRecord.
+	 *
+	 * @param key     the key. Input parameter.
+	 * @param dataRid the rid. Input parameter.
+	 * @return never
+	 * @exception LeafInsertRecException always
+	 */
+	public RID insertRecord(KeyClass key, RID dataRid) throws LeafInsertRecException {
+		throw new LeafInsertRecException(null, "value leaf pages hold values, not rids");
+	}
+
+	/**
+	 * insert a record made by makeRecord, behind the records with the same key.
+	 *
+	 * @param record the record. Input parameter.
+	 * @return the position of the record in the page
+	 * @exception LeafInsertRecException the page is full
+	 */
+	public RID insertValueRecord(byte[] record) throws LeafInsertRecException {
+		try {
+			KeyClass key = keyAt(record, 0);
+			int slots = getSlotCnt();
+			int lo = 0;
+			int hi = slots;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (BT.keyCompare(keyAt(data, getSlotOffset(mid)), key) <= 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+
+			RID rid = super.insertRecord(record);
+			if (rid == null)
+				throw new LeafInsertRecException(null, "value leaf page is full");
+
+			// the new slot is the last one; move it to its place in key order
+			int length = getSlotLength(rid.slotNo);
+			int offset = getSlotOffset(rid.slotNo);
+			for (int i = rid.slotNo; i > lo; i--)
+				setSlot(i, getSlotLength(i - 1), getSlotOffset(i - 1));
+			setSlot(lo, length, offset);
+			return new RID(getCurPage(), lo);
+		} catch (LeafInsertRecException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new LeafInsertRecException(e, "");
+		}
+	}
+
+	/**
+	 * @param record a record made by makeRecord. Input parameter.
+	 * @return true if the record fits into the page
+	 * @exception IOException error from the lower layer
+	 */
+	public boolean hasRoom(byte[] record) throws IOException {
+		return available_space() >= record.length;
+	}
+
+	/**
+	 * Iterators. One of the two must be called before any calls to getNext().
+	 *
+	 * @param rid the position of the first record. Output parameter.
+	 * @return the first record in the page, with its position as the data, or
+	 *         null if the page is empty
+	 * @exception IteratorException iterator error
+	 */
+	public KeyDataEntry getFirst(RID rid) throws IteratorException {
+		try {
+			rid.pageNo = getCurPage();
+			rid.slotNo = 0;
+			return getCurrent(rid);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Iterators. Moves rid to the next record.
+	 *
+	 * @param rid the position of the current record. Input and output parameter.
+	 * @return the next record in the page, or null if there is none
+	 * @exception IteratorException iterator error
+	 */
+	public KeyDataEntry getNext(RID rid) throws IteratorException {
+		rid.slotNo++;
+		return getCurrent(rid);
+	}
+
+	/**
+	 * @param rid the position of a record. Input parameter.
+	 * @return the record at that position, with the position as the data, or
+	 *         null if there is none
+	 * @exception IteratorException iterator error
+	 */
+	public KeyDataEntry getCurrent(RID rid) throws IteratorException {
+		try {
+			if (rid.slotNo < 0 || rid.slotNo >= getSlotCnt())
+				return null;
+			return new KeyDataEntry(keyAt(data, getSlotOffset(rid.slotNo)), new RID(getCurPage(), rid.slotNo));
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/**
+	 * @param rid the position of a record. Input parameter.
+	 * @return the value of the record
+	 * @exception IteratorException there is no such record, or the overflow pages
+	 *                              can not be read
+	 */
+	public byte[] getValue(RID rid) throws IteratorException {
+		try {
+			if (rid.slotNo < 0 || rid.slotNo >= getSlotCnt())
+				throw new IteratorException(null, "no record at position " + rid.slotNo);
+			int offset = getSlotOffset(rid.slotNo);
+			int valueOffset = offset + KEY + Convert.getShortValue(offset, data);
+			byte[] value = new byte[Convert.getIntValue(offset + VALUE_LENGTH, data)];
+			if (value.length <= MAX_INLINE)
+				System.arraycopy(data, valueOffset, value, 0, value.length);
+			else
+				readOverflow(Convert.getIntValue(valueOffset, data), value);
+			return value;
+		} catch (IteratorException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/**
+	 * delete the record with the same key at the position given as its data,
+	 * and free its overflow pages. Only the slot number of the position is
+	 * looked at, since the copy of a page made for a snapshot keeps the slots.
+	 *
+	 * @param dEntry the key and position of the record. Input parameter.
+	 * @return false if there is no such record
+	 * @exception LeafDeleteException error when delete
+	 */
+	public boolean delEntry(KeyDataEntry dEntry) throws LeafDeleteException {
+		try {
+			RID rid = new RID(getCurPage(), ((LeafData) dEntry.data).getData().slotNo);
+			KeyDataEntry entry = getCurrent(rid);
+			if (entry == null || BT.keyCompare(entry.key, dEntry.key) != 0)
+				return false;
+			return deleteSortedRecord(rid);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new LeafDeleteException(e, "");
+		}
+	}
+
+	/**
+	 * delete the record at a position and free its overflow pages. The records
+	 * behind it move down by one.
+	 *
+	 * @param rid the position of the record. Input parameter.
+	 * @return true
+	 * @exception DeleteRecException error when delete
+	 */
+	public boolean deleteSortedRecord(RID rid) throws DeleteRecException {
+		try {
+			freeOverflow(rid.slotNo);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new DeleteRecException(e, "");
+		}
+		return super.deleteSortedRecord(rid);
+	}
+
+	/**
+	 * take a record out of the page to insert it into another one; its overflow
+	 * pages go with it. The records behind it move down by one.
+	 *
+	 * @param rid the position of the record. Input parameter.
+	 * @return the bytes of the record
+	 * @exception DeleteRecException error when delete
+	 */
+	public byte[] takeRecord(RID rid) throws DeleteRecException {
+		byte[] record = recordAt(rid);
+		super.deleteSortedRecord(rid);
+		return record;
+	}
+
+	/**
+	 * @param rid the position of a record. Input parameter.
+	 * @return a copy of the bytes of the record
+	 * @exception DeleteRecException there is no such record
+	 */
+	public byte[] recordAt(RID rid) throws DeleteRecException {
+		try {
+			int offset = getSlotOffset(rid.slotNo);
+			byte[] record = new byte[getSlotLength(rid.slotNo)];
+			System.arraycopy(data, offset, record, 0, record.length);
+			return record;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new DeleteRecException(e, "");
+		}
+	}
+
+	/**
+	 * free the overflow pages of all records, before the page itself is freed.
+	 *
+	 * @exception FreePageException error when free a page
+	 */
+	public void freeValues() throws FreePageException {
+		try {
+			for (int slot = 0; slot < getSlotCnt(); slot++)
+				freeOverflow(slot);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new FreePageException(e, "");
+		}
+	}
+
+	private KeyClass keyAt(byte[] from, int offset) throws IOException {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(Convert.getIntValue(offset + KEY, from));
+		return new StringKey(Convert.getStrValue(offset + KEY, from, Convert.getShortValue(offset, from)));
+	}
+
+	/*
+	 * writes the value to a chain of new overflow pages and returns the first.
+	 * The last part is written first, so every page knows the one after it.
+	 */
+	private static int writeOverflow(byte[] value) throws Exception {
+		Page page = new Page();
+		int next = INVALID_PAGE;
+		for (int done = (value.length - 1) / OVERFLOW_DATA * OVERFLOW_DATA; done >= 0; done -= OVERFLOW_DATA) {
+			PageId pageno = SystemDefs.JavabaseBM.newPage(page, 1);
+			byte[] bytes = page.getpage();
+			Convert.setIntValue(next, 0, bytes);
+			System.arraycopy(value, done, bytes, 4, Math.min(OVERFLOW_DATA, value.length - done));
+			SystemDefs.JavabaseBM.unpinPage(pageno, true /* = DIRTY */);
+			next = pageno.pid;
+		}
+		return next;
+	}
+
+	private static void readOverflow(int first, byte[] value) throws Exception {
+		Page page = new Page();
+		int next = first;
+		for (int done = 0; done < value.length; done += OVERFLOW_DATA) {
+			PageId pageno = new PageId(next);
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			byte[] bytes = page.getpage();
+			next = Convert.getIntValue(0, bytes);
+			System.arraycopy(bytes, 4, value, done, Math.min(OVERFLOW_DATA, value.length - done));
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+		}
+	}
+
+	private void freeOverflow(int slot) throws Exception {
+		int offset = getSlotOffset(slot);
+		if (Convert.getIntValue(offset + VALUE_LENGTH, data) <= MAX_INLINE)
+			return;
+
+		Page page = new Page();
+		int next = Convert.getIntValue(offset + KEY + Convert.getShortValue(offset, data), data);
+		while (next != INVALID_PAGE) {
+			PageId pageno = new PageId(next);
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			next = Convert.getIntValue(0, page.getpage());
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			SystemDefs.JavabaseBM.freePage(pageno);
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTreeAnalyzer walks all pages of a B+ tree and reports its shape: the height,
+ * the number of pages on each level, how full the leaf and index pages are,
+ * the empty leaf pages, the average key size and how far the leaf chain is
+ * from the physical order of the pages. It tells when a tree is worth a
+ * BTreeVacuum or BTreeReorganizer pass. The tree is only read.
+ *
+ * The tree is walked one level at a time, like _destroyFile walks it, and the
+ * pages of a level are read in page number order so that the reads go over the
+ * file from front to back. The buffer manager is not thread safe, so the pages
+ * are read by the calling thread while holding the SystemDefs.JavabaseBM
+ * monitor and copied out; the copies are decoded by the common fork join pool,
+ * BATCH pages at a time, while the next batch is read. The tree must not be
+ * changed during run().
+ */
+public class BTreeAnalyzer implements GlobalConst {
+
+	/** the number of buckets of the fill histograms, each 1/BUCKETS wide */
+	public static final int BUCKETS = 10;
+
+	// pages read before they are handed to the pool
+	private static final int BATCH = 64;
+
+	private BTreeFile bfile;
+	private int keyType;
+
+	private List<Integer> levelPages = new ArrayList<Integer>();
+	private int[] leafFill = new int[BUCKETS];
+	private int[] indexFill = new int[BUCKETS];
+	private double leafFillSum;
+	private int emptyLeaves;
+	private long records;
+	private long keyBytes;
+	private int orderedLinks; // leaf chain links to the next page number
+	private long linkDistance; // sum of the page number distances of the links
+
+	/*
+	 * what a worker found on one page.
+	 */
+	private static final class PageStats {
+		short type;
+		double fill;
+		PageId[] children; // of an index page
+		int records; // of a leaf page
+		long keyBytes;
+	}
+
+	/**
+	 * create an analyzer for a tree.
+	 *
+	 * @param bfile the tree. Input parameter.
+	 */
+	public BTreeAnalyzer(BTreeFile bfile) {
+		this.bfile = bfile;
+	}
+
+	/**
+	 * walk the tree. The results of an earlier run are dropped.
+	 *
+	 * @exception IOException            error from the lower layer
+	 * @exception IteratorException      iterator error
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 */
+	public void run()
+			throws IOException, IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		reset();
+		keyType = bfile.getHeaderPage().get_keyType();
+		PageId rootId = bfile.getHeaderPage().get_rootId();
+		if (rootId.pid == INVALID_PAGE)
+			return;
+
+		List<PageId> level = Collections.singletonList(rootId);
+		while (!level.isEmpty()) {
+			// the pages of a level are all of one type
+			PageStats[] stats = readLevel(level);
+			levelPages.add(level.size());
+
+			List<PageId> below = new ArrayList<PageId>();
+			for (PageStats page : stats) {
+				if (page.type == NodeType.INDEX) {
+					indexFill[bucket(page.fill)]++;
+					Collections.addAll(below, page.children);
+				} else {
+					leafFill[bucket(page.fill)]++;
+					leafFillSum += page.fill;
+					if (page.records == 0)
+						emptyLeaves++;
+					records += page.records;
+					keyBytes += page.keyBytes;
+				}
+			}
+			if (below.isEmpty())
+				followChain(level);
+			level = below;
+		}
+	}
+
+	/**
+	 * @return the number of levels, 0 for an empty tree
+	 */
+	public int getHeight() {
+		return levelPages.size();
+	}
+
+	/**
+	 * @return the number of pages on each level, the root level first
+	 */
+	public int[] getPagesPerLevel() {
+		int[] pages = new int[levelPages.size()];
+		for (int i = 0; i < pages.length; i++)
+			pages[i] = levelPages.get(i);
+		return pages;
+	}
+
+	/**
+	 * @return the number of leaf pages
+	 */
+	public int getLeafPages() {
+		return levelPages.isEmpty() ? 0 : levelPages.get(levelPages.size() - 1);
+	}
+
+	/**
+	 * @return the number of leaf pages in each fill bucket; bucket i counts the
+	 *         pages that are at least i/BUCKETS full
+	 */
+	public int[] getLeafFillHistogram() {
+		return leafFill.clone();
+	}
+
+	/**
+	 * @return the number of index pages in each fill bucket
+	 */
+	public int[] getIndexFillHistogram() {
+		return indexFill.clone();
+	}
+
+	/**
+	 * @return the average fill of the leaf pages, between 0 and 1
+	 */
+	public double getAverageLeafFill() {
+		return getLeafPages() == 0 ? 0.0 : leafFillSum / getLeafPages();
+	}
+
+	/**
+	 * @return the number of leaf pages without records
+	 */
+	public int getEmptyLeaves() {
+		return emptyLeaves;
+	}
+
+	/**
+	 * @return the number of records in the leaf pages
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return the average key size of the records in bytes
+	 */
+	public double getAverageKeySize() {
+		return records == 0 ? 0.0 : (double) keyBytes / records;
+	}
+
+	/**
+	 * @return the share of the leaf chain links that go to the next page number,
+	 *         1 if the leaf pages are in key order on disk
+	 */
+	public double getPhysicalOrder() {
+		int links = getLeafPages() - 1;
+		return links <= 0 ? 1.0 : (double) orderedLinks / links;
+	}
+
+	/**
+	 * @return the average distance in pages between a leaf page and the next one
+	 *         in the chain, 1 if the leaf pages are in key order on disk
+	 */
+	public double getAverageLinkDistance() {
+		int links = getLeafPages() - 1;
+		return links <= 0 ? 1.0 : (double) linkDistance / links;
+	}
+
+	/**
+	 * @return the results as a few lines of text
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		String lineSep = System.getProperty("line.separator");
+		sb.append("height ").append(getHeight()).append(", pages per level");
+		for (int pages : levelPages)
+			sb.append(' ').append(pages);
+		sb.append(lineSep);
+		sb.append(String.format("%d records, average key size %.1f bytes, %d empty leaf pages", records,
+				getAverageKeySize(), emptyLeaves)).append(lineSep);
+		sb.append(String.format("leaf pages %.0f%% full on average:", 100 * getAverageLeafFill()));
+		appendHistogram(sb, leafFill);
+		sb.append(lineSep).append("index pages:");
+		appendHistogram(sb, indexFill);
+		sb.append(lineSep);
+		sb.append(String.format("leaf chain %.0f%% in page order, %.1f pages between neighbours on average",
+				100 * getPhysicalOrder(), getAverageLinkDistance())).append(lineSep);
+		return sb.toString();
+	}
+
+	private static void appendHistogram(StringBuilder sb, int[] histogram) {
+		for (int i = 0; i < BUCKETS; i++)
+			sb.append(String.format(" %d-%d%% %d", i * 100 / BUCKETS, (i + 1) * 100 / BUCKETS, histogram[i]));
+	}
+
+	private void reset() {
+		levelPages.clear();
+		Arrays.fill(leafFill, 0);
+		Arrays.fill(indexFill, 0);
+		leafFillSum = 0.0;
+		emptyLeaves = 0;
+		records = 0;
+		keyBytes = 0;
+		orderedLinks = 0;
+		linkDistance = 0;
+	}
+
+	/*
+	 * reads the pages of one level in page number order and has them decoded by
+	 * the pool. Returns their stats in the order of level, which is key order.
+	 */
+	private PageStats[] readLevel(List<PageId> level)
+			throws IOException, IteratorException, PinPageException, UnpinPageException {
+		Integer[] order = new Integer[level.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Integer.compare(level.get(a).pid, level.get(b).pid));
+
+		PageStats[] stats = new PageStats[level.size()];
+		List<CompletableFuture<Void>> decoding = new ArrayList<CompletableFuture<Void>>();
+		for (int start = 0; start < order.length; start += BATCH) {
+			int end = Math.min(start + BATCH, order.length);
+			int[] positions = new int[end - start];
+			byte[][] copies = new byte[end - start][];
+			synchronized (SystemDefs.JavabaseBM) {
+				for (int i = start; i < end; i++) {
+					PageId pageno = level.get(order[i]);
+					positions[i - start] = order[i];
+					copies[i - start] = bfile.pinPage(pageno).getpage().clone();
+					bfile.unpinPage(pageno);
+				}
+			}
+			decoding.add(CompletableFuture.runAsync(() -> {
+				for (int i = 0; i < positions.length; i++)
+					stats[positions[i]] = decode(copies[i]);
+			}));
+		}
+
+		try {
+			CompletableFuture.allOf(decoding.toArray(new CompletableFuture<?>[0])).join();
+		} catch (CompletionException e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+		return stats;
+	}
+
+	/*
+	 * the stats of a copied page; runs in the pool.
+	 */
+	private PageStats decode(byte[] copy) {
+		try {
+			Page page = new Page(copy);
+			PageStats stats = new PageStats();
+			stats.type = BTPageViews.type(page);
+			if (stats.type == NodeType.INDEX) {
+				BTIndexPage indexPage = new BTIndexPage(page, keyType);
+				stats.children = bfile.childIds(indexPage);
+				stats.fill = fill(indexPage.available_space(), MAX_SPACE - HFPage.DPFIXED);
+				return stats;
+			}
+
+			BTLeafPage leafPage = bfile.openLeaf(page);
+			int space = MAX_SPACE - HFPage.DPFIXED;
+			if (leafPage instanceof BTPackedLeafPage)
+				space = BTPackedLeafPage.CAPACITY;
+			else if (leafPage instanceof BTPostingLeafPage)
+				space = BTPostingLeafPage.CAPACITY;
+			stats.fill = fill(leafPage.available_space(), space);
+			RID rid = new RID();
+			for (KeyDataEntry entry = leafPage.getFirst(rid); entry != null; entry = leafPage.getNext(rid)) {
+				stats.records++;
+				stats.keyBytes += BT.getKeyLength(entry.key);
+			}
+			return stats;
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	/*
+	 * counts the links of the leaf chain that go to the next page number. The
+	 * leaves are in key order, the order of the chain.
+	 */
+	private void followChain(List<PageId> leaves) {
+		for (int i = 1; i < leaves.size(); i++) {
+			int distance = leaves.get(i).pid - leaves.get(i - 1).pid;
+			if (distance == 1)
+				orderedLinks++;
+			linkDistance += Math.abs(distance);
+		}
+	}
+
+	private static double fill(int available, int space) {
+		return Math.min(Math.max(1.0 - (double) available / space, 0.0), 1.0);
+	}
+
+	private static int bucket(double fill) {
+		return Math.min((int) (fill * BUCKETS), BUCKETS - 1);
+	}
+}
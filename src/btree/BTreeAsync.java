@@ -0,0 +1,130 @@
+package btree;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import global.*;
+
+/**
+ * BTreeAsync runs the operations of a B+ tree on an I/O thread of its own and
+ * hands back a CompletableFuture for each, so that the calling threads never
+ * wait for a page read themselves and can have any number of operations in
+ * flight.
+ *
+ * The buffer manager is not thread safe, so all operations go to one thread
+ * and run in the order they were submitted; every operation holds the
+ * SystemDefs.JavabaseBM monitor while it runs, like the parts of a
+ * BTScanSpliterator do. An operation that fails completes its future
+ * exceptionally with the exception of the tree. The tree must not be used
+ * directly by other threads while the facade is open.
+ */
+public class BTreeAsync implements GlobalConst {
+
+	private BTreeFile bfile;
+	private ExecutorService io;
+
+	private interface Op<T> {
+		T run() throws Exception;
+	}
+
+	/**
+	 * start the I/O thread for a tree.
+	 *
+	 * @param bfile the tree. Input parameter.
+	 */
+	public BTreeAsync(BTreeFile bfile) {
+		this.bfile = bfile;
+		this.io = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "btree-io");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * insert a record, see BTreeFile.insert.
+	 *
+	 * @param key the key of the record. Input parameter.
+	 * @param rid the rid of the record. Input parameter.
+	 * @return a future that completes when the record is in the tree
+	 */
+	public CompletableFuture<Void> insertAsync(KeyClass key, RID rid) {
+		return submit(() -> {
+			bfile.insert(key, rid);
+			return null;
+		});
+	}
+
+	/**
+	 * look up the first record with a key, see BTreeFile.lookup.
+	 *
+	 * @param key the key to look for. Input parameter.
+	 * @return a future of the record, or of null if there is none
+	 */
+	public CompletableFuture<KeyDataEntry> lookupAsync(KeyClass key) {
+		return submit(() -> bfile.lookup(key));
+	}
+
+	/**
+	 * delete a record, see BTreeFile.Delete.
+	 *
+	 * @param key the key of the record. Input parameter.
+	 * @param rid the rid of the record. Input parameter.
+	 * @return a future of true if the record was found and deleted
+	 */
+	public CompletableFuture<Boolean> deleteAsync(KeyClass key, RID rid) {
+		return submit(() -> bfile.Delete(key, rid));
+	}
+
+	/**
+	 * read the records of a key range, see BTreeFile.new_scan. The whole range is
+	 * read in one go, so it should be small enough to be held in memory.
+	 *
+	 * @param lo_key the smallest key of the range, null for none. Input
+	 *               parameter.
+	 * @param hi_key the largest key of the range, null for none. Input parameter.
+	 * @return a future of the records in key order
+	 */
+	public CompletableFuture<List<KeyDataEntry>> scanAsync(KeyClass lo_key, KeyClass hi_key) {
+		return submit(() -> {
+			List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+			BTCursor scan = bfile.new_cursor(lo_key, hi_key);
+			try {
+				for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next())
+					entries.add(entry);
+			} finally {
+				scan.DestroyBTreeFileScan();
+			}
+			return entries;
+		});
+	}
+
+	/**
+	 * stop the I/O thread once the operations submitted so far are done. The
+	 * tree itself stays open.
+	 */
+	public void close() {
+		io.shutdown();
+	}
+
+	private <T> CompletableFuture<T> submit(Op<T> op) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		try {
+			io.execute(() -> {
+				try {
+					T value;
+					synchronized (SystemDefs.JavabaseBM) {
+						value = op.run();
+					}
+					result.complete(value);
+				} catch (Exception e) {
+					result.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// closed already
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+}
@@ -9,6 +9,8 @@ package btree;
 
 import java.io.*;
 import java.util.Currency;
+import java.util.*;
+import java.util.stream.*;
 
 import diskmgr.*;
 import bufmgr.*;
@@ -61,6 +63,62 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	private PageId headerPageId;
 	private String dbname;
 
+	// copy-on-write state, only used while snapshots are open:
+	// the open snapshots, the epoch of the newest one, the pages written since
+	// it was taken, and the replaced pages as {pid, epoch} until no snapshot
+	// taken at or before epoch is left
+	private List<BTSnapshot> snapshots = new ArrayList<BTSnapshot>();
+	private int snapshotEpoch;
+	private Set<Integer> ownedPages = new HashSet<Integer>();
+	private List<int[]> retiredPages = new ArrayList<int[]>();
+
+	// header slots 1-3 hold keysize, delete fashion and key type
+	private final static int OPTIONS_SLOT = 4;
+	private final static int BLOOM_SLOT = 5;
+	private final static int PAGESIZE_SLOT = 6;
+	private final static int BUFFER_SLOT = 7;
+	private final static int CHANGE_SLOT = 8;
+	private final static int BLOOM_SIZE_SLOT = 9; // pages of the Bloom filter
+	private final static int BLOOM_KEYS_SLOT = 10; // keys added to it
+	// the pages of the reserved extents that are not used yet, as the first one
+	// and their number, for leaf and index pages apart so that the leaves of a
+	// tree end up next to each other. They are kept in the header so that a
+	// tree that was not closed still uses them, and close() gives them back
+	private final static int LEAF_EXTENT_SLOT = 11;
+	private final static int INDEX_EXTENT_SLOT = 13;
+
+	private int cachedOptions = -1; // IndexOption flags, -1 until read
+	private BTMessageBuffer messageBuffer; // of a BUFFERED tree, null until used
+	private BTMessageBuffer changeBuffer; // of a CHANGE_BUFFER tree, null until used
+
+	// the pages of this tree pinned last, as many as the buffer pool holds or
+	// residentPages if set, taken as the ones that are in the pool; kept for
+	// CHANGE_BUFFER trees only
+	private LinkedHashMap<Integer, Boolean> recentPages = new LinkedHashMap<Integer, Boolean>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+			return size() > (residentPages > 0 ? residentPages : SystemDefs.JavabaseBM.getNumBuffers());
+		}
+	};
+	private int residentPages; // 0 for the size of the buffer pool
+	private int leafDepth = -1; // index levels above the leaves, -1 until known
+	private BTHashIndex hashIndex; // of an ADAPTIVE_HASH tree, null until used
+	// change counters of the pages, by page number modulo PAGE_VERSIONS; a
+	// BTResumableScan compares them to see if its leaf page was changed
+	private int[] pageVersions = new int[PAGE_VERSIONS];
+
+	// the Bloom filter is a run of pages; each key hashes to one page and sets
+	// BLOOM_HASHES bits in it, so a probe pins a single page. The run has room
+	// for BLOOM_BITS_PER_KEY bits per key, about 1% false positives, and is
+	// sized anew from the keys of the tree once more keys were added than that
+	private final static int BLOOM_PAGES = 8; // smallest filter
+	private final static int BLOOM_BITS_PER_KEY = 10;
+	private final static int BLOOM_HASHES = 4;
+
+	// new leaf and index pages are reserved this many at a time
+	private final static int EXTENT_PAGES = 16;
+
+	private final static int PAGE_VERSIONS = 1024;
+
 	/**
 	 * Access method to data member.
 	 * 
@@ -80,10 +138,19 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
-	private Page pinPage(PageId pageno) throws PinPageException {
+	Page pinPage(PageId pageno) throws PinPageException {
+		return pinPage(pageno, new Page());
+	}
+
+	/*
+	 * pins pageno into the given Page object, e.g. the reused one of
+	 * BTPageViews.
+	 */
+	private Page pinPage(PageId pageno, Page page) throws PinPageException {
 		try {
-			Page page = new Page();
 			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			if (hasChangeBuffer())
+				recentPages.put(pageno.pid, Boolean.TRUE);
 			return page;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -100,7 +167,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
-	private void unpinPage(PageId pageno) throws UnpinPageException {
+	void unpinPage(PageId pageno) throws UnpinPageException {
 		try {
 			SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
 		} catch (Exception e) {
@@ -109,7 +176,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
-	private void freePage(PageId pageno) throws FreePageException {
+	void freePage(PageId pageno) throws FreePageException {
+		pageChanged(pageno.pid);
 		try {
 			SystemDefs.JavabaseBM.freePage(pageno);
 		} catch (Exception e) {
@@ -119,6 +187,23 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	}
 
+	/*
+	 * notes that page pageno was written, freed or replaced by a copy.
+	 */
+	private void pageChanged(int pageno) {
+		pageVersions[pageno & (PAGE_VERSIONS - 1)]++;
+		if (hashIndex != null)
+			hashIndex.pageChanged(pageno);
+	}
+
+	/*
+	 * a number that changes whenever page pageno changes. Pages share the
+	 * number with other pages, so it may change without the page changing.
+	 */
+	int pageVersion(PageId pageno) {
+		return pageVersions[pageno.pid & (PAGE_VERSIONS - 1)];
+	}
+
 	private void delete_file_entry(String filename) throws DeleteFileEntryException {
 		try {
 			SystemDefs.JavabaseDB.delete_file_entry(filename);
@@ -128,7 +213,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
-	private void unpinPage(PageId pageno, boolean dirty) throws UnpinPageException {
+	void unpinPage(PageId pageno, boolean dirty) throws UnpinPageException {
+		if (dirty)
+			pageChanged(pageno.pid);
 		try {
 			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
 		} catch (Exception e) {
@@ -137,6 +224,88 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
+	/**
+	 * Access method to data member.
+	 * 
+	 * @return the IndexOption flags this btree file was created with.
+	 * @exception IOException error from the lower layer
+	 */
+	public int getOptions() throws IOException {
+		// asked on every insert and descent; the options never change
+		if (cachedOptions < 0)
+			cachedOptions = getHeaderInt(OPTIONS_SLOT);
+		return cachedOptions;
+	}
+
+	/**
+	 * Access method to data member.
+	 * 
+	 * @return the page size of this btree file, in bytes.
+	 * @exception IOException error from the lower layer
+	 */
+	public int getPageSize() throws IOException {
+		int pagesize = getHeaderInt(PAGESIZE_SLOT);
+		// files from before the page size was recorded use the default one
+		return pagesize == 0 ? MINIBASE_PAGESIZE : pagesize;
+	}
+
+	private void checkPageSize() throws ConstructPageException {
+		int pagesize;
+		try {
+			pagesize = getPageSize();
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+		if (pagesize != MINIBASE_PAGESIZE)
+			throw new ConstructPageException(null,
+					"file has " + pagesize + " byte pages, the database uses " + MINIBASE_PAGESIZE);
+	}
+
+	boolean isCounted() throws IOException {
+		return (getOptions() & IndexOption.COUNTED) != 0;
+	}
+
+	private boolean hasBloomFilter() throws IOException {
+		return (getOptions() & IndexOption.BLOOM) != 0;
+	}
+
+	private boolean isBuffered() throws IOException {
+		return (getOptions() & IndexOption.BUFFERED) != 0;
+	}
+
+	private BTMessageBuffer messageBuffer() throws IOException {
+		if (messageBuffer == null)
+			messageBuffer = new BTMessageBuffer(this, getHeaderInt(BUFFER_SLOT), headerPage.get_keyType());
+		return messageBuffer;
+	}
+
+	private boolean hasChangeBuffer() throws IOException {
+		return (getOptions() & IndexOption.CHANGE_BUFFER) != 0;
+	}
+
+	private boolean hasHashIndex() throws IOException {
+		return (getOptions() & IndexOption.ADAPTIVE_HASH) != 0;
+	}
+
+	private BTMessageBuffer changeBuffer() throws IOException {
+		if (changeBuffer == null)
+			changeBuffer = new BTMessageBuffer(this, getHeaderInt(CHANGE_SLOT), headerPage.get_keyType());
+		return changeBuffer;
+	}
+
+	/*
+	 * The header page keeps extra fields in unused slots of its slot directory;
+	 * a slot holds two shorts, so an int is split over them.
+	 */
+	private int getHeaderInt(int slot) throws IOException {
+		return (headerPage.getSlotOffset(slot) << 16) | (headerPage.getSlotLength(slot) & 0xffff);
+	}
+
+	private void setHeaderInt(int slot, int value) throws IOException {
+		headerPage.setSlot(slot, value & 0xffff, value >>> 16);
+	}
+
 	/**
 	 * BTreeFile class an index file with given filename should already exist; this
 	 * opens it.
@@ -151,6 +320,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		headerPageId = get_file_entry(filename);
 
 		headerPage = new BTreeHeaderPage(headerPageId);
+		checkPageSize();
 		dbname = new String(filename);
 		/*
 		 * 
@@ -176,10 +346,60 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 */
 	public BTreeFile(String filename, int keytype, int keysize, int delete_fashion)
 			throws GetFileEntryException, ConstructPageException, IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, IndexOption.NONE);
+	}
+
+	/**
+	 * if index file exists, open it; else create it with the given options. The
+	 * options of an existing file are kept.
+	 *
+	 * @param filename       file name. Input parameter.
+	 * @param keytype        the type of key. Input parameter.
+	 * @param keysize        the maximum size of a key. Input parameter.
+	 * @param delete_fashion full delete or naive delete. Input parameter. It is
+	 *                       either DeleteFashion.NAIVE_DELETE or
+	 *                       DeleteFashion.FULL_DELETE.
+	 * @param options        IndexOption flags, or-ed together. Input parameter.
+	 * @exception GetFileEntryException  can not get file
+	 * @exception ConstructPageException page constructor failed
+	 * @exception IOException            error from lower layer
+	 * @exception AddFileEntryException  can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize, int delete_fashion, int options)
+			throws GetFileEntryException, ConstructPageException, IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, options, MINIBASE_PAGESIZE);
+	}
+
+	/**
+	 * if index file exists, open it; else create it with the given options and
+	 * page size. The page size is kept in the header page, and a file whose page
+	 * size differs from the one of the database is refused. The buffer manager
+	 * and the disk manager work with MINIBASE_PAGESIZE pages only, so that is the
+	 * only size that can be used for now.
+	 *
+	 * @param filename       file name. Input parameter.
+	 * @param keytype        the type of key. Input parameter.
+	 * @param keysize        the maximum size of a key. Input parameter.
+	 * @param delete_fashion full delete or naive delete. Input parameter. It is
+	 *                       either DeleteFashion.NAIVE_DELETE or
+	 *                       DeleteFashion.FULL_DELETE.
+	 * @param options        IndexOption flags, or-ed together. Input parameter.
+	 * @param pagesize       the page size in bytes. Input parameter.
+	 * @exception GetFileEntryException  can not get file
+	 * @exception ConstructPageException page constructor failed, or the page size
+	 *                                   is not supported
+	 * @exception IOException            error from lower layer
+	 * @exception AddFileEntryException  can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize, int delete_fashion, int options, int pagesize)
+			throws GetFileEntryException, ConstructPageException, IOException, AddFileEntryException {
 
 		headerPageId = get_file_entry(filename);
 		if (headerPageId == null) // file not exist
 		{
+			if (pagesize != MINIBASE_PAGESIZE)
+				throw new ConstructPageException(null,
+						"page size " + pagesize + " not supported, the database uses " + MINIBASE_PAGESIZE);
 			headerPage = new BTreeHeaderPage();
 			headerPageId = headerPage.getPageId();
 			add_file_entry(filename, headerPageId);
@@ -188,9 +408,27 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			headerPage.set_keyType((short) keytype);
 			headerPage.set_maxKeySize(keysize);
 			headerPage.set_deleteFashion(delete_fashion);
+			if ((options & IndexOption.PACKED) != 0 && keytype != AttrType.attrInteger)
+				throw new ConstructPageException(null, "packed leaf pages need integer keys");
+			if ((options & IndexOption.VALUES) != 0
+					&& (options & (IndexOption.PACKED | IndexOption.BUFFERED | IndexOption.CHANGE_BUFFER)) != 0)
+				throw new ConstructPageException(null, "value leaf pages can not be packed or buffered");
+			if ((options & IndexOption.POSTING) != 0 && (options & (IndexOption.PACKED | IndexOption.VALUES)) != 0)
+				throw new ConstructPageException(null, "posting list leaf pages can not be packed or hold values");
+			setHeaderInt(OPTIONS_SLOT, options);
+			setHeaderInt(PAGESIZE_SLOT, pagesize);
+			setHeaderInt(LEAF_EXTENT_SLOT + 1, 0);
+			setHeaderInt(INDEX_EXTENT_SLOT + 1, 0);
 			headerPage.setType(NodeType.BTHEAD);
+			if (hasBloomFilter())
+				createBloomFilter(BLOOM_PAGES);
+			if (isBuffered())
+				setHeaderInt(BUFFER_SLOT, BTMessageBuffer.create());
+			if (hasChangeBuffer())
+				setHeaderInt(CHANGE_SLOT, BTMessageBuffer.create());
 		} else {
 			headerPage = new BTreeHeaderPage(headerPageId);
+			checkPageSize();
 		}
 
 		dbname = new String(filename);
@@ -198,16 +436,19 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	/**
-	 * Close the B+ tree file. Unpin header page.
+	 * Close the B+ tree file. Unpin header page and give the unused pages of the
+	 * extents back.
 	 *
 	 * @exception PageUnpinnedException       error from the lower layer
 	 * @exception InvalidFrameNumberException error from the lower layer
 	 * @exception HashEntryNotFoundException  error from the lower layer
 	 * @exception ReplacerException           error from the lower layer
+	 * @exception FreePageException           error when free a page
 	 */
-	public void close()
-			throws PageUnpinnedException, InvalidFrameNumberException, HashEntryNotFoundException, ReplacerException {
+	public void close() throws PageUnpinnedException, InvalidFrameNumberException, HashEntryNotFoundException,
+			ReplacerException, FreePageException {
 		if (headerPage != null) {
+			releaseExtents();
 			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
 			headerPage = null;
 		}
@@ -230,6 +471,24 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			PageId pgId = headerPage.get_rootId();
 			if (pgId.pid != INVALID_PAGE)
 				_destroyFile(pgId);
+			if (hasBloomFilter())
+				freeBloomFilter();
+			if (isBuffered()) {
+				messageBuffer().free();
+				messageBuffer = null;
+			}
+			if (hasChangeBuffer()) {
+				changeBuffer().free();
+				changeBuffer = null;
+			}
+			hashIndex = null;
+			// old page versions kept for snapshots, which are no longer readable
+			for (int[] retired : retiredPages)
+				freePage(new PageId(retired[0]));
+			retiredPages.clear();
+			releaseExtents();
+			snapshots.clear();
+			ownedPages.clear();
 			unpinPage(headerPageId);
 			freePage(headerPageId);
 			delete_file_entry(dbname);
@@ -246,22 +505,193 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		if (sortedPage.getType() == NodeType.INDEX) {
 			BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
-			RID rid = new RID();
-			PageId childId;
-			KeyDataEntry entry;
-			for (entry = indexPage.getFirst(rid); entry != null; entry = indexPage.getNext(rid)) {
-				childId = ((IndexData) (entry.data)).getData();
+			for (PageId childId : childIds(indexPage)) {
 				_destroyFile(childId);
 			}
+
+			PageId countsId = indexPage.getNextPage();
+			unpinPage(pageno);
+			freePage(pageno);
+			if (isCounted() && countsId.pid != INVALID_PAGE)
+				freePage(countsId);
 		} else { // BTLeafPage
 
+			if (hasValues())
+				((BTValueLeafPage) openLeaf(page)).freeValues();
 			unpinPage(pageno);
 			freePage(pageno);
 		}
 
 	}
 
-	private void updateHeader(PageId newRoot) throws IOException, PinPageException, UnpinPageException {
+	/*
+	 * a new, empty leaf page, pinned. It is taken from the leaf extent.
+	 */
+	private BTLeafPage newLeafPage() throws IOException, ConstructPageException {
+		PageId pageno = takeExtentPage(LEAF_EXTENT_SLOT);
+		Page page = pinEmptyPage(pageno);
+		BTLeafPage leafPage = openLeaf(page);
+		leafPage.init(pageno, page);
+		leafPage.setType(NodeType.LEAF);
+		if (leafPage instanceof BTPackedLeafPage)
+			((BTPackedLeafPage) leafPage).clear();
+		else if (leafPage instanceof BTPostingLeafPage)
+			((BTPostingLeafPage) leafPage).clear();
+		return leafPage;
+	}
+
+	/*
+	 * the leaf page in `page', packed if the tree was created with
+	 * IndexOption.PACKED.
+	 */
+	BTLeafPage openLeaf(Page page) throws IOException, ConstructPageException {
+		if (hasValues())
+			return new BTValueLeafPage(page, headerPage.get_keyType());
+		if (hasPostings())
+			return new BTPostingLeafPage(page, headerPage.get_keyType());
+		if (isPacked())
+			return new BTPackedLeafPage(page, headerPage.get_keyType());
+		return new BTLeafPage(page, headerPage.get_keyType());
+	}
+
+	boolean isPacked() throws IOException {
+		return (getOptions() & IndexOption.PACKED) != 0;
+	}
+
+	boolean hasValues() throws IOException {
+		return (getOptions() & IndexOption.VALUES) != 0;
+	}
+
+	boolean hasPostings() throws IOException {
+		return (getOptions() & IndexOption.POSTING) != 0;
+	}
+
+	/*
+	 * the leaf page in `page' through the reused views of the current thread;
+	 * value and posting list leaf pages have no reused view.
+	 */
+	private BTLeafPage leafView(Page page) throws IOException, ConstructPageException {
+		if (hasValues() || hasPostings())
+			return openLeaf(page);
+		return BTPageViews.get().leaf(page, headerPage.get_keyType(), isPacked());
+	}
+
+	/*
+	 * inserts <key, rid> into leafPage, or the record of a value leaf page.
+	 */
+	private void insertLeafRecord(BTLeafPage leafPage, KeyClass key, RID rid, byte[] record)
+			throws LeafInsertRecException {
+		if (leafPage instanceof BTValueLeafPage)
+			((BTValueLeafPage) leafPage).insertValueRecord(record);
+		else
+			leafPage.insertRecord(key, rid);
+	}
+
+	/*
+	 * moves the record at rid of leaf page from, which is entry, into leaf page
+	 * to. The records behind it in from move down by one.
+	 */
+	private void moveRecord(BTLeafPage from, RID rid, KeyDataEntry entry, BTLeafPage to)
+			throws LeafInsertRecException, DeleteRecException {
+		if (from instanceof BTValueLeafPage) {
+			// the value and its overflow pages go along
+			((BTValueLeafPage) to).insertValueRecord(((BTValueLeafPage) from).takeRecord(rid));
+			return;
+		}
+		to.insertRecord(entry.key, ((LeafData) entry.data).getData());
+		from.deleteSortedRecord(rid);
+	}
+
+	/*
+	 * true if <key, rid> can be inserted into leafPage without a split. A packed
+	 * or posting list page is asked for the size of its coded block.
+	 */
+	private boolean hasRoom(BTLeafPage leafPage, KeyClass key, RID rid, byte[] record)
+			throws IOException, KeyNotMatchException, NodeNotMatchException {
+		if (leafPage instanceof BTValueLeafPage)
+			return ((BTValueLeafPage) leafPage).hasRoom(record);
+		if (leafPage instanceof BTPackedLeafPage)
+			return ((BTPackedLeafPage) leafPage).hasRoom(key, rid);
+		if (leafPage instanceof BTPostingLeafPage)
+			return ((BTPostingLeafPage) leafPage).hasRoom(key, rid);
+		return leafPage.available_space() >= BT.getKeyDataLength(key, NodeType.LEAF);
+	}
+
+	/*
+	 * a new, empty index page, pinned. It is taken from the index extent.
+	 */
+	private BTIndexPage newIndexPage() throws IOException, ConstructPageException {
+		PageId pageno = takeExtentPage(INDEX_EXTENT_SLOT);
+		Page page = pinEmptyPage(pageno);
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		indexPage.init(pageno, page);
+		indexPage.setType(NodeType.INDEX);
+		return indexPage;
+	}
+
+	/*
+	 * hands out the next page of the extent in header slot `slot', reserving a
+	 * new run of EXTENT_PAGES contiguous pages when it is used up. If the
+	 * database has no such run left, a single page is reserved instead.
+	 */
+	private PageId takeExtentPage(int slot) throws IOException, ConstructPageException {
+		int first = getHeaderInt(slot);
+		int left = getHeaderInt(slot + 1);
+		if (left == 0) {
+			int pages = EXTENT_PAGES;
+			PageId start;
+			try {
+				try {
+					start = SystemDefs.JavabaseBM.newPage(new Page(), pages);
+				} catch (Exception e) {
+					pages = 1;
+					start = SystemDefs.JavabaseBM.newPage(new Page(), pages);
+				}
+				SystemDefs.JavabaseBM.unpinPage(start, false);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new ConstructPageException(e, "");
+			}
+			first = start.pid;
+			left = pages;
+		}
+		setHeaderInt(slot, first + 1);
+		setHeaderInt(slot + 1, left - 1);
+		return new PageId(first);
+	}
+
+	private Page pinEmptyPage(PageId pageno) throws ConstructPageException {
+		try {
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, true /* = empty page */);
+			if (hasChangeBuffer())
+				recentPages.put(pageno.pid, Boolean.TRUE);
+			return page;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+	}
+
+	/*
+	 * gives the unused pages of the extents back to the database.
+	 */
+	private void releaseExtents() throws FreePageException {
+		try {
+			for (int slot : new int[] { LEAF_EXTENT_SLOT, INDEX_EXTENT_SLOT }) {
+				for (int left = getHeaderInt(slot + 1); left > 0; left--) {
+					freePage(new PageId(getHeaderInt(slot)));
+					setHeaderInt(slot, getHeaderInt(slot) + 1);
+					setHeaderInt(slot + 1, left - 1);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new FreePageException(e, "");
+		}
+	}
+
+	void updateHeader(PageId newRoot) throws IOException, PinPageException, UnpinPageException {
 
 		BTreeHeaderPage header;
 		PageId old_data;
@@ -270,6 +700,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		old_data = headerPage.get_rootId();
 		header.set_rootId(newRoot);
+		leafDepth = -1;
 
 		// clock in dirty bit to bm so our dtor needn't have to worry about it
 		unpinPage(headerPageId, true /* = DIRTY */);
@@ -299,30 +730,55 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @exception IndexSearchException    error when search
 	 * @exception IteratorException       iterator error
 	 * @exception LeafDeleteException     error when delete in leaf page
-	 * @exception InsertException         error when insert in index page
+	 * @exception InsertException         error when insert in index page, or
+	 *                                    the tree holds values
 	 */
 	public void insert(KeyClass key, RID rid) throws KeyTooLongException, KeyNotMatchException, LeafInsertRecException,
 			IndexInsertRecException, ConstructPageException, UnpinPageException, PinPageException,
 			NodeNotMatchException, ConvertException, DeleteRecException, IndexSearchException, IteratorException,
 			LeafDeleteException, InsertException, IOException {
+		if (hasValues())
+			throw new InsertException(null, "the tree holds values, use put()");
 
 		if (trace != null) {
 			trace.writeBytes("INSERT " + rid.pageNo + " " + rid.slotNo + " " + key + lineSep);
 			trace.writeBytes("DO" + lineSep);
 			trace.flush();
 		}
+		if (hasBloomFilter())
+			bloomAdd(key);
+
+		if (isBuffered()) {
+			sendMessage(BTMessageBuffer.INSERT, key, rid);
+			return;
+		}
+		if (hasChangeBuffer() && bufferChange(BTMessageBuffer.INSERT, key, rid))
+			return;
+		insertIntoTree(key, rid, null);
+	}
+
+	/*
+	 * inserts <key, rid> into the tree, or the record made by
+	 * BTValueLeafPage.makeRecord if the tree holds values.
+	 */
+	private void insertIntoTree(KeyClass key, RID rid, byte[] record) throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException, ConstructPageException, UnpinPageException,
+			PinPageException, NodeNotMatchException, ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException, IOException {
+
 		// checking header page if tree exists
 		if (headerPage.get_rootId().pid == INVALID_PAGE) {
 			// No tree. Creating leaf page
-			BTLeafPage newRootLeafPage = new BTLeafPage(headerPage.get_keyType());
+			BTLeafPage newRootLeafPage = newLeafPage();
 			PageId newRootLeafPageId = newRootLeafPage.getCurPage();
+			pageCreated(newRootLeafPageId);
 
 			// setting the next and previous to INVALID_PAGE
 			newRootLeafPage.setNextPage(new PageId(INVALID_PAGE));
 			newRootLeafPage.setPrevPage(new PageId(INVALID_PAGE));
 
 			// inserting the new record on newRootLeafPage
-			newRootLeafPage.insertRecord(key, rid);
+			insertLeafRecord(newRootLeafPage, key, rid, record);
 
 			// unpinning page since dirty
 			unpinPage(newRootLeafPageId, true);
@@ -335,8 +791,16 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 
 		// root not empty. Tree exists
+		if (!snapshots.isEmpty()) {
+			// copying the pages on the way down that a snapshot still reads
+			PageId rootId = headerPage.get_rootId();
+			PageId newRootId = copyPathByKey(rootId, key);
+			if (newRootId.pid != rootId.pid)
+				updateHeader(newRootId);
+		}
+
 		// inserting into rootPage
-		KeyDataEntry newRootEntry = _insert(key, rid, headerPage.get_rootId());
+		KeyDataEntry newRootEntry = _insert(key, rid, record, headerPage.get_rootId());
 
 		// checking if split occured
 		// newRootEntry = null then no split occured
@@ -344,8 +808,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		if (newRootEntry != null) {
 			// creating new page entry
-			BTIndexPage newRootIndexPage = new BTIndexPage(headerPage.get_keyType());
+			BTIndexPage newRootIndexPage = newIndexPage();
 			PageId newRootIndexPageId = newRootIndexPage.getCurPage();
+			pageCreated(newRootIndexPageId);
 
 			// inserting the returned key to that
 			newRootIndexPage.insertKey(newRootEntry.key, ((IndexData)newRootEntry.data).getData());
@@ -354,38 +819,41 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			// set newRootIndexPage's previous to old root page
 			newRootIndexPage.setPrevPage(headerPage.get_rootId());
 
+			if (isCounted())
+				setChildCounts(newRootIndexPage, computeChildCounts(newRootIndexPage));
+
 			// unpinning the newRootIndexPage because it is dirty
-			unpinPage(newRootIndexPageId);
+			unpinPage(newRootIndexPageId, true);
 
 			// updating header with new page
 			updateHeader(newRootIndexPageId);
 		}
 	}
 
-	private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId)
+	private KeyDataEntry _insert(KeyClass key, RID rid, byte[] record, PageId currentPageId)
 			throws PinPageException, IOException, LeafDeleteException, ConstructPageException, DeleteRecException,
 			IndexSearchException, UnpinPageException, LeafInsertRecException, ConvertException, IteratorException,
 			IndexInsertRecException, KeyNotMatchException, NodeNotMatchException, InsertException {
 
 		Page page;
 		KeyDataEntry upEntry;
-		BTSortedPage currentPage;
+		BTPageViews views = BTPageViews.get();
 
-		page = pinPage(currentPageId);
-		currentPage = new BTSortedPage(page, headerPage.get_keyType());
+		// the page is read through the reused views until it has to be changed
+		page = pinPage(currentPageId, views.page);
 
 		// checking currentPage type
-		if (currentPage.getType() == NodeType.INDEX) {
-			BTIndexPage currentIndexPage = new BTIndexPage(page, headerPage.get_keyType());
+		if (BTPageViews.type(page) == NodeType.INDEX) {
+			BTIndexPage currentIndexPage;
 			PageId currentIndexPageId = currentPageId;
 
-			PageId nextPageId = currentIndexPage.getPageNoByKey(key);
+			PageId nextPageId = new PageId(views.child(page, key, true, headerPage.get_keyType()));
 
 			// unpinning page to recurse the tree
 			unpinPage(currentIndexPageId);
 			// recursing the tree to insert
 			// returns key to be inserted in currentPage if child split.
-			upEntry = _insert(key, rid, nextPageId);
+			upEntry = _insert(key, rid, record, nextPageId);
 
 			// if upEntry == null: no split has occured.
 			// insert complete.
@@ -394,6 +862,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 			if (upEntry == null) {
 				// no split occured. Insert complete. Returning null.
+				if (isCounted())
+					addChildCount(currentIndexPageId, nextPageId, 1);
 				return null;
 			}
 
@@ -405,8 +875,22 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			// check whether currentIndexPage has space
 			if (currentIndexPage.available_space() >= BT.getKeyDataLength(upEntry.key, NodeType.INDEX)) {
 				// space available in currentIndexPage. Inserting here.
+				int[] counts = isCounted() ? getChildCounts(currentIndexPage) : null;
 				currentIndexPage.insertKey(upEntry.key, ((IndexData) upEntry.data).getData());
 
+				if (counts != null) {
+					// the new child lands right behind the child that split;
+					// both got their records from the old count
+					PageId newChildId = ((IndexData) upEntry.data).getData();
+					int pos = childPosition(currentIndexPage, newChildId);
+					int[] newCounts = new int[counts.length + 1];
+					System.arraycopy(counts, 0, newCounts, 0, pos);
+					System.arraycopy(counts, pos, newCounts, pos + 1, counts.length - pos);
+					newCounts[pos - 1] = subtreeCount(nextPageId);
+					newCounts[pos] = subtreeCount(newChildId);
+					setChildCounts(currentIndexPage, newCounts);
+				}
+
 				// unpinning the page after write
 				unpinPage(currentIndexPageId, true);
 
@@ -416,15 +900,16 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 			// currentIndexPage does not have enough space
 			// creating newIndexPage.
-			BTIndexPage newIndexPage = new BTIndexPage(headerPage.get_keyType());
+			BTIndexPage newIndexPage = newIndexPage();
 			PageId newIndexPageId = newIndexPage.getCurPage();
+			pageCreated(newIndexPageId);
 
 			KeyDataEntry tmpkeyEntry;
 			RID delRID = new RID();
 
 			// looping through the keys in currentIndexPage
 			for (tmpkeyEntry = currentIndexPage.getFirst(delRID); tmpkeyEntry != null; tmpkeyEntry = currentIndexPage
-					.getNext(delRID)) {
+					.getFirst(delRID)) {
 
 				// inserting tmpkeyEntry to newIndexPage
 				newIndexPage.insertKey(tmpkeyEntry.key, ((IndexData) tmpkeyEntry.data).getData());
@@ -436,7 +921,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			// inserting records to currentIndexPage to make the number of keys equal
 			RID firstRid = new RID();
 			KeyDataEntry undoEntry = null;
-			for (tmpkeyEntry = currentIndexPage.getFirst(firstRid); (currentIndexPage.available_space() > newIndexPage
+			for (tmpkeyEntry = newIndexPage.getFirst(firstRid); (currentIndexPage.available_space() > newIndexPage
 					.available_space()); tmpkeyEntry = newIndexPage.getFirst(firstRid)) {
 
 				undoEntry = tmpkeyEntry;
@@ -491,18 +976,29 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 			((IndexData) upEntry.data).setData(newIndexPageId);
 
+			if (isCounted()) {
+				// the children were shuffled around, count both halves again
+				currentIndexPage = new BTIndexPage(pinPage(currentIndexPageId), headerPage.get_keyType());
+				setChildCounts(currentIndexPage, computeChildCounts(currentIndexPage));
+				unpinPage(currentIndexPageId);
+				setChildCounts(newIndexPage, computeChildCounts(newIndexPage));
+			}
+
+			// unpinning newIndexPage since dirty
+			unpinPage(newIndexPageId, true);
+
 			return upEntry;
 
-		} else if (currentPage.getType() == NodeType.LEAF) {
+		} else if (BTPageViews.type(page) == NodeType.LEAF) {
 			// node to be inserted is a leaf node
-			BTLeafPage currentLeafPage = new BTLeafPage(page, headerPage.get_keyType());
+			BTLeafPage currentLeafPage = leafView(page);
 			PageId currentLeafPageId = currentPageId;
 
 			// checking if space is available in the currentLeafPage
-			if (currentLeafPage.available_space() >= BT.getKeyDataLength(key, NodeType.LEAF)) {
+			if (hasRoom(currentLeafPage, key, rid, record)) {
 				// no splitting necessary
 				// insert key in the same leaf page
-				currentLeafPage.insertRecord(key, rid);
+				insertLeafRecord(currentLeafPage, key, rid, record);
 
 				// unpinning currentLeafPage as dirty
 				unpinPage(currentLeafPageId, true);
@@ -516,9 +1012,10 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 			// creating newLeafPage to split the records of currentLeafPage
 
-			BTLeafPage newLeafPage = new BTLeafPage(headerPage.get_keyType());
+			BTLeafPage newLeafPage = newLeafPage();
 
 			PageId newLeafPageId = newLeafPage.getCurPage();
+			pageCreated(newLeafPageId);
 
 			// setting newLeafPage's next as currentLeafPage's nextpage
 			newLeafPage.setNextPage(currentLeafPage.getNextPage());
@@ -531,7 +1028,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			PageId rightPageId = newLeafPage.getNextPage();
 			if (rightPageId.pid != INVALID_PAGE) {
 				// currentLeafPage was not right-most leaf
-				BTLeafPage rightLeafPage = new BTLeafPage(rightPageId, headerPage.get_keyType());
+				BTLeafPage rightLeafPage = openLeaf(pinPage(rightPageId));
 				// chaning the right leaf's prev to point to newLeafPage
 				rightLeafPage.setPrevPage(newLeafPageId);
 
@@ -545,10 +1042,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 			for (tmpkeyEntry = currentLeafPage.getFirst(delRid); tmpkeyEntry != null; tmpkeyEntry = currentLeafPage
 					.getFirst(delRid)) {
-				// inserting into newLeafPage
-				newLeafPage.insertRecord(tmpkeyEntry.key, ((LeafData) tmpkeyEntry.data).getData());
-				// deleting from currentLeafPage
-				currentLeafPage.deleteSortedRecord(delRid);
+				// moving from currentLeafPage into newLeafPage
+				moveRecord(currentLeafPage, delRid, tmpkeyEntry, newLeafPage);
 			}
 
 			// transferring back some records from newLeafPage to currentLeafPage
@@ -556,27 +1051,25 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			for (tmpkeyEntry = newLeafPage.getFirst(delRid); newLeafPage.available_space() < currentLeafPage
 					.available_space(); tmpkeyEntry = newLeafPage.getFirst(delRid)) {
 				undoEntry = tmpkeyEntry;
-				currentLeafPage.insertRecord(tmpkeyEntry.key, ((LeafData) tmpkeyEntry.data).getData());
-
-				newLeafPage.deleteSortedRecord(delRid);
+				moveRecord(newLeafPage, delRid, tmpkeyEntry, currentLeafPage);
 			}
 
 			if (undoEntry != null && BT.keyCompare(key, undoEntry.key) > 0) {
 				// last entry goes in newLeafRecord
 				// undo the final record
 				if (currentLeafPage.available_space() < newLeafPage.available_space()) {
-					newLeafPage.insertRecord(undoEntry.key, ((LeafData) undoEntry.data).getData());
-
-					currentLeafPage.deleteSortedRecord(new RID(currentLeafPage.getCurPage(), currentLeafPage.getSlotCnt() - 1));
+					moveRecord(currentLeafPage,
+							new RID(currentLeafPage.getCurPage(), currentLeafPage.getSlotCnt() - 1), undoEntry,
+							newLeafPage);
 				}
 			}
 
 			if (undoEntry != null && BT.keyCompare(key, undoEntry.key) >= 0) {
 				// key goes into newLeafPage
-				newLeafPage.insertRecord(key, rid);
+				insertLeafRecord(newLeafPage, key, rid, record);
 			} else {
 				// key goes into currentLeafPage
-				currentLeafPage.insertRecord(key, rid);
+				insertLeafRecord(currentLeafPage, key, rid, record);
 			}
 
 			// unpinning currentLeafPage since dirty
@@ -587,7 +1080,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			upEntry = new KeyDataEntry(tmpkeyEntry.key, newLeafPageId);
 
 			// unpinning newLeafPage since dirty
-			unpinPage(newLeafPageId);
+			unpinPage(newLeafPageId, true);
 
 			return upEntry;
 		} else {
@@ -601,7 +1094,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *
 	 * @param key the key in pair <key, rid>. Input Parameter.
 	 * @param rid the rid in pair <key, rid>. Input Parameter.
-	 * @return true if deleted. false if no such record.
+	 * @return true if deleted. false if no such record. On a tree created with
+	 *         IndexOption.BUFFERED or CHANGE_BUFFER the delete may only be put
+	 *         into a buffer, and true is returned then.
 	 * @exception DeleteFashionException    neither full delete nor naive delete
 	 * @exception LeafRedistributeException redistribution error in leaf pages
 	 * @exception RedistributeException     redistribution error in index pages
@@ -627,91 +1122,571 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			KeyNotMatchException, UnpinPageException, IndexInsertRecException, FreePageException,
 			RecordNotFoundException, PinPageException, IndexFullDeleteException, LeafDeleteException, IteratorException,
 			ConstructPageException, DeleteRecException, IndexSearchException, IOException {
-		if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
-			return NaiveDelete(key, rid);
-		else
+		if (headerPage.get_deleteFashion() != DeleteFashion.NAIVE_DELETE)
 			throw new DeleteFashionException(null, "");
+		// the record is looked for when the message reaches its leaf page
+		try {
+			if (isBuffered()) {
+				sendMessage(BTMessageBuffer.DELETE, key, rid);
+				return true;
+			}
+			if (hasChangeBuffer() && bufferChange(BTMessageBuffer.DELETE, key, rid))
+				return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new LeafDeleteException(e, "");
+		}
+		return NaiveDelete(key, rid);
 	}
 
 	/*
-	 * findRunStart. Status BTreeFile::findRunStart (const void lo_key, RID
-	 * *pstartrid)
-	 * 
-	 * find left-most occurrence of `lo_key', going all the way left if lo_key is
-	 * null.
-	 * 
-	 * Starting record returned in *pstartrid, on page *pppage, which is pinned.
-	 * 
-	 * Since we allow duplicates, this must "go left" as described in the text (for
-	 * the search algorithm).
-	 * 
-	 * @param lo_key find left-most occurrence of `lo_key', going all the way left
-	 * if lo_key is null.
-	 * 
-	 * @param startrid it will reurn the first rid =< lo_key
-	 * 
-	 * @return return a BTLeafPage instance which is pinned. null if no key was
-	 * found.
+	 * puts an insert or delete into the message buffer, which is flushed first
+	 * if it is full.
 	 */
-
-	BTLeafPage findRunStart(KeyClass lo_key, RID startrid) throws IOException, IteratorException, KeyNotMatchException,
-			ConstructPageException, PinPageException, UnpinPageException {
-		BTLeafPage pageLeaf;
-		BTIndexPage pageIndex;
-		Page page;
-		BTSortedPage sortPage;
-		PageId pageno;
-		PageId curpageno = null; // iterator
-		PageId prevpageno;
-		PageId nextpageno;
-		RID curRid;
-		KeyDataEntry curEntry;
-
-		pageno = headerPage.get_rootId();
-
-		if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
-			pageLeaf = null; // should be handled by
-			// startrid =INVALID_PAGEID ; // the caller
-			return pageLeaf;
+	private void sendMessage(byte op, KeyClass key, RID rid) throws IOException, PinPageException,
+			UnpinPageException, KeyNotMatchException, NodeNotMatchException, ConvertException, InsertException {
+		if (!messageBuffer().add(op, INVALID_PAGE, key, rid)) {
+			flushBuffer();
+			messageBuffer().add(op, INVALID_PAGE, key, rid);
 		}
+	}
 
-		page = pinPage(pageno);
-		sortPage = new BTSortedPage(page, headerPage.get_keyType());
+	/*
+	 * puts an insert or delete into the change buffer if its leaf page does not
+	 * seem to be in the buffer pool. Returns false if it is to be applied right
+	 * away.
+	 */
+	private boolean bufferChange(byte op, KeyClass key, RID rid) throws IOException, PinPageException,
+			UnpinPageException, ConstructPageException, IteratorException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException, InsertException {
+		if (headerPage.get_rootId().pid == INVALID_PAGE)
+			return false;
 
-		if (trace != null) {
-			trace.writeBytes("VISIT node " + pageno + lineSep);
-			trace.flush();
+		int target;
+		List<BTMessageBuffer.Message> earlier = changeBuffer().forKey(key);
+		if (!earlier.isEmpty()) {
+			// the messages for a key stay together, so they are applied in order
+			target = earlier.get(0).target;
+		} else {
+			target = leafFor(key);
+			if (recentPages.containsKey(target))
+				return false;
 		}
 
-		// ASSERTION
-		// - pageno and sortPage is the root of the btree
-		// - pageno and sortPage valid and pinned
-
-		while (sortPage.getType() == NodeType.INDEX) {
-			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
-			prevpageno = pageIndex.getPrevPage();
-			curEntry = pageIndex.getFirst(startrid);
-			while (curEntry != null && lo_key != null && BT.keyCompare(curEntry.key, lo_key) < 0) {
+		if (!changeBuffer().add(op, target, key, rid)) {
+			mergeChanges(Integer.MAX_VALUE);
+			changeBuffer().add(op, target, key, rid);
+		}
+		return true;
+	}
 
-				prevpageno = ((IndexData) curEntry.data).getData();
-				curEntry = pageIndex.getNext(startrid);
+	/*
+	 * the leaf page that holds key; only the index pages above it are read.
+	 */
+	private int leafFor(KeyClass key)
+			throws IOException, PinPageException, UnpinPageException, ConstructPageException, IteratorException,
+			KeyNotMatchException {
+		BTPageViews views = BTPageViews.get();
+		int keyType = headerPage.get_keyType();
+		PageId pageno = new PageId(headerPage.get_rootId().pid);
+
+		if (leafDepth < 0) {
+			// down the left-most path once; the depth changes with the root only
+			int depth = 0;
+			while (true) {
+				Page page = pinPage(pageno, views.page);
+				boolean isIndex = BTPageViews.type(page) == NodeType.INDEX;
+				int child = BTPageViews.getInt(page.getpage(), HFPage.PREV_PAGE);
+				unpinPage(pageno);
+				if (!isIndex)
+					break;
+				depth++;
+				pageno.pid = child;
 			}
+			leafDepth = depth;
+			pageno.pid = headerPage.get_rootId().pid;
+		}
 
+		for (int level = leafDepth; level > 0; level--) {
+			Page page = pinPage(pageno, views.page);
+			int child = views.child(page, key, true, keyType);
 			unpinPage(pageno);
+			pageno.pid = child;
+		}
+		return pageno.pid;
+	}
 
-			pageno = prevpageno;
-			page = pinPage(pageno);
-			sortPage = new BTSortedPage(page, headerPage.get_keyType());
-
-			if (trace != null) {
-				trace.writeBytes("VISIT node " + pageno + lineSep);
-				trace.flush();
-			}
+	/**
+	 * set how many of the pages this tree pinned last a tree created with
+	 * IndexOption.CHANGE_BUFFER takes as in the buffer pool. Changes for the
+	 * other leaf pages are buffered. By default it is the size of the pool.
+	 *
+	 * @param pages the number of pages, 0 for the size of the buffer pool.
+	 *              Input parameter.
+	 */
+	public void setResidentPages(int pages) {
+		residentPages = pages;
+		while (recentPages.size() > pages && pages > 0)
+			recentPages.remove(recentPages.keySet().iterator().next());
+	}
 
+	/**
+	 * apply the changes waiting in the change buffer of a tree created with
+	 * IndexOption.CHANGE_BUFFER, for at most max_leaves leaf pages in page order.
+	 * This is the background merger; changes are also applied when their leaf
+	 * page is read by lookup() or a scan, and all of them when the change buffer
+	 * is full.
+	 *
+	 * @param max_leaves the number of leaf pages. Input parameter.
+	 * @return true if changes for more leaf pages are left
+	 * @exception InsertException error when apply a change
+	 */
+	public boolean mergeChanges(int max_leaves) throws InsertException {
+		try {
+			if (!hasChangeBuffer())
+				return false;
+			List<Integer> targets = changeBuffer().targets();
+			for (int i = 0; i < targets.size() && i < max_leaves; i++)
+				mergeTarget(targets.get(i));
+			return !changeBuffer().isEmpty();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
 		}
+	}
+
+	/*
+	 * applies the changes for leaf page target.
+	 */
+	private void mergeTarget(int target) throws Exception {
+		List<BTMessageBuffer.Message> messages = new ArrayList<BTMessageBuffer.Message>(
+				changeBuffer().forTarget(target));
+		if (messages.isEmpty())
+			return;
+		changeBuffer().remove(messages);
+		for (BTMessageBuffer.Message message : messages)
+			applyMessage(message);
+	}
+
+	private void applyMessage(BTMessageBuffer.Message message) throws Exception {
+		if (message.op == BTMessageBuffer.INSERT)
+			insertIntoTree(message.key, message.rid, null);
+		else
+			NaiveDelete(message.key, message.rid);
+	}
+
+	/*
+	 * applies what a read of lo_key..hi_key has to see: the whole message
+	 * buffer, and the changes for the leaf pages that hold keys in the range.
+	 */
+	void applyPending(KeyClass lo_key, KeyClass hi_key) throws InsertException {
+		flushBuffer();
+		try {
+			if (!hasChangeBuffer() || changeBuffer().isEmpty())
+				return;
+			Set<Integer> targets = new TreeSet<Integer>();
+			for (BTMessageBuffer.Message message : changeBuffer().messages()) {
+				if ((lo_key == null || BT.keyCompare(message.key, lo_key) >= 0)
+						&& (hi_key == null || BT.keyCompare(message.key, hi_key) <= 0))
+					targets.add(message.target);
+			}
+			for (int target : targets)
+				mergeTarget(target);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		}
+	}
+
+	/**
+	 * apply the inserts and deletes waiting in the message buffer of a tree
+	 * created with IndexOption.BUFFERED. They are sorted by key first, so the
+	 * messages for one leaf page are applied one after the other while the page
+	 * is in the buffer pool and each leaf page is read once per flush. The buffer
+	 * is flushed by itself when it is full, and before scans, counts and
+	 * snapshots, which read the leaf pages directly; lookup() reads the buffer
+	 * and needs no flush.
+	 *
+	 * @exception InsertException error when apply a message
+	 */
+	public void flushBuffer() throws InsertException {
+		try {
+			if (!isBuffered() || messageBuffer().isEmpty())
+				return;
+
+			List<BTMessageBuffer.Message> messages = new ArrayList<BTMessageBuffer.Message>(
+					messageBuffer().messages());
+			// a stable sort, so the messages for a key stay in the order they were sent;
+			// integer keys are compared without the subtraction of BT.keyCompare,
+			// which overflows and breaks the contract of the sort
+			messages.sort((a, b) -> {
+				if (a.key instanceof IntegerKey)
+					return ((IntegerKey) a.key).getKey().compareTo(((IntegerKey) b.key).getKey());
+				return ((StringKey) a.key).getKey().compareTo(((StringKey) b.key).getKey());
+			});
+			int done = 0;
+			try {
+				for (BTMessageBuffer.Message message : messages) {
+					applyMessage(message);
+					done++;
+				}
+			} finally {
+				// a flush that fails leaves only the messages not applied yet
+				if (done < messages.size())
+					messageBuffer().remove(messages.subList(0, done));
+			}
+			messageBuffer().clear();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		}
+	}
+
+	/**
+	 * delete every record with lo_key <= key <= hi_key. Subtrees that lie
+	 * completely inside the range are taken out of the leaf chain and their pages
+	 * freed without reading their records; only the leaf pages at the two ends
+	 * of the range are trimmed record by record. Index entries of removed
+	 * children are deleted, and index pages left without children are freed.
+	 * Pages are not merged, as with naive delete.
+	 *
+	 * While snapshots are open the records are deleted one by one with Delete(),
+	 * which copies the pages the snapshots still read.
+	 *
+	 * @param lo_key the smallest key to delete, null for no lower bound. Input
+	 *               parameter.
+	 * @param hi_key the largest key to delete, null for no upper bound. Input
+	 *               parameter.
+	 * @exception IOException            error from the lower layer
+	 * @exception IteratorException      iterator error
+	 * @exception KeyNotMatchException   key is not integer key nor string key
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 * @exception FreePageException      error when free a page
+	 * @exception DeleteRecException     error when delete a record
+	 * @exception IndexSearchException   error in search in index pages
+	 * @exception LeafDeleteException    delete error in leaf page
+	 * @exception InsertException        error when apply buffered messages
+	 */
+	public void deleteRange(KeyClass lo_key, KeyClass hi_key) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException, UnpinPageException, FreePageException,
+			DeleteRecException, IndexSearchException, LeafDeleteException, InsertException {
+		applyPending(lo_key, hi_key);
+		PageId rootId = headerPage.get_rootId();
+		if (rootId.pid == INVALID_PAGE)
+			return;
+
+		if (!snapshots.isEmpty()) {
+			List<KeyDataEntry> doomed = new ArrayList<KeyDataEntry>();
+			BTCursor cursor = new_cursor(lo_key, hi_key);
+			try {
+				KeyDataEntry entry;
+				while ((entry = cursor.get_next()) != null)
+					doomed.add(entry);
+				cursor.DestroyBTreeFileScan();
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new IteratorException(e, "");
+			}
+			// from the back, so that the positions of the records of a value
+			// tree that are still to go do not change
+			for (int i = doomed.size() - 1; i >= 0; i--)
+				NaiveDelete(doomed.get(i).key, ((LeafData) doomed.get(i).data).getData());
+			return;
+		}
+
+		if (deleteRange(rootId, lo_key, hi_key, null, null))
+			updateHeader(new PageId(INVALID_PAGE));
+	}
+
+	/*
+	 * deletes the records in [lo_key, hi_key] below page pageno, whose keys are
+	 * known to lie in [lower, upper] (null for unbounded). Returns true if the
+	 * page has nothing left and was freed.
+	 */
+	private boolean deleteRange(PageId pageno, KeyClass lo_key, KeyClass hi_key, KeyClass lower, KeyClass upper)
+			throws IOException, IteratorException, KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException, FreePageException, DeleteRecException {
+		Page page = pinPage(pageno);
+		if (new BTSortedPage(page, headerPage.get_keyType()).getType() != NodeType.INDEX)
+			return trimLeaf(openLeaf(page), lo_key, hi_key);
+
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		PageId[] children = childIds(indexPage);
+		// child i holds keys in [bound[i], bound[i + 1]]
+		KeyClass[] bound = new KeyClass[children.length + 1];
+		bound[0] = lower;
+		bound[children.length] = upper;
+		RID rid = new RID();
+		int i = 1;
+		for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage.getNext(rid))
+			bound[i++] = entry.key;
+		unpinPage(pageno);
+
+		boolean[] gone = new boolean[children.length];
+		int runStart = -1; // first child of a run of children inside the range
+		for (i = 0; i <= children.length; i++) {
+			boolean inside = i < children.length
+					&& (lo_key == null || bound[i] != null && BT.keyCompare(lo_key, bound[i]) <= 0)
+					&& (hi_key == null || bound[i + 1] != null && BT.keyCompare(bound[i + 1], hi_key) <= 0);
+			if (inside) {
+				if (runStart < 0)
+					runStart = i;
+				continue;
+			}
+			if (runStart >= 0) {
+				// the run goes as a whole, its leaves are one piece of the chain
+				unlinkLeaves(edgeLeaf(children[runStart], false), edgeLeaf(children[i - 1], true));
+				for (int j = runStart; j < i; j++) {
+					_destroyFile(children[j]);
+					gone[j] = true;
+				}
+				runStart = -1;
+			}
+			if (i == children.length)
+				break;
+
+			boolean overlaps = (hi_key == null || bound[i] == null || BT.keyCompare(bound[i], hi_key) <= 0)
+					&& (lo_key == null || bound[i + 1] == null || BT.keyCompare(bound[i + 1], lo_key) >= 0);
+			if (overlaps)
+				gone[i] = deleteRange(children[i], lo_key, hi_key, bound[i], bound[i + 1]);
+		}
+
+		int left = 0;
+		for (boolean g : gone) {
+			if (!g)
+				left++;
+		}
+		if (left == 0) {
+			freeIndexPage(pageno);
+			return true;
+		}
+
+		indexPage = new BTIndexPage(pinPage(pageno), headerPage.get_keyType());
+		for (i = children.length - 1; i >= 1; i--) {
+			if (gone[i])
+				indexPage.deleteSortedRecord(new RID(pageno, i - 1));
+		}
+		if (gone[0]) {
+			// the first child that is left becomes the left-most one
+			indexPage.setPrevPage(childIds(indexPage)[1]);
+			indexPage.deleteSortedRecord(new RID(pageno, 0));
+		}
+		unpinPage(pageno, true /* = DIRTY */);
+		recountChildren(pageno);
+		return false;
+	}
+
+	/*
+	 * deletes the records in [lo_key, hi_key] from the pinned leafPage and
+	 * unpins it. An empty leaf page is taken out of the chain and freed.
+	 */
+	private boolean trimLeaf(BTLeafPage leafPage, KeyClass lo_key, KeyClass hi_key) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException, PinPageException, UnpinPageException,
+			FreePageException, DeleteRecException {
+		PageId leafId = leafPage.getCurPage();
+		RID rid = new RID();
+		KeyDataEntry entry = leafPage.getFirst(rid);
+		while (entry != null) {
+			if (hi_key != null && BT.keyCompare(entry.key, hi_key) > 0)
+				break;
+			if (lo_key == null || BT.keyCompare(entry.key, lo_key) >= 0) {
+				// the records behind move down into this slot
+				leafPage.deleteSortedRecord(rid);
+				entry = leafPage.getCurrent(rid);
+			} else {
+				entry = leafPage.getNext(rid);
+			}
+		}
+
+		if (leafPage.getSlotCnt() > 0) {
+			unpinPage(leafId, true /* = DIRTY */);
+			return false;
+		}
+		unpinPage(leafId, true /* = DIRTY */);
+		unlinkLeaves(leafId, leafId);
+		freePage(leafId);
+		return true;
+	}
+
+	/*
+	 * deletes the entry of index page parentId that leads to childId; the child
+	 * page itself is left alone. Returns true if childId is the only child, the
+	 * index page is not changed then.
+	 */
+	boolean removeChild(PageId parentId, PageId childId) throws IOException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException, DeleteRecException {
+		BTIndexPage indexPage = new BTIndexPage(pinPage(parentId), headerPage.get_keyType());
+		PageId[] children = childIds(indexPage);
+		if (children.length == 1) {
+			unpinPage(parentId);
+			return true;
+		}
+
+		int pos = childPosition(indexPage, childId);
+		if (pos == 0) {
+			// the next child becomes the left-most one
+			indexPage.setPrevPage(children[1]);
+			indexPage.deleteSortedRecord(new RID(parentId, 0));
+		} else {
+			// the child to the left takes over the key range
+			indexPage.deleteSortedRecord(new RID(parentId, pos - 1));
+		}
+		unpinPage(parentId, true /* = DIRTY */);
+		recountChildren(parentId);
+		return false;
+	}
+
+	/*
+	 * frees an index page whose children are gone, with its counts page.
+	 */
+	void freeIndexPage(PageId pageno)
+			throws IOException, PinPageException, UnpinPageException, ConstructPageException, FreePageException {
+		PageId countsId = new BTIndexPage(pinPage(pageno), headerPage.get_keyType()).getNextPage();
+		unpinPage(pageno);
+		freePage(pageno);
+		if (isCounted() && countsId.pid != INVALID_PAGE)
+			freePage(countsId);
+	}
+
+	/*
+	 * links the neighbours of the piece first..last of the leaf chain to each
+	 * other.
+	 */
+	void unlinkLeaves(PageId first, PageId last)
+			throws IOException, PinPageException, UnpinPageException, ConstructPageException {
+		BTSortedPage page = new BTSortedPage(pinPage(first), headerPage.get_keyType());
+		PageId prevId = page.getPrevPage();
+		unpinPage(first);
+		page = new BTSortedPage(pinPage(last), headerPage.get_keyType());
+		PageId nextId = page.getNextPage();
+		unpinPage(last);
+
+		if (prevId.pid != INVALID_PAGE) {
+			new BTSortedPage(pinPage(prevId), headerPage.get_keyType()).setNextPage(nextId);
+			unpinPage(prevId, true /* = DIRTY */);
+		}
+		if (nextId.pid != INVALID_PAGE) {
+			new BTSortedPage(pinPage(nextId), headerPage.get_keyType()).setPrevPage(prevId);
+			unpinPage(nextId, true /* = DIRTY */);
+		}
+	}
+
+	/*
+	 * moves the records of the pinned leafPage into its pinned left neighbour
+	 * prevPage, which hangs below the same index page parentId, and frees
+	 * leafPage. Both pages are unpinned.
+	 */
+	void mergeLeaves(BTLeafPage leafPage, BTLeafPage prevPage, PageId parentId)
+			throws IOException, IteratorException, ConstructPageException, PinPageException, UnpinPageException,
+			FreePageException, DeleteRecException, LeafInsertRecException {
+		PageId leafId = leafPage.getCurPage();
+		PageId prevId = prevPage.getCurPage();
+
+		RID rid = new RID();
+		for (KeyDataEntry entry = leafPage.getFirst(rid); entry != null; entry = leafPage.getNext(rid)) {
+			if (prevPage instanceof BTValueLeafPage)
+				((BTValueLeafPage) prevPage).insertValueRecord(((BTValueLeafPage) leafPage).recordAt(rid));
+			else
+				prevPage.insertRecord(entry.key, ((LeafData) entry.data).getData());
+		}
+		unpinPage(prevId, true /* = DIRTY */);
+		unpinPage(leafId);
+		unlinkLeaves(leafId, leafId);
+
+		// the separator of leafPage goes, so prevPage takes over its key range
+		removeChild(parentId, leafId);
+		freePage(leafId);
+	}
+
+	/*
+	 * the left-most or right-most leaf page below pageno.
+	 */
+	private PageId edgeLeaf(PageId pageno, boolean rightmost)
+			throws IOException, IteratorException, PinPageException, UnpinPageException, ConstructPageException {
+		while (true) {
+			Page page = pinPage(pageno);
+			if (new BTSortedPage(page, headerPage.get_keyType()).getType() != NodeType.INDEX) {
+				unpinPage(pageno);
+				return pageno;
+			}
+			PageId[] children = childIds(new BTIndexPage(page, headerPage.get_keyType()));
+			unpinPage(pageno);
+			pageno = children[rightmost ? children.length - 1 : 0];
+		}
+	}
+
+	/*
+	 * findRunStart. Status BTreeFile::findRunStart (const void lo_key, RID
+	 * *pstartrid)
+	 * 
+	 * find left-most occurrence of `lo_key', going all the way left if lo_key is
+	 * null.
+	 * 
+	 * Starting record returned in *pstartrid, on page *pppage, which is pinned.
+	 * 
+	 * Since we allow duplicates, this must "go left" as described in the text (for
+	 * the search algorithm).
+	 * 
+	 * @param lo_key find left-most occurrence of `lo_key', going all the way left
+	 * if lo_key is null.
+	 * 
+	 * @param startrid it will reurn the first rid =< lo_key
+	 * 
+	 * @return return a BTLeafPage instance which is pinned. null if no key was
+	 * found.
+	 */
+
+	BTLeafPage findRunStart(KeyClass lo_key, RID startrid) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		BTLeafPage pageLeaf;
+		Page page;
+		PageId pageno;
+		PageId curpageno = null; // iterator
+		PageId nextpageno;
+		RID curRid;
+		KeyDataEntry curEntry;
+
+		pageno = headerPage.get_rootId();
+
+		if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
+			pageLeaf = null; // should be handled by
+			// startrid =INVALID_PAGEID ; // the caller
+			return pageLeaf;
+		}
+
+		// the index levels are read in place, see BTPageViews
+		BTPageViews views = BTPageViews.get();
+		page = pinPage(pageno, views.page);
+
+		if (trace != null) {
+			trace.writeBytes("VISIT node " + pageno + lineSep);
+			trace.flush();
+		}
+
+		// ASSERTION
+		// - pageno and page is the root of the btree
+		// - pageno and page valid and pinned
+
+		while (BTPageViews.type(page) == NodeType.INDEX) {
+			// the child left of the first separator >= lo_key
+			int child = views.child(page, lo_key, false, headerPage.get_keyType());
+
+			unpinPage(pageno);
+
+			pageno.pid = child;
+			page = pinPage(pageno, views.page);
+
+			if (trace != null) {
+				trace.writeBytes("VISIT node " + pageno + lineSep);
+				trace.flush();
+			}
+
+		}
+
+		pageLeaf = openLeaf(page);
 
-		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
-
 		curEntry = pageLeaf.getFirst(startrid);
 		while (curEntry == null) {
 			// skip empty leaf pages off to left
@@ -723,7 +1698,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			}
 
 			pageno = nextpageno;
-			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
+			pageLeaf = openLeaf(pinPage(pageno));
 			curEntry = pageLeaf.getFirst(startrid);
 		}
 
@@ -749,7 +1724,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				}
 
 				pageno = nextpageno;
-				pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
+				pageLeaf = openLeaf(pinPage(pageno));
 
 				curEntry = pageLeaf.getFirst(startrid);
 			}
@@ -758,6 +1733,138 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return pageLeaf;
 	}
 
+	/*
+	 * the leaf page that a search for lo_key goes to, pinned, for a
+	 * BTMultiRangeScan; null if the tree is empty. The descent starts at the
+	 * index page on level `level' of the path of the scan's last descent, the
+	 * root for level 0, and stores the index pages it passes in scan.path. A
+	 * descent from scan.path[i] goes the same way as one from the root for keys
+	 * up to scan.bounds[i], null for any key. Unlike findRunStart the leaf page
+	 * may hold no record >= lo_key.
+	 */
+	BTLeafPage descend(BTMultiRangeScan scan, KeyClass lo_key, int level) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException, UnpinPageException {
+		PageId pageno = new PageId(level == 0 ? headerPage.get_rootId().pid : scan.path[level]);
+		if (pageno.pid == INVALID_PAGE)
+			return null;
+
+		BTPageViews views = BTPageViews.get();
+		int keyType = headerPage.get_keyType();
+		Page page = pinPage(pageno, views.page);
+		if (level == 0)
+			scan.bounds[0] = null;
+		while (BTPageViews.type(page) == NodeType.INDEX) {
+			if (level + 1 == scan.path.length) {
+				scan.path = Arrays.copyOf(scan.path, 2 * scan.path.length);
+				scan.bounds = Arrays.copyOf(scan.bounds, 2 * scan.bounds.length);
+			}
+			scan.path[level] = pageno.pid;
+			KeyClass bound = scan.bounds[level];
+			KeyClass next = views.nextSeparator(page, lo_key, keyType);
+			if (next != null && (bound == null || BT.keyCompare(next, bound) < 0))
+				bound = next;
+			scan.bounds[level + 1] = bound;
+			int child = views.child(page, lo_key, false, keyType);
+
+			unpinPage(pageno);
+			pageno.pid = child;
+			page = pinPage(pageno, views.page);
+			level++;
+		}
+		scan.depth = level;
+		return openLeaf(page);
+	}
+
+	/*
+	 * findRunEnd. The mirror image of findRunStart.
+	 * 
+	 * find right-most occurrence of `hi_key', going all the way right if hi_key is
+	 * null.
+	 * 
+	 * The descent follows the right-most child whose separator is <= hi_key, since
+	 * every child to the right of it only holds keys bigger than hi_key. Leaf pages
+	 * that hold no record <= hi_key (empty pages, or a page whose separator was left
+	 * behind by a delete) are skipped by walking the prevPage links to the left.
+	 * 
+	 * @param hi_key find right-most occurrence of `hi_key', going all the way right
+	 * if hi_key is null.
+	 * 
+	 * @param endrid it will return the last rid =< hi_key
+	 * 
+	 * @return return a BTLeafPage instance which is pinned. null if no key was
+	 * found.
+	 */
+
+	BTLeafPage findRunEnd(KeyClass hi_key, RID endrid) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		BTLeafPage pageLeaf;
+		Page page;
+		PageId pageno;
+		PageId prevpageno;
+		KeyDataEntry curEntry;
+		int lastSlot;
+
+		pageno = headerPage.get_rootId();
+
+		if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
+			return null;
+		}
+
+		BTPageViews views = BTPageViews.get();
+		page = pinPage(pageno, views.page);
+
+		if (trace != null) {
+			trace.writeBytes("VISIT node " + pageno + lineSep);
+			trace.flush();
+		}
+
+		while (BTPageViews.type(page) == NodeType.INDEX) {
+			// the child of the last separator <= hi_key
+			int child = views.child(page, hi_key, true, headerPage.get_keyType());
+
+			unpinPage(pageno);
+
+			pageno.pid = child;
+			page = pinPage(pageno, views.page);
+
+			if (trace != null) {
+				trace.writeBytes("VISIT node " + pageno + lineSep);
+				trace.flush();
+			}
+
+		}
+
+		pageLeaf = openLeaf(page);
+
+		while (true) {
+			// looking for the last record <= hi_key on this page
+			lastSlot = -1;
+			curEntry = pageLeaf.getFirst(endrid);
+			while (curEntry != null && (hi_key == null || BT.keyCompare(curEntry.key, hi_key) <= 0)) {
+				lastSlot = endrid.slotNo;
+				curEntry = pageLeaf.getNext(endrid);
+			}
+
+			if (lastSlot >= 0) {
+				endrid.slotNo = lastSlot;
+				return pageLeaf;
+				// note that pageno/pageLeaf is still pinned;
+				// scan will unpin it when done
+			}
+
+			// nothing <= hi_key on this page, have to go left
+			prevpageno = pageLeaf.getPrevPage();
+			unpinPage(pageno);
+
+			if (prevpageno.pid == INVALID_PAGE) {
+				return null;
+			}
+
+			pageno = prevpageno;
+			pageLeaf = openLeaf(pinPage(pageno));
+		}
+	}
+
 	/*
 	 * Status BTreeFile::NaiveDelete (const void *key, const RID rid)
 	 * 
@@ -799,36 +1906,53 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 					return false;
 				}
 
-				leafPage = new BTLeafPage(pinPage(nextpage), headerPage.get_keyType());
+				leafPage = leafView(pinPage(nextpage, BTPageViews.get().page));
 				entry = leafPage.getFirst(new RID());
 			}
 
 			// checking if leaf has to be traversed anymore
-			if (BT.keyCompare(key, entry.key) > 0) {
+			if (BT.keyCompare(entry.key, key) > 0) {
 				// current key is greater than required key
 				break;
 			}
 
 			KeyDataEntry keyToDelete = new KeyDataEntry(key, rid);
 
+			if (isShared(leafPage.getCurPage())) {
+				// a snapshot still reads this page, delete from a private copy
+				PageId leafPageId = leafPage.getCurPage();
+				if (!leafHolds(leafPage, keyToDelete)) {
+					entry = null;
+					continue;
+				}
+				unpinPage(leafPageId);
+
+				PageId rootId = headerPage.get_rootId();
+				List<PageId> path = copyPathToLeaf(rootId, key, leafPageId);
+				if (path == null)
+					throw new IndexSearchException(null, "leaf page not reachable from the root");
+				if (path.get(0).pid != rootId.pid)
+					updateHeader(path.get(0));
+				leafPage = openLeaf(pinPage(path.get(path.size() - 1)));
+			}
+
 			if (leafPage.delEntry(keyToDelete) == true) {
 				// found the <key,rid> and deleted it.
 				// end search here
 				// unpinning the page to since it is dirty
-				unpinPage(leafPage.getCurPage(), true);
+				PageId leafPageId = leafPage.getCurPage();
+				unpinPage(leafPageId, true);
+
+				if (isCounted())
+					adjustCounts(headerPage.get_rootId(), key, leafPageId, -1);
 
 				// successfully deleted.
 				return true;
 			}
 
 			// end of current page reached. Shifting to next page
-			nextpage = leafPage.getNextPage();
-			unpinPage(leafPage.getCurPage(), true);
-
-			// assigning nextPage in leafPage
-			leafPage = new BTLeafPage(pinPage(nextpage), headerPage.get_keyType());
-
-			entry = leafPage.getFirst(currentRid);
+			// (the loop above unpins it and stops at the end of the leaf list)
+			entry = null;
 		}
 		// key not found. Returning unsuccessfully
 		unpinPage(leafPage.getCurPage());
@@ -836,30 +1960,960 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	/**
-	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null scan
-	 * the whole index (2) lo_key = null, hi_key!= null range scan from min to the
-	 * hi_key (3) lo_key!= null, hi_key = null range scan from the lo_key to max (4)
-	 * lo_key!= null, hi_key!= null, lo_key = hi_key exact match ( might not unique)
-	 * (5) lo_key!= null, hi_key!= null, lo_key < hi_key range scan from lo_key to
-	 * hi_key
+	 * look up the first record with the given key. On a tree created with
+	 * IndexOption.BLOOM most keys that are not in the tree are turned away by the
+	 * Bloom filter, without descending the tree. On a tree created with
+	 * IndexOption.ADAPTIVE_HASH the keys that are looked up often are found with a
+	 * single page pin through the hash index.
 	 *
-	 * @param lo_key the key where we begin scanning. Input parameter.
-	 * @param hi_key the key where we stop scanning. Input parameter.
+	 * @param key the key to look for. Input parameter.
+	 * @return the first record with this key, or null if there is none
 	 * @exception IOException            error from the lower layer
-	 * @exception KeyNotMatchException   key is not integer key nor string key
 	 * @exception IteratorException      iterator error
+	 * @exception KeyNotMatchException   key is not integer key nor string key
 	 * @exception ConstructPageException error in BT page constructor
 	 * @exception PinPageException       error when pin a page
 	 * @exception UnpinPageException     error when unpin a page
 	 */
-	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key) throws IOException, KeyNotMatchException,
-			IteratorException, ConstructPageException, PinPageException, UnpinPageException
-
-	{
-		BTFileScan scan = new BTFileScan();
-		if (headerPage.get_rootId().pid == INVALID_PAGE) {
-			scan.leafPage = null;
-			return scan;
+	public KeyDataEntry lookup(KeyClass key) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (hasBloomFilter() && !bloomMayContain(key))
+			return null;
+
+		if (isBuffered()) {
+			List<BTMessageBuffer.Message> pending;
+			try {
+				pending = messageBuffer().forKey(key);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new IteratorException(e, "");
+			}
+			if (!pending.isEmpty())
+				return lookupBuffered(key, pending);
+		}
+		if (hasChangeBuffer()) {
+			// the leaf page is read now, so its changes are applied too
+			try {
+				for (BTMessageBuffer.Message message : new ArrayList<BTMessageBuffer.Message>(
+						changeBuffer().forKey(key)))
+					mergeTarget(message.target);
+				if (headerPage.get_rootId().pid != INVALID_PAGE)
+					mergeTarget(leafFor(key));
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new IteratorException(e, "");
+			}
+		}
+
+		if (hasHashIndex()) {
+			KeyDataEntry entry = hashLookup(key);
+			if (entry != null)
+				return entry;
+		}
+
+		RID rid = new RID();
+		BTLeafPage leafPage = findRunStart(key, rid);
+		if (leafPage == null)
+			return null;
+
+		KeyDataEntry entry = leafPage.getCurrent(rid);
+		boolean found = entry != null && BT.keyCompare(entry.key, key) == 0;
+		if (found && hasHashIndex() && hashIndex().hit(key))
+			hashIndex.put(key, leafPage.getCurPage().pid, rid.slotNo, leafPage.getPrevPage().pid);
+		unpinPage(leafPage.getCurPage());
+		return found ? entry : null;
+	}
+
+	private BTHashIndex hashIndex() {
+		if (hashIndex == null)
+			hashIndex = new BTHashIndex();
+		return hashIndex;
+	}
+
+	/*
+	 * lookup() through the hash index: the record at the position kept for key,
+	 * or null if there is none or the slot holds another key by now.
+	 */
+	private KeyDataEntry hashLookup(KeyClass key) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		int[] position = hashIndex().get(key);
+		if (position == null)
+			return null;
+
+		PageId leafId = new PageId(position[0]);
+		BTLeafPage leafPage = openLeaf(pinPage(leafId));
+		KeyDataEntry entry = null;
+		if (leafPage.getType() == NodeType.LEAF && position[1] < leafPage.getSlotCnt())
+			entry = leafPage.getCurrent(new RID(leafId, position[1]));
+		unpinPage(leafId);
+		if (entry != null && BT.keyCompare(entry.key, key) == 0)
+			return entry;
+		hashIndex.remove(key);
+		return null;
+	}
+
+	/**
+	 * store a value under a key in a tree created with IndexOption.VALUES. A
+	 * value already stored under the key is replaced. The value is kept in the
+	 * leaf page if it is at most BTValueLeafPage.MAX_INLINE bytes long, else in
+	 * overflow pages of its own.
+	 *
+	 * @param key   the key. Input parameter.
+	 * @param value the value. Input parameter.
+	 * @exception KeyTooLongException     key size exceeds the max keysize
+	 * @exception KeyNotMatchException    key is not integer key nor string key
+	 * @exception IOException             error from the lower layer
+	 * @exception LeafInsertRecException  insert error in leaf page
+	 * @exception IndexInsertRecException insert error in index page
+	 * @exception ConstructPageException  error in BT page constructor
+	 * @exception UnpinPageException      error when unpin a page
+	 * @exception PinPageException        error when pin a page
+	 * @exception NodeNotMatchException   node not match index page nor leaf page
+	 * @exception ConvertException        error when convert between revord and byte
+	 *                                    array
+	 * @exception DeleteRecException      error when delete in index page
+	 * @exception IndexSearchException    error when search
+	 * @exception IteratorException       iterator error
+	 * @exception LeafDeleteException     error when delete in leaf page
+	 * @exception InsertException         error when insert in index page, or
+	 *                                    the tree holds no values
+	 */
+	public void put(KeyClass key, byte[] value) throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException, ConstructPageException, UnpinPageException,
+			PinPageException, NodeNotMatchException, ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException, IOException {
+		if (!hasValues())
+			throw new InsertException(null, "the tree holds rids, use insert()");
+
+		remove(key);
+		if (hasBloomFilter())
+			bloomAdd(key);
+		insertIntoTree(key, null, BTValueLeafPage.makeRecord(key, value));
+	}
+
+	/**
+	 * read the value stored under a key in a tree created with
+	 * IndexOption.VALUES.
+	 *
+	 * @param key the key. Input parameter.
+	 * @return the value, or null if there is none
+	 * @exception IOException            error from the lower layer
+	 * @exception IteratorException      iterator error
+	 * @exception KeyNotMatchException   key is not integer key nor string key
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 */
+	public byte[] get(KeyClass key) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (!hasValues())
+			throw new IteratorException(null, "the tree holds rids, use lookup()");
+
+		KeyDataEntry entry = lookup(key);
+		if (entry == null)
+			return null;
+		// the leaf page lookup() read is still in the pool
+		RID position = ((LeafData) entry.data).getData();
+		BTValueLeafPage leafPage = (BTValueLeafPage) openLeaf(pinPage(position.pageNo));
+		byte[] value = leafPage.getValue(position);
+		unpinPage(position.pageNo);
+		return value;
+	}
+
+	/**
+	 * delete the value stored under a key in a tree created with
+	 * IndexOption.VALUES, and its overflow pages.
+	 *
+	 * @param key the key. Input parameter.
+	 * @return false if there is no value under the key
+	 * @exception IOException            error from the lower layer
+	 * @exception IteratorException      iterator error
+	 * @exception KeyNotMatchException   key is not integer key nor string key
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 * @exception IndexSearchException   error when search
+	 * @exception LeafDeleteException    error when delete in leaf page
+	 */
+	public boolean remove(KeyClass key) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException, IndexSearchException, LeafDeleteException {
+		if (!hasValues())
+			throw new IteratorException(null, "the tree holds rids, use Delete()");
+
+		KeyDataEntry entry = lookup(key);
+		if (entry == null)
+			return false;
+		return NaiveDelete(key, ((LeafData) entry.data).getData());
+	}
+
+	/*
+	 * lookup() for a key with messages in the buffer: the newest insert that is
+	 * not deleted again, or else the first record in the tree that no message
+	 * deletes.
+	 */
+	private KeyDataEntry lookupBuffered(KeyClass key, List<BTMessageBuffer.Message> pending) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException, PinPageException, UnpinPageException {
+		List<RID> deleted = new ArrayList<RID>();
+		for (int i = pending.size() - 1; i >= 0; i--) {
+			BTMessageBuffer.Message message = pending.get(i);
+			if (message.op == BTMessageBuffer.DELETE)
+				deleted.add(message.rid);
+			else if (!containsRid(deleted, message.rid))
+				return new KeyDataEntry(key, message.rid);
+		}
+
+		RID rid = new RID();
+		BTLeafPage leafPage = findRunStart(key, rid);
+		KeyDataEntry entry = leafPage == null ? null : leafPage.getCurrent(rid);
+		while (entry != null && BT.keyCompare(entry.key, key) == 0) {
+			if (!containsRid(deleted, ((LeafData) entry.data).getData())) {
+				unpinPage(leafPage.getCurPage());
+				return entry;
+			}
+			entry = leafPage.getNext(rid);
+			if (entry == null) {
+				PageId nextpage = leafPage.getNextPage();
+				unpinPage(leafPage.getCurPage());
+				leafPage = nextpage.pid == INVALID_PAGE ? null : openLeaf(pinPage(nextpage));
+				entry = leafPage == null ? null : leafPage.getFirst(rid);
+			}
+		}
+		if (leafPage != null)
+			unpinPage(leafPage.getCurPage());
+		return null;
+	}
+
+	private static boolean containsRid(List<RID> rids, RID rid) {
+		for (RID r : rids) {
+			if (r.pageNo.pid == rid.pageNo.pid && r.slotNo == rid.slotNo)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * rebuild the Bloom filter from the keys in the tree, in a run of pages sized
+	 * for them. Deleted keys stay in the filter until it is rebuilt; this is also
+	 * the step to run after loading or reorganizing a tree. insert() and put()
+	 * rebuild the filter by themselves when more keys were added than it was
+	 * sized for.
+	 *
+	 * @exception IOException            error from the lower layer
+	 * @exception IteratorException      iterator error
+	 * @exception KeyNotMatchException   key is not integer key nor string key
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 * @exception InsertException        error when apply buffered messages
+	 */
+	public void rebuildBloomFilter() throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException, InsertException {
+		if (!hasBloomFilter())
+			return;
+
+		// the keys waiting in the buffers have to be in the filter as well
+		applyPending(null, null);
+		int keys = 0;
+		RID rid = new RID();
+		for (BTLeafPage leafPage = findRunStart(null, rid); leafPage != null; leafPage = nextLeaf(leafPage)) {
+			for (KeyDataEntry entry = leafPage.getFirst(rid); entry != null; entry = leafPage.getNext(rid))
+				keys++;
+		}
+
+		try {
+			freeBloomFilter();
+		} catch (FreePageException e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+		// room for twice the keys, so that it is not rebuilt again right away
+		long bits = 2L * keys * BLOOM_BITS_PER_KEY;
+		createBloomFilter((int) Math.max(BLOOM_PAGES, (bits + MINIBASE_PAGESIZE * 8 - 1) / (MINIBASE_PAGESIZE * 8)));
+
+		for (BTLeafPage leafPage = findRunStart(null, rid); leafPage != null; leafPage = nextLeaf(leafPage)) {
+			for (KeyDataEntry entry = leafPage.getFirst(rid); entry != null; entry = leafPage.getNext(rid))
+				bloomSet(entry.key);
+		}
+		setHeaderInt(BLOOM_KEYS_SLOT, keys);
+	}
+
+	/*
+	 * unpins leafPage and returns its right neighbour, pinned, or null at the end
+	 * of the leaf chain.
+	 */
+	private BTLeafPage nextLeaf(BTLeafPage leafPage) throws IOException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		PageId nextpage = leafPage.getNextPage();
+		unpinPage(leafPage.getCurPage());
+		return nextpage.pid == INVALID_PAGE ? null : openLeaf(pinPage(nextpage));
+	}
+
+	private void createBloomFilter(int pages) throws IOException, ConstructPageException {
+		Page page = new Page();
+		PageId bloomStart;
+		try {
+			bloomStart = SystemDefs.JavabaseBM.newPage(page, pages);
+			// the run comes straight from the space map, so clear every page of it
+			for (int i = 0; i < pages; i++) {
+				PageId pageno = new PageId(bloomStart.pid + i);
+				SystemDefs.JavabaseBM.pinPage(pageno, page, true /* = empty page */);
+				java.util.Arrays.fill(page.getpage(), (byte) 0);
+				SystemDefs.JavabaseBM.unpinPage(pageno, true /* = DIRTY */);
+			}
+			SystemDefs.JavabaseBM.unpinPage(bloomStart, true /* = DIRTY */);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+		setHeaderInt(BLOOM_SLOT, bloomStart.pid);
+		setHeaderInt(BLOOM_SIZE_SLOT, pages);
+		setHeaderInt(BLOOM_KEYS_SLOT, 0);
+	}
+
+	private void freeBloomFilter() throws IOException, FreePageException {
+		int bloomStart = getHeaderInt(BLOOM_SLOT);
+		int pages = getHeaderInt(BLOOM_SIZE_SLOT);
+		for (int i = 0; i < pages; i++)
+			freePage(new PageId(bloomStart + i));
+	}
+
+	/*
+	 * adds key to the Bloom filter, after a rebuild if the filter holds as many
+	 * keys as it was sized for.
+	 */
+	private void bloomAdd(KeyClass key) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException, InsertException {
+		int keys = getHeaderInt(BLOOM_KEYS_SLOT);
+		if ((long) keys * BLOOM_BITS_PER_KEY >= (long) getHeaderInt(BLOOM_SIZE_SLOT) * MINIBASE_PAGESIZE * 8) {
+			rebuildBloomFilter();
+			keys = getHeaderInt(BLOOM_KEYS_SLOT);
+		}
+		bloomSet(key);
+		setHeaderInt(BLOOM_KEYS_SLOT, keys + 1);
+	}
+
+	private void bloomSet(KeyClass key) throws IOException, PinPageException, UnpinPageException {
+		long hash = keyHash(key);
+		PageId pageno = bloomPage(hash);
+		byte[] bits = pinPage(pageno).getpage();
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			int bit = bloomBit(hash, i);
+			bits[bit >>> 3] |= (byte) (1 << (bit & 7));
+		}
+		unpinPage(pageno, true /* = DIRTY */);
+	}
+
+	private boolean bloomMayContain(KeyClass key) throws IOException, PinPageException, UnpinPageException {
+		long hash = keyHash(key);
+		PageId pageno = bloomPage(hash);
+		byte[] bits = pinPage(pageno).getpage();
+		boolean found = true;
+		for (int i = 0; i < BLOOM_HASHES && found; i++) {
+			int bit = bloomBit(hash, i);
+			found = (bits[bit >>> 3] & (1 << (bit & 7))) != 0;
+		}
+		unpinPage(pageno);
+		return found;
+	}
+
+	private PageId bloomPage(long hash) throws IOException {
+		return new PageId(getHeaderInt(BLOOM_SLOT) + (int) ((hash >>> 48) % getHeaderInt(BLOOM_SIZE_SLOT)));
+	}
+
+	private static int bloomBit(long hash, int i) {
+		// double hashing on the two low 24 bit halves of the hash
+		int h1 = (int) hash & 0xffffff;
+		int h2 = (int) (hash >>> 24) & 0xffffff | 1;
+		return (h1 + i * h2) & (MINIBASE_PAGESIZE * 8 - 1);
+	}
+
+	private static long keyHash(KeyClass key) {
+		long h = key instanceof IntegerKey ? ((IntegerKey) key).getKey() : ((StringKey) key).getKey().hashCode();
+		// murmur3 finalizer, spreads the bits of small integer keys
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * open a snapshot of the tree as it is now. Later inserts and deletes through
+	 * this BTreeFile copy every page the snapshot still reads before changing it
+	 * and publish the new root in the header, so scans of the snapshot see a
+	 * consistent version while the tree keeps changing. Replaced pages are freed
+	 * once no snapshot reads them any more.
+	 *
+	 * While snapshots are open, records must be deleted with Delete(); the
+	 * delete_current of a scan changes the page in place.
+	 *
+	 * @return the snapshot. Close it to release its pages.
+	 * @exception IOException      error from the lower layer
+	 * @exception InsertException error when apply buffered messages
+	 */
+	public BTSnapshot snapshot() throws IOException, InsertException {
+		applyPending(null, null);
+		// every page there is now belongs to the new snapshot too
+		ownedPages.clear();
+		BTSnapshot snapshot = new BTSnapshot(this, headerPage.get_rootId(), ++snapshotEpoch);
+		snapshots.add(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * @return true if a snapshot of this tree is open.
+	 */
+	public boolean hasSnapshots() {
+		return !snapshots.isEmpty();
+	}
+
+	/*
+	 * called by BTSnapshot.close; frees the replaced pages no snapshot reads.
+	 */
+	void releaseSnapshot(BTSnapshot snapshot) throws FreePageException {
+		snapshots.remove(snapshot);
+
+		int oldest = Integer.MAX_VALUE;
+		for (BTSnapshot open : snapshots)
+			oldest = Math.min(oldest, open.epoch);
+
+		Iterator<int[]> it = retiredPages.iterator();
+		while (it.hasNext()) {
+			int[] retired = it.next();
+			if (retired[1] < oldest) {
+				freePage(new PageId(retired[0]));
+				it.remove();
+			}
+		}
+		if (snapshots.isEmpty())
+			ownedPages.clear();
+	}
+
+	/*
+	 * a page is shared if a snapshot may read it, i.e. it was there when the
+	 * newest snapshot was taken and has not been copied since.
+	 */
+	private boolean isShared(PageId pageno) {
+		return !snapshots.isEmpty() && !ownedPages.contains(pageno.pid);
+	}
+
+	private void pageCreated(PageId pageno) {
+		if (!snapshots.isEmpty())
+			ownedPages.add(pageno.pid);
+	}
+
+	/*
+	 * copies the pages _insert will visit for `key' that are still shared.
+	 * 
+	 * @return the id of the (possibly copied) page pageno.
+	 */
+	private PageId copyPathByKey(PageId pageno, KeyClass key) throws IOException, PinPageException,
+			UnpinPageException, ConstructPageException, IndexSearchException, IteratorException {
+		Page page = pinPage(pageno);
+		BTSortedPage sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		if (sortPage.getType() == NodeType.INDEX) {
+			PageId childId = new BTIndexPage(page, headerPage.get_keyType()).getPageNoByKey(key);
+			unpinPage(pageno);
+
+			PageId newChildId = copyPathByKey(childId, key);
+			PageId newPageno = copyShared(pageno);
+			if (newChildId.pid != childId.pid)
+				setChildId(newPageno, childId, newChildId);
+			return newPageno;
+		}
+
+		unpinPage(pageno);
+		return copyShared(pageno);
+	}
+
+	/*
+	 * copies the shared pages on the path from pageno down to leaf page leafId,
+	 * which holds `key'.
+	 * 
+	 * @return the ids of the (possibly copied) pages on the path, pageno first
+	 * and the leaf page last, or null if leafId is not below pageno.
+	 */
+	private List<PageId> copyPathToLeaf(PageId pageno, KeyClass key, PageId leafId) throws IOException,
+			PinPageException, UnpinPageException, ConstructPageException, IteratorException, KeyNotMatchException {
+		if (pageno.pid == leafId.pid) {
+			List<PageId> path = new ArrayList<PageId>();
+			path.add(copyShared(pageno));
+			return path;
+		}
+
+		Page page = pinPage(pageno);
+		BTSortedPage sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		if (sortPage.getType() != NodeType.INDEX) {
+			unpinPage(pageno);
+			return null;
+		}
+
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		PageId[] children = childIds(indexPage);
+		int[] range = keyChildRange(indexPage, key);
+		unpinPage(pageno);
+
+		for (int pos = range[0]; pos <= range[1]; pos++) {
+			List<PageId> path = copyPathToLeaf(children[pos], key, leafId);
+			if (path != null) {
+				PageId newChildId = path.get(0);
+				PageId newPageno = copyShared(pageno);
+				if (newChildId.pid != children[pos].pid)
+					setChildId(newPageno, children[pos], newChildId);
+				path.add(0, newPageno);
+				return path;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * returns pageno itself if it is private, otherwise a private copy of it. The
+	 * neighbours of a copied leaf are linked to the copy; snapshots never follow
+	 * leaf links, so they can be changed in place.
+	 */
+	private PageId copyShared(PageId pageno)
+			throws IOException, PinPageException, UnpinPageException, ConstructPageException {
+		if (!isShared(pageno))
+			return pageno;
+
+		PageId copyId;
+		try {
+			copyId = SystemDefs.JavabaseBM.newPage(new Page(), 1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+		unpinPage(copyId);
+		copyPage(pageno, copyId);
+
+		ownedPages.add(copyId.pid);
+		retiredPages.add(new int[] { pageno.pid, snapshotEpoch });
+		return copyId;
+	}
+
+	/*
+	 * copies page pageno to the allocated page copyId, which takes its place in
+	 * the leaf chain if it is a leaf page. pageno itself is not changed.
+	 */
+	void copyPage(PageId pageno, PageId copyId)
+			throws IOException, PinPageException, UnpinPageException, ConstructPageException {
+		// the tree reads the copy from now on
+		pageChanged(pageno.pid);
+		Page copy = pinPage(copyId);
+		System.arraycopy(pinPage(pageno).getpage(), 0, copy.getpage(), 0, MINIBASE_PAGESIZE);
+		unpinPage(pageno);
+
+		BTSortedPage copyPage = new BTSortedPage(copy, headerPage.get_keyType());
+		copyPage.setCurPage(copyId);
+		if (copyPage.getType() == NodeType.LEAF) {
+			PageId prevId = copyPage.getPrevPage();
+			PageId nextId = copyPage.getNextPage();
+			if (prevId.pid != INVALID_PAGE) {
+				new BTSortedPage(pinPage(prevId), headerPage.get_keyType()).setNextPage(copyId);
+				unpinPage(prevId, true);
+			}
+			if (nextId.pid != INVALID_PAGE) {
+				new BTSortedPage(pinPage(nextId), headerPage.get_keyType()).setPrevPage(copyId);
+				unpinPage(nextId, true);
+			}
+		}
+		unpinPage(copyId, true /* = DIRTY */);
+	}
+
+	/*
+	 * points the entry of index page pageno that leads to oldChild to newChild.
+	 */
+	void setChildId(PageId pageno, PageId oldChild, PageId newChild)
+			throws IOException, PinPageException, UnpinPageException, ConstructPageException, IteratorException {
+		BTIndexPage indexPage = new BTIndexPage(pinPage(pageno), headerPage.get_keyType());
+		if (indexPage.getPrevPage().pid == oldChild.pid) {
+			indexPage.setPrevPage(newChild);
+		} else {
+			// the child id is the last field of an index record
+			int slot = childPosition(indexPage, oldChild) - 1;
+			int offset = indexPage.getSlotOffset(slot) + indexPage.getSlotLength(slot) - 4;
+			Convert.setIntValue(newChild.pid, offset, indexPage.getpage());
+		}
+		unpinPage(pageno, true /* = DIRTY */);
+	}
+
+	private boolean leafHolds(BTLeafPage leafPage, KeyDataEntry target) throws IteratorException {
+		RID rid = new RID();
+		for (KeyDataEntry entry = leafPage.getFirst(rid); entry != null; entry = leafPage.getNext(rid)) {
+			if (entry.equals(target))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * count the records with lo_key <= key <= hi_key. A null key leaves that end
+	 * of the range open. On a tree created with IndexOption.COUNTED this takes two
+	 * descents; on other trees the subtrees have to be counted page by page.
+	 *
+	 * @param lo_key the lower bound of the range. Input parameter.
+	 * @param hi_key the upper bound of the range. Input parameter.
+	 * @return the number of records in the range
+	 * @exception IOException            error from the lower layer
+	 * @exception IteratorException      iterator error
+	 * @exception KeyNotMatchException   key is not integer key nor string key
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 * @exception InsertException        error when apply buffered messages
+	 */
+	public int count(KeyClass lo_key, KeyClass hi_key) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException, InsertException {
+		applyPending(lo_key, hi_key);
+		int below = lo_key == null ? 0 : _rank(lo_key, false);
+		int upto = _rank(hi_key, true);
+		return Math.max(upto - below, 0);
+	}
+
+	/**
+	 * rank of a key: the number of records whose key is smaller than `key'.
+	 *
+	 * @param key the key to rank. Input parameter.
+	 * @return the position the first record with this key has (or would have) in
+	 *         key order, counting from 0
+	 * @exception IOException            error from the lower layer
+	 * @exception IteratorException      iterator error
+	 * @exception KeyNotMatchException   key is not integer key nor string key
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 * @exception InsertException        error when apply buffered messages
+	 */
+	public int rank(KeyClass key) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException, InsertException {
+		applyPending(null, key);
+		return _rank(key, false);
+	}
+
+	/**
+	 * select the record at position `i' in key order, counting from 0.
+	 *
+	 * @param i the position of the record. Input parameter.
+	 * @return the record, or null if the tree holds no more than i records
+	 * @exception IOException            error from the lower layer
+	 * @exception IteratorException      iterator error
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 * @exception InsertException        error when apply buffered messages
+	 */
+	public KeyDataEntry select(int i) throws IOException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException, InsertException {
+		applyPending(null, null);
+		PageId pageno = headerPage.get_rootId();
+		if (i < 0 || pageno.pid == INVALID_PAGE)
+			return null;
+
+		Page page = pinPage(pageno);
+		BTSortedPage sortPage = new BTSortedPage(page, headerPage.get_keyType());
+
+		while (sortPage.getType() == NodeType.INDEX) {
+			BTIndexPage pageIndex = new BTIndexPage(page, headerPage.get_keyType());
+			PageId[] children = childIds(pageIndex);
+			int[] counts = getChildCounts(pageIndex);
+			unpinPage(pageno);
+
+			// skipping the children that end before position i
+			int pos = 0;
+			while (pos < children.length - 1 && i >= counts[pos]) {
+				i -= counts[pos];
+				pos++;
+			}
+
+			pageno = children[pos];
+			page = pinPage(pageno);
+			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		}
+
+		BTLeafPage pageLeaf = openLeaf(page);
+		KeyDataEntry entry = null;
+		if (i < pageLeaf.getSlotCnt()) {
+			RID rid = new RID();
+			rid.slotNo = i;
+			entry = pageLeaf.getCurrent(rid);
+		}
+		unpinPage(pageno);
+		return entry;
+	}
+
+	/*
+	 * number of records with a key < `key', or <= `key' if inclusive. A null key
+	 * counts all records.
+	 */
+	private int _rank(KeyClass key, boolean inclusive) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException, UnpinPageException {
+		PageId pageno = headerPage.get_rootId();
+		if (pageno.pid == INVALID_PAGE)
+			return 0;
+
+		int rank = 0;
+		RID rid = new RID();
+		KeyDataEntry entry;
+		Page page = pinPage(pageno);
+		BTSortedPage sortPage = new BTSortedPage(page, headerPage.get_keyType());
+
+		while (sortPage.getType() == NodeType.INDEX) {
+			BTIndexPage pageIndex = new BTIndexPage(page, headerPage.get_keyType());
+			int[] counts = getChildCounts(pageIndex);
+			PageId childno = pageIndex.getPrevPage();
+			int pos = 0;
+
+			// every child left of the one holding `key' counts in full
+			for (entry = pageIndex.getFirst(rid); entry != null; entry = pageIndex.getNext(rid)) {
+				int cmp = key == null ? -1 : BT.keyCompare(entry.key, key);
+				if (cmp > 0 || (cmp == 0 && !inclusive))
+					break;
+				rank += counts[pos++];
+				childno = ((IndexData) entry.data).getData();
+			}
+
+			unpinPage(pageno);
+			pageno = childno;
+			page = pinPage(pageno);
+			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		}
+
+		BTLeafPage pageLeaf = openLeaf(page);
+		for (entry = pageLeaf.getFirst(rid); entry != null; entry = pageLeaf.getNext(rid)) {
+			int cmp = key == null ? -1 : BT.keyCompare(entry.key, key);
+			if (cmp > 0 || (cmp == 0 && !inclusive))
+				break;
+			rank++;
+		}
+		unpinPage(pageno);
+		return rank;
+	}
+
+	/*
+	 * the children of an index page in key order; the left-most child is the
+	 * prevPage link.
+	 */
+	PageId[] childIds(BTIndexPage indexPage) throws IOException, IteratorException {
+		PageId[] children = new PageId[indexPage.getSlotCnt() + 1];
+		RID rid = new RID();
+		KeyDataEntry entry;
+		int pos = 0;
+
+		children[pos++] = indexPage.getPrevPage();
+		for (entry = indexPage.getFirst(rid); entry != null; entry = indexPage.getNext(rid)) {
+			children[pos++] = ((IndexData) entry.data).getData();
+		}
+		return children;
+	}
+
+	private int childPosition(BTIndexPage indexPage, PageId child) throws IOException, IteratorException {
+		PageId[] children = childIds(indexPage);
+		for (int pos = 0; pos < children.length; pos++) {
+			if (children[pos].pid == child.pid)
+				return pos;
+		}
+		return -1;
+	}
+
+	/*
+	 * Subtree counts of a COUNTED tree live in a counts page next to each index
+	 * page, linked from the otherwise unused nextPage field of the index page. It
+	 * holds one int per child, in the order of childIds.
+	 */
+	private int[] getChildCounts(BTIndexPage indexPage) throws IOException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		int[] counts = new int[indexPage.getSlotCnt() + 1];
+		PageId countsId = indexPage.getNextPage();
+
+		if (isCounted() && countsId.pid != INVALID_PAGE) {
+			Page countsPage = pinPage(countsId);
+			for (int pos = 0; pos < counts.length; pos++) {
+				counts[pos] = Convert.getIntValue(pos * 4, countsPage.getpage());
+			}
+			unpinPage(countsId);
+		} else {
+			// no counts kept, count the subtrees
+			PageId[] children = childIds(indexPage);
+			for (int pos = 0; pos < counts.length; pos++) {
+				counts[pos] = subtreeCount(children[pos]);
+			}
+		}
+		return counts;
+	}
+
+	private void setChildCounts(BTIndexPage indexPage, int[] counts)
+			throws IOException, ConstructPageException, PinPageException, UnpinPageException {
+		PageId countsId = indexPage.getNextPage();
+		Page countsPage;
+
+		if (countsId.pid == INVALID_PAGE) {
+			countsPage = new Page();
+			try {
+				countsId = SystemDefs.JavabaseBM.newPage(countsPage, 1);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new ConstructPageException(e, "");
+			}
+			indexPage.setNextPage(countsId);
+		} else {
+			countsPage = pinPage(countsId);
+		}
+
+		for (int pos = 0; pos < counts.length; pos++) {
+			Convert.setIntValue(counts[pos], pos * 4, countsPage.getpage());
+		}
+		unpinPage(countsId, true /* = DIRTY */);
+	}
+
+	private int[] computeChildCounts(BTIndexPage indexPage)
+			throws IOException, IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		PageId[] children = childIds(indexPage);
+		int[] counts = new int[children.length];
+		for (int pos = 0; pos < children.length; pos++) {
+			counts[pos] = subtreeCount(children[pos]);
+		}
+		return counts;
+	}
+
+	/*
+	 * recomputes the counts of index page pageno after children were moved
+	 * between its subtrees. Does nothing if the tree is not counted.
+	 */
+	void recountChildren(PageId pageno)
+			throws IOException, IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		if (!isCounted())
+			return;
+		BTIndexPage indexPage = new BTIndexPage(pinPage(pageno), headerPage.get_keyType());
+		setChildCounts(indexPage, computeChildCounts(indexPage));
+		unpinPage(pageno, true /* = DIRTY */);
+	}
+
+	private int subtreeCount(PageId pageno)
+			throws IOException, IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		Page page = pinPage(pageno);
+		BTSortedPage sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		int count = 0;
+
+		if (sortPage.getType() == NodeType.INDEX) {
+			for (int childCount : getChildCounts(new BTIndexPage(page, headerPage.get_keyType()))) {
+				count += childCount;
+			}
+		} else {
+			count = openLeaf(page).getSlotCnt();
+		}
+		unpinPage(pageno);
+		return count;
+	}
+
+	private void addChildCount(PageId pageno, PageId child, int delta)
+			throws IOException, IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		BTIndexPage indexPage = new BTIndexPage(pinPage(pageno), headerPage.get_keyType());
+		int[] counts = getChildCounts(indexPage);
+		counts[childPosition(indexPage, child)] += delta;
+		setChildCounts(indexPage, counts);
+		unpinPage(pageno, true);
+	}
+
+	/*
+	 * keeps the counts right after a scan deleted `key' from leaf page leafId.
+	 */
+	void recordDeleted(KeyClass key, PageId leafId) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		pageChanged(leafId.pid);
+		if (isCounted())
+			adjustCounts(headerPage.get_rootId(), key, leafId, -1);
+	}
+
+	/*
+	 * adds delta to the counts on the path from pageno down to leaf page leafId,
+	 * which holds (or held) `key'. With duplicates the key can be spread over
+	 * several children, so all of them are searched.
+	 * 
+	 * @return true if leafId was found below pageno.
+	 */
+	private boolean adjustCounts(PageId pageno, KeyClass key, PageId leafId, int delta) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException, PinPageException, UnpinPageException {
+		if (pageno.pid == leafId.pid)
+			return true;
+
+		Page page = pinPage(pageno);
+		BTSortedPage sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		if (sortPage.getType() != NodeType.INDEX) {
+			unpinPage(pageno);
+			return false;
+		}
+
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		PageId[] children = childIds(indexPage);
+		int[] range = keyChildRange(indexPage, key);
+		unpinPage(pageno);
+
+		for (int pos = range[0]; pos <= range[1]; pos++) {
+			if (adjustCounts(children[pos], key, leafId, delta)) {
+				addChildCount(pageno, children[pos], delta);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * the positions (in childIds order) of the first and the last child that can
+	 * hold `key': the last child whose separator is < key, and the last child
+	 * whose separator is <= key. They differ only if duplicates of key were split
+	 * over several pages.
+	 */
+	private int[] keyChildRange(BTIndexPage indexPage, KeyClass key)
+			throws IOException, IteratorException, KeyNotMatchException {
+		RID rid = new RID();
+		KeyDataEntry entry;
+		int first = 0;
+		int last = 0;
+		int pos = 1;
+		for (entry = indexPage.getFirst(rid); entry != null; entry = indexPage.getNext(rid), pos++) {
+			int cmp = BT.keyCompare(entry.key, key);
+			if (cmp < 0)
+				first = pos;
+			if (cmp <= 0)
+				last = pos;
+		}
+		return new int[] { first, last };
+	}
+
+	/**
+	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null scan
+	 * the whole index (2) lo_key = null, hi_key!= null range scan from min to the
+	 * hi_key (3) lo_key!= null, hi_key = null range scan from the lo_key to max (4)
+	 * lo_key!= null, hi_key!= null, lo_key = hi_key exact match ( might not unique)
+	 * (5) lo_key!= null, hi_key!= null, lo_key < hi_key range scan from lo_key to
+	 * hi_key
+	 *
+	 * @param lo_key the key where we begin scanning. Input parameter.
+	 * @param hi_key the key where we stop scanning. Input parameter.
+	 * @exception IOException            error from the lower layer
+	 * @exception KeyNotMatchException   key is not integer key nor string key
+	 * @exception IteratorException      iterator error
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 * @exception InsertException        error when apply buffered messages
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException, UnpinPageException, InsertException
+
+	{
+		applyPending(lo_key, hi_key);
+		if (isPacked() || hasValues() || hasPostings()) {
+			// BTFileScan reads the slots of a leaf page as <key, rid> records
+			return new BTPackedFileScan(new_cursor(lo_key, hi_key));
+		}
+
+		BTFileScan scan = new BTFileScan();
+		if (headerPage.get_rootId().pid == INVALID_PAGE) {
+			scan.leafPage = null;
+			return scan;
 		}
 
 		scan.treeFilename = dbname;
@@ -876,6 +2930,241 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return scan;
 	}
 
+	/**
+	 * create a splittable scan with given keys. The key cases are the same as for
+	 * new_scan. The spliterator splits the range on separator keys of the index
+	 * pages, so each part positions itself with its own descent.
+	 *
+	 * @param lo_key the key where we begin scanning. Input parameter.
+	 * @param hi_key the key where we stop scanning. Input parameter.
+	 * @exception IOException      error from the lower layer
+	 * @exception InsertException error when apply buffered messages
+	 */
+	public BTScanSpliterator new_spliterator(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, InsertException {
+		applyPending(lo_key, hi_key);
+		return new BTScanSpliterator(this, lo_key, hi_key, true, Long.MAX_VALUE);
+	}
+
+	/**
+	 * create a parallel stream over the records with given keys. The key cases are
+	 * the same as for new_scan. The tree must not be changed while the stream is
+	 * consumed.
+	 *
+	 * @param lo_key the key where we begin scanning. Input parameter.
+	 * @param hi_key the key where we stop scanning. Input parameter.
+	 * @exception IOException      error from the lower layer
+	 * @exception InsertException error when apply buffered messages
+	 */
+	public Stream<KeyDataEntry> parallel_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, InsertException {
+		return StreamSupport.stream(new_spliterator(lo_key, hi_key), true);
+	}
+
+	/**
+	 * create a bidirectional scan with given keys. The cursor is placed in front
+	 * of the first record >= lo_key, so get_next() walks the range upwards; it can
+	 * turn around with get_prev() at any point. The key cases are the same as for
+	 * new_scan.
+	 *
+	 * @param lo_key the lower bound of the scan. Input parameter.
+	 * @param hi_key the upper bound of the scan. Input parameter.
+	 * @exception IOException            error from the lower layer
+	 * @exception KeyNotMatchException   key is not integer key nor string key
+	 * @exception IteratorException      iterator error
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 * @exception InsertException        error when apply buffered messages
+	 */
+	public BTCursor new_cursor(KeyClass lo_key, KeyClass hi_key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException, UnpinPageException, InsertException {
+		applyPending(lo_key, hi_key);
+		BTCursor cursor = init_cursor(lo_key, hi_key);
+		if (headerPage.get_rootId().pid == INVALID_PAGE)
+			return cursor;
+
+		// this sets up the cursor in front of the first record >= lo_key
+		cursor.leafPage = findRunStart(lo_key, cursor.curRid);
+		cursor.slot = cursor.curRid.slotNo;
+		return cursor;
+	}
+
+	/**
+	 * create a descending scan with given keys. The cursor is placed behind the
+	 * last record <= hi_key, so get_prev() returns the records from hi_key down to
+	 * lo_key; only the leaf pages holding those records are read. The key cases
+	 * are the same as for new_scan.
+	 *
+	 * @param lo_key the key where we stop scanning. Input parameter.
+	 * @param hi_key the key where we begin scanning. Input parameter.
+	 * @exception IOException            error from the lower layer
+	 * @exception KeyNotMatchException   key is not integer key nor string key
+	 * @exception IteratorException      iterator error
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 * @exception InsertException        error when apply buffered messages
+	 */
+	public BTCursor new_descending_scan(KeyClass lo_key, KeyClass hi_key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException, PinPageException, UnpinPageException,
+			InsertException {
+		applyPending(lo_key, hi_key);
+		BTCursor cursor = init_cursor(lo_key, hi_key);
+		if (headerPage.get_rootId().pid == INVALID_PAGE)
+			return cursor;
+
+		// this sets up the cursor behind the last record <= hi_key
+		cursor.leafPage = findRunEnd(hi_key, cursor.curRid);
+		cursor.slot = cursor.curRid.slotNo + 1;
+		return cursor;
+	}
+
+	/**
+	 * create a scan over several key ranges. Range i goes from lo_keys[i] to
+	 * hi_keys[i], with the key cases of new_scan for each; the ranges must be
+	 * sorted by their lower bound. The records are returned in key order, each
+	 * once. Ranges close to each other are read by walking the leaf chain, and
+	 * the tree is only descended again for a range that starts further away.
+	 *
+	 * @param lo_keys the lower bounds of the ranges. Input parameter.
+	 * @param hi_keys the upper bounds of the ranges. Input parameter.
+	 * @exception IOException            error from the lower layer
+	 * @exception KeyNotMatchException   key is not integer key nor string key
+	 * @exception IteratorException      the ranges are not sorted
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 * @exception InsertException        error when apply buffered messages
+	 */
+	public BTMultiRangeScan new_multi_scan(KeyClass[] lo_keys, KeyClass[] hi_keys) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException, PinPageException, UnpinPageException,
+			InsertException {
+		if (lo_keys.length != hi_keys.length)
+			throw new IteratorException(null, "lower and upper bounds do not match");
+		for (int i = 1; i < lo_keys.length; i++) {
+			if (lo_keys[i] == null || (lo_keys[i - 1] != null && BT.keyCompare(lo_keys[i - 1], lo_keys[i]) > 0))
+				throw new IteratorException(null, "ranges are not sorted");
+		}
+
+		BTMultiRangeScan scan = new BTMultiRangeScan();
+		scan.bfile = this;
+		scan.lokeys = lo_keys.clone();
+		scan.hikeys = hi_keys.clone();
+		scan.curRid = new RID();
+		scan.lastSlot = -1;
+		scan.path = new int[8];
+		scan.bounds = new KeyClass[8];
+		scan.maxKeysize = headerPage.get_maxKeySize();
+		if (lo_keys.length == 0)
+			return scan;
+
+		KeyClass hi_key = hi_keys[0];
+		for (KeyClass key : hi_keys) {
+			if (key == null) {
+				hi_key = null;
+				break;
+			}
+			if (BT.keyCompare(key, hi_key) > 0)
+				hi_key = key;
+		}
+		applyPending(lo_keys[0], hi_key);
+		if (headerPage.get_rootId().pid == INVALID_PAGE)
+			return scan;
+
+		scan.descend(lo_keys[0]);
+		return scan;
+	}
+
+	/**
+	 * create a scan over the records with one of the given keys, which must be
+	 * sorted; see new_multi_scan.
+	 *
+	 * @param keys the keys. Input parameter.
+	 * @exception IOException            error from the lower layer
+	 * @exception KeyNotMatchException   key is not integer key nor string key
+	 * @exception IteratorException      the keys are not sorted
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 * @exception InsertException        error when apply buffered messages
+	 */
+	public BTMultiRangeScan new_in_scan(KeyClass[] keys) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException, UnpinPageException, InsertException {
+		for (KeyClass key : keys) {
+			if (key == null)
+				throw new IteratorException(null, "null key in the list");
+		}
+		return new_multi_scan(keys, keys);
+	}
+
+	/**
+	 * create a batch scan with given keys, for a tree with integer keys. The
+	 * key cases are the same as for new_scan; the records are fetched with
+	 * BTBatchScan.next_batch.
+	 *
+	 * @param lo_key the key where we begin scanning. Input parameter.
+	 * @param hi_key the key where we stop scanning. Input parameter.
+	 * @exception IOException            error from the lower layer
+	 * @exception KeyNotMatchException   the tree has no integer keys
+	 * @exception IteratorException      iterator error
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 * @exception InsertException        error when apply buffered messages
+	 */
+	public BTBatchScan new_batch_scan(KeyClass lo_key, KeyClass hi_key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException, UnpinPageException, InsertException {
+		if (headerPage.get_keyType() != AttrType.attrInteger)
+			throw new KeyNotMatchException(null, "batch scans need integer keys");
+		applyPending(lo_key, hi_key);
+		BTBatchScan scan = new BTBatchScan();
+		scan.bfile = this;
+		scan.curRid = new RID();
+		scan.bounded = hi_key != null;
+		if (hi_key != null)
+			scan.hikey = ((IntegerKey) hi_key).getKey().intValue();
+		if (headerPage.get_rootId().pid == INVALID_PAGE)
+			return scan;
+
+		scan.leafPage = findRunStart(lo_key, scan.curRid);
+		scan.slot = scan.curRid.slotNo;
+		return scan;
+	}
+
+	/**
+	 * create a scan with given keys that holds no page between fetches, for
+	 * callers that keep many scans open. The key cases are the same as for
+	 * new_scan.
+	 *
+	 * @param lo_key the key where we begin scanning. Input parameter.
+	 * @param hi_key the key where we stop scanning. Input parameter.
+	 * @exception IOException error from the lower layer
+	 */
+	public BTResumableScan new_resumable_scan(KeyClass lo_key, KeyClass hi_key) throws IOException {
+		BTResumableScan scan = new BTResumableScan();
+		scan.bfile = this;
+		scan.lokey = lo_key;
+		scan.hikey = hi_key;
+		scan.curRid = new RID();
+		scan.maxKeysize = headerPage.get_maxKeySize();
+		return scan;
+	}
+
+	private BTCursor init_cursor(KeyClass lo_key, KeyClass hi_key) throws IOException {
+		BTCursor cursor = new BTCursor();
+		cursor.leafPage = null;
+		cursor.treeFilename = dbname;
+		cursor.lokey = lo_key;
+		cursor.hikey = hi_key;
+		cursor.curRid = new RID();
+		cursor.lastSlot = -1;
+		cursor.keyType = headerPage.get_keyType();
+		cursor.maxKeysize = headerPage.get_maxKeySize();
+		cursor.bfile = this;
+		return cursor;
+	}
+
 	void trace_children(PageId id)
 			throws IOException, IteratorException, ConstructPageException, PinPageException, UnpinPageException {
 
@@ -897,7 +3186,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 					trace.writeBytes("   " + ((IndexData) entry.data).getData());
 				}
 			} else if (sortedPage.getType() == NodeType.LEAF) {
-				BTLeafPage leafPage = new BTLeafPage(sortedPage, headerPage.get_keyType());
+				BTLeafPage leafPage = openLeaf(sortedPage);
 				trace.writeBytes("LEAF CHILDREN " + id + " nodes" + lineSep);
 				for (entry = leafPage.getFirst(metaRid); entry != null; entry = leafPage.getNext(metaRid)) {
 					trace.writeBytes("   " + entry.key + " " + entry.data);
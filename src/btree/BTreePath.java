@@ -0,0 +1,203 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTreePath is the path from the root of a B+ tree down to one page of a level
+ * of the tree, and walks the pages of that level from left to right. The
+ * background jobs use it to know the parents of the page they are at.
+ *
+ * Only the pages on the path are read: next() reads the index pages from the
+ * parent up to the first one that has a next child, and the left-most path
+ * below that child. The tree may change between the steps of a job, so
+ * refresh() reads the path again at the start of a step; if a page of the path
+ * was split, moved or freed meanwhile, the walk descends again to the first
+ * page that can hold the smallest key of the page it was at. A step so reads
+ * the pages of one path besides the ones it works on, however large the tree.
+ * The job tells the path about the pages it takes out or moves itself.
+ */
+class BTreePath implements GlobalConst {
+
+	private BTreeFile bfile;
+	private int above; // levels between the walked level and the leaves
+
+	private int level = -1; // of the walked pages, the root is on level 0; -1 before the walk
+	private PageId[] pages; // pages[0] is the root, pages[level] the current page
+	private int[] pos; // position of pages[d + 1] among the children of pages[d]
+	private KeyClass lowKey; // smallest key the current page can hold, null for none
+	private int advance; // the level next() goes on from, level - 1 but after cut()
+
+	/*
+	 * a walk over the pages `above' levels above the leaf pages; it starts at the
+	 * first call of refresh().
+	 */
+	BTreePath(BTreeFile bfile, int above) {
+		this.bfile = bfile;
+		this.above = above;
+	}
+
+	/*
+	 * reads the path again and places the walk on the page it was at, or on the
+	 * first page of the level at the start. Returns false if the tree has no
+	 * such level.
+	 */
+	boolean refresh()
+			throws IOException, IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		PageId rootId = bfile.getHeaderPage().get_rootId();
+		if (level < 0 || rootId.pid != pages[0].pid)
+			return relocate();
+
+		for (int d = 0; d < level; d++) {
+			KeyDataEntry[] entries = entries(pages[d]);
+			if (entries == null)
+				return relocate();
+			int p = pos[d] < entries.length && child(entries[pos[d]]).pid == pages[d + 1].pid ? pos[d] : -1;
+			for (int i = 0; i < entries.length && p < 0; i++) {
+				if (child(entries[i]).pid == pages[d + 1].pid)
+					p = i;
+			}
+			if (p < 0)
+				return relocate();
+			pos[d] = p;
+		}
+		advance = level - 1;
+		return true;
+	}
+
+	/*
+	 * moves the walk to the next page of the level. Returns false at the end.
+	 */
+	boolean next() throws IOException, IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		for (int d = advance; d >= 0; d--) {
+			KeyDataEntry[] entries = entries(pages[d]);
+			if (entries == null)
+				return relocate();
+			if (pos[d] + 1 < entries.length) {
+				pos[d]++;
+				pages[d + 1] = child(entries[pos[d]]);
+				if (entries[pos[d]].key != null)
+					lowKey = entries[pos[d]].key;
+				// down the left-most path to the level
+				for (d++; d < level; d++) {
+					entries = entries(pages[d]);
+					if (entries == null)
+						return relocate();
+					pos[d] = 0;
+					pages[d + 1] = child(entries[0]);
+				}
+				advance = level - 1;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * the current page, 0 levels up, or the page up levels above it on the path;
+	 * null above the root.
+	 */
+	PageId page(int up) {
+		return up <= level ? pages[level - up] : null;
+	}
+
+	/*
+	 * true if the current page is the left-most child of its parent, or the root.
+	 */
+	boolean leftMost() {
+		return level == 0 || pos[level - 1] == 0;
+	}
+
+	/*
+	 * the current page was moved to newId.
+	 */
+	void replaced(PageId newId) {
+		pages[level] = newId;
+	}
+
+	/*
+	 * the page up levels above the current one (0 for the current page) was taken
+	 * out of its parent, or the tree is gone if that was the root. next() goes on
+	 * with the page that followed it.
+	 */
+	void cut(int up) {
+		advance = level - up - 1;
+		if (advance >= 0)
+			pos[advance]--;
+	}
+
+	/*
+	 * descends from the root to the first page of the level that can hold
+	 * lowKey, or to the first page of the level if there is no lowKey yet.
+	 */
+	private boolean relocate()
+			throws IOException, IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		PageId rootId = bfile.getHeaderPage().get_rootId();
+		level = -1;
+		if (rootId.pid == INVALID_PAGE)
+			return false;
+
+		// down to the leaf page, then back up to the level
+		List<PageId> path = new ArrayList<PageId>();
+		List<Integer> positions = new ArrayList<Integer>();
+		path.add(rootId);
+		KeyDataEntry[] entries;
+		while ((entries = entries(path.get(path.size() - 1))) != null) {
+			int p = 0;
+			try {
+				for (int i = 1; lowKey != null && i < entries.length; i++) {
+					if (BT.keyCompare(entries[i].key, lowKey) < 0)
+						p = i;
+				}
+			} catch (KeyNotMatchException e) {
+				e.printStackTrace();
+				throw new IteratorException(e, "");
+			}
+			positions.add(p);
+			path.add(child(entries[p]));
+		}
+
+		level = path.size() - 1 - above;
+		if (level < 0)
+			return false;
+		pages = new PageId[level + 1];
+		pos = new int[level];
+		for (int d = 0; d <= level; d++) {
+			pages[d] = path.get(d);
+			if (d < level)
+				pos[d] = positions.get(d);
+		}
+		advance = level - 1;
+		return true;
+	}
+
+	/*
+	 * the entries of index page pageno in key order, the left-most child first
+	 * with a null key; null if pageno is no index page.
+	 */
+	private KeyDataEntry[] entries(PageId pageno)
+			throws IOException, IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		Page page = bfile.pinPage(pageno);
+		if (BTPageViews.type(page) != NodeType.INDEX) {
+			bfile.unpinPage(pageno);
+			return null;
+		}
+		BTIndexPage indexPage = new BTIndexPage(page, bfile.getHeaderPage().get_keyType());
+		KeyDataEntry[] entries = new KeyDataEntry[indexPage.getSlotCnt() + 1];
+		entries[0] = new KeyDataEntry((KeyClass) null, indexPage.getPrevPage());
+		RID rid = new RID();
+		int i = 1;
+		for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage.getNext(rid))
+			entries[i++] = entry;
+		bfile.unpinPage(pageno);
+		return entries;
+	}
+
+	private static PageId child(KeyDataEntry entry) {
+		return ((IndexData) entry.data).getData();
+	}
+}
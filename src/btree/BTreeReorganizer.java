@@ -0,0 +1,254 @@
+package btree;
+
+import java.io.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTreeReorganizer lays the pages of a B+ tree out in key order on disk, a few
+ * pages at a time, while the tree stays in use.
+ *
+ * A pass first walks the leaf chain from left to right. A leaf page is merged
+ * into its left neighbour if both hang below the same BTIndexPage and the
+ * records of both fit into the fill factor; otherwise it is moved to a fresh
+ * page right behind the previous leaf unless it is there already. The index
+ * pages are then moved the same way, in breadth-first order. Moved pages get
+ * their neighbour links and the IndexData pointer of their parent fixed, and the
+ * old page is freed.
+ *
+ * Every step() handles at most the given number of pages and reserves one run of
+ * contiguous pages for the moves it makes, so the leaf chain ends up in
+ * ascending runs of that length. The pass keeps its place in a BTreePath, so a
+ * step reads the index pages on the path to the pages it handles and not the
+ * whole index. No scan may be open on the tree during a step, and nothing is
+ * moved while snapshots of the tree are open.
+ */
+public class BTreeReorganizer implements GlobalConst {
+
+	private static final int LEAVES = 0;
+	private static final int INDEX = 1;
+	private static final int DONE = 2;
+
+	private BTreeFile bfile;
+	private double fillFactor;
+
+	private int phase = LEAVES;
+	private BTreePath path; // at the next page of the pass
+	private int indexLevel; // levels above the leaves of the index pages walked
+	private PageId lastIndex; // index page before the next one in breadth-first order
+
+	// the run of pages reserved by the current step
+	private int runNext;
+	private int runEnd;
+
+	private int movedPages;
+	private int mergedLeaves;
+
+	/**
+	 * create a reorganizer for a tree.
+	 *
+	 * @param bfile       the tree. Input parameter.
+	 * @param fill_factor how full a leaf page may get by merging, between 0 and 1.
+	 *                    Input parameter.
+	 */
+	public BTreeReorganizer(BTreeFile bfile, double fill_factor) {
+		this.bfile = bfile;
+		this.fillFactor = Math.min(Math.max(fill_factor, 0.0), 1.0);
+		restart();
+	}
+
+	/**
+	 * move or merge up to max_pages pages.
+	 *
+	 * @param max_pages the number of pages to look at. Input parameter.
+	 * @return true if the pass is not finished yet
+	 * @exception IOException            error from the lower layer
+	 * @exception IteratorException      iterator error
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 * @exception FreePageException      error when free a page
+	 * @exception DeleteRecException     error when delete an index entry
+	 * @exception LeafInsertRecException error when move a record
+	 */
+	public boolean step(int max_pages) throws IOException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException, DeleteRecException, LeafInsertRecException {
+		if (phase == DONE)
+			return false;
+		if (bfile.hasSnapshots()) {
+			// the old versions of the pages are still read
+			return true;
+		}
+
+		try {
+			if (!refresh())
+				return false;
+			for (int done = 0; done < max_pages && phase != DONE; done++) {
+				boolean more;
+				if (phase == LEAVES)
+					more = reorganizeLeaf(max_pages - done);
+				else
+					more = reorganizeIndex(max_pages - done);
+				if (!more) {
+					nextPhase();
+					refresh();
+				}
+			}
+		} finally {
+			// give back what this step did not use
+			while (runNext < runEnd)
+				bfile.freePage(new PageId(runNext++));
+		}
+		return phase != DONE;
+	}
+
+	/**
+	 * start a new pass with the next step.
+	 */
+	public void restart() {
+		phase = LEAVES;
+		path = new BTreePath(bfile, 0);
+	}
+
+	/**
+	 * @return the number of pages moved so far
+	 */
+	public int getMovedPages() {
+		return movedPages;
+	}
+
+	/**
+	 * @return the number of leaf pages merged into their left neighbour so far
+	 */
+	public int getMergedLeaves() {
+		return mergedLeaves;
+	}
+
+	/*
+	 * places the path of the phase on the page it was at; on the pages of the
+	 * next phase if the tree has no pages left for this one.
+	 */
+	private boolean refresh() throws IOException, IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		while (phase != DONE && !path.refresh())
+			nextPhase();
+		return phase != DONE;
+	}
+
+	/*
+	 * the index pages are walked one level after the other, from the level below
+	 * the root down to the parents of the leaf pages. The root stays where it is.
+	 */
+	private void nextPhase() throws IOException {
+		if (phase == LEAVES) {
+			phase = INDEX;
+			indexLevel = bfile.getHeaderPage().get_rootId().pid == INVALID_PAGE ? 0 : levels() - 1;
+			lastIndex = bfile.getHeaderPage().get_rootId();
+		} else {
+			indexLevel--;
+		}
+		if (indexLevel < 1)
+			phase = DONE;
+		else
+			path = new BTreePath(bfile, indexLevel);
+	}
+
+	/*
+	 * the levels of index pages above the leaf pages, as the leaf path found them.
+	 */
+	private int levels() {
+		int up = 0;
+		while (path.page(up + 1) != null)
+			up++;
+		return up;
+	}
+
+	/*
+	 * merges or moves the leaf page of the path. Returns false if it was the last
+	 * one.
+	 */
+	private boolean reorganizeLeaf(int budget) throws IOException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException, DeleteRecException, LeafInsertRecException {
+		PageId leafId = path.page(0);
+		PageId parent = path.page(1);
+		BTLeafPage leafPage = bfile.openLeaf(bfile.pinPage(leafId));
+		PageId prevId = leafPage.getPrevPage();
+
+		if (prevId.pid != INVALID_PAGE && !path.leftMost()) {
+			// the left neighbour hangs below the same index page
+			BTLeafPage prevPage = bfile.openLeaf(bfile.pinPage(prevId));
+			if (used(prevPage) + used(leafPage) <= fillFactor * (MAX_SPACE - HFPage.DPFIXED)) {
+				bfile.mergeLeaves(leafPage, prevPage, parent);
+				path.cut(0);
+				mergedLeaves++;
+				return path.next();
+			}
+			bfile.unpinPage(prevId);
+		}
+		bfile.unpinPage(leafId);
+
+		// the first leaf page stays where it is, the others follow it
+		if (prevId.pid == INVALID_PAGE || leafId.pid == prevId.pid + 1)
+			return path.next();
+
+		PageId target = takePage(budget);
+		bfile.copyPage(leafId, target);
+		if (parent == null)
+			bfile.updateHeader(target);
+		else
+			bfile.setChildId(parent, leafId, target);
+		bfile.freePage(leafId);
+		path.replaced(target);
+		movedPages++;
+		return path.next();
+	}
+
+	/*
+	 * moves the index page of the path behind the one before it in breadth-first
+	 * order. Returns false if it was the last one of its level.
+	 */
+	private boolean reorganizeIndex(int budget) throws IOException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException {
+		PageId pageno = path.page(0);
+		if (pageno.pid != lastIndex.pid + 1) {
+			PageId target = takePage(budget);
+			bfile.copyPage(pageno, target);
+			bfile.setChildId(path.page(1), pageno, target);
+			bfile.freePage(pageno);
+			path.replaced(target);
+			movedPages++;
+			pageno = target;
+		}
+		lastIndex = pageno;
+		return path.next();
+	}
+
+	/*
+	 * returns the next page of the run of this step. The run is reserved on the
+	 * first move, large enough for the rest of the step.
+	 */
+	private PageId takePage(int budget) throws ConstructPageException, UnpinPageException {
+		if (runNext == runEnd) {
+			PageId start;
+			try {
+				start = SystemDefs.JavabaseBM.newPage(new Page(), budget);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new ConstructPageException(e, "");
+			}
+			bfile.unpinPage(start);
+			runNext = start.pid;
+			runEnd = start.pid + budget;
+		}
+		return new PageId(runNext++);
+	}
+
+	/*
+	 * the bytes taken by the records of a page and their slots.
+	 */
+	private int used(HFPage page) throws IOException {
+		return MAX_SPACE - HFPage.DPFIXED - page.available_space();
+	}
+}
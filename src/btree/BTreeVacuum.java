@@ -0,0 +1,172 @@
+package btree;
+
+import java.io.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTreeVacuum gives back the leaf pages that NaiveDelete leaves behind, a few
+ * pages at a time, while the tree stays in use.
+ *
+ * NaiveDelete never merges pages, so after many deletes the leaf chain holds
+ * empty and nearly empty pages that every scan still has to walk. A pass walks
+ * the leaf chain from left to right. An empty leaf page is unlinked from the
+ * chain, its entry is taken out of its BTIndexPage and the page is freed; an
+ * index page that loses its last child is freed the same way, up to the root.
+ * A leaf page that is less than min_fill full is merged into its left
+ * neighbour if both hang below the same index page and the merged page still
+ * has min_fill of its space free, so that the next inserts do not split it
+ * again right away.
+ *
+ * The pass keeps its place in a BTreePath, so a step reads the index pages on
+ * the path to the leaf pages it looks at and not the whole index.
+ *
+ * The buffer manager is not thread safe, so step() is meant to be called by the
+ * thread that uses the tree, between its other operations. No scan may be open
+ * on the tree during a step, and nothing is freed while snapshots of the tree
+ * are open.
+ */
+public class BTreeVacuum implements GlobalConst {
+
+	private BTreeFile bfile;
+	private double minFill;
+
+	private BTreePath path; // at the next leaf page of the pass
+	private boolean finished;
+
+	private int freedPages;
+
+	/**
+	 * create a vacuum for a tree.
+	 *
+	 * @param bfile    the tree. Input parameter.
+	 * @param min_fill how full a leaf page must be to be left alone, between 0
+	 *                 and 1; 0 only frees empty pages. Input parameter.
+	 */
+	public BTreeVacuum(BTreeFile bfile, double min_fill) {
+		this.bfile = bfile;
+		this.minFill = Math.min(Math.max(min_fill, 0.0), 1.0);
+		restart();
+	}
+
+	/**
+	 * look at up to max_pages leaf pages.
+	 *
+	 * @param max_pages the number of leaf pages to look at. Input parameter.
+	 * @return true if the pass is not finished yet
+	 * @exception IOException            error from the lower layer
+	 * @exception IteratorException      iterator error
+	 * @exception ConstructPageException error in BT page constructor
+	 * @exception PinPageException       error when pin a page
+	 * @exception UnpinPageException     error when unpin a page
+	 * @exception FreePageException      error when free a page
+	 * @exception DeleteRecException     error when delete an index entry
+	 * @exception LeafInsertRecException error when move a record
+	 */
+	public boolean step(int max_pages) throws IOException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException, DeleteRecException, LeafInsertRecException {
+		if (finished)
+			return false;
+		if (bfile.hasSnapshots()) {
+			// the pages may still be read by a snapshot
+			return true;
+		}
+
+		if (!path.refresh()) {
+			finished = true;
+			return false;
+		}
+		for (int done = 0; done < max_pages; done++) {
+			vacuumLeaf();
+			if (!path.next()) {
+				finished = true;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * start a new pass with the next step.
+	 */
+	public void restart() {
+		finished = false;
+		path = new BTreePath(bfile, 0);
+	}
+
+	/**
+	 * @return the number of leaf and index pages freed so far
+	 */
+	public int getFreedPages() {
+		return freedPages;
+	}
+
+	/*
+	 * frees or merges the leaf page of the path if it is empty or underfull.
+	 */
+	private void vacuumLeaf() throws IOException, IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException, FreePageException, DeleteRecException, LeafInsertRecException {
+		PageId leafId = path.page(0);
+		PageId parentId = path.page(1);
+		BTLeafPage leafPage = bfile.openLeaf(bfile.pinPage(leafId));
+		PageId prevId = leafPage.getPrevPage();
+
+		if (parentId == null) {
+			// a leaf root stays, even when it is empty
+			bfile.unpinPage(leafId);
+			return;
+		}
+
+		if (leafPage.empty()) {
+			bfile.unpinPage(leafId);
+			bfile.unlinkLeaves(leafId, leafId);
+			removeChild(0);
+			bfile.freePage(leafId);
+			freedPages++;
+			return;
+		}
+
+		int space = MAX_SPACE - HFPage.DPFIXED;
+		if (used(leafPage) < minFill * space && prevId.pid != INVALID_PAGE && !path.leftMost()) {
+			// the left neighbour hangs below the same index page
+			BTLeafPage prevPage = bfile.openLeaf(bfile.pinPage(prevId));
+			if (used(prevPage) + used(leafPage) <= (1.0 - minFill) * space) {
+				bfile.mergeLeaves(leafPage, prevPage, parentId);
+				path.cut(0);
+				freedPages++;
+				return;
+			}
+			bfile.unpinPage(prevId);
+		}
+		bfile.unpinPage(leafId);
+	}
+
+	/*
+	 * takes the page up levels above the leaf page of the path out of its
+	 * parent. An index page that loses its last child is freed and taken out of
+	 * its own parent; if that is the root, the tree is empty.
+	 */
+	private void removeChild(int up) throws IOException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException, DeleteRecException {
+		PageId parentId = path.page(up + 1);
+		if (!bfile.removeChild(parentId, path.page(up))) {
+			path.cut(up);
+			return;
+		}
+
+		PageId grandId = path.page(up + 2);
+		bfile.freeIndexPage(parentId);
+		freedPages++;
+		if (grandId == null) {
+			bfile.updateHeader(new PageId(INVALID_PAGE));
+			path.cut(up + 1);
+		} else {
+			removeChild(up + 1);
+		}
+	}
+
+	private int used(HFPage page) throws IOException {
+		return MAX_SPACE - HFPage.DPFIXED - page.available_space();
+	}
+}
@@ -0,0 +1,282 @@
+package btree;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * CompositeKey builds the key of a multi-column index from int, long, double,
+ * string and byte[] parts, each in ascending or descending order. The parts
+ * are coded into a byte string that sorts like the parts, column by column:
+ *
+ * <pre>
+ * int, long   big endian, with the sign bit flipped
+ * double      the bits big endian, all flipped for a negative number and
+ *             only the sign bit for a positive one
+ * string      the UTF-8 bytes, byte[] the bytes; a 0 byte is written as
+ *             0 0xff and the part ends with 0 0
+ * descending  all bytes of the part flipped
+ * </pre>
+ *
+ * The tree stores and compares StringKeys only, so toKey() returns the byte
+ * string as a StringKey with one char per byte, the byte plus one. String
+ * compareTo on those chars is an unsigned compare of the bytes, and BTreeFile
+ * needs no change to use it. Strings sort in the order of their code points.
+ * The keys of a tree read back from its pages are plain StringKeys; new
+ * CompositeKey(key) reads their parts again, in the order they were added.
+ *
+ * A StringKey is stored in modified UTF-8 after a two byte length, where the
+ * chars of the bytes 0x7f and up take two bytes. Those are common: the high
+ * byte of a positive int, long or double, and most bytes of a descending part.
+ * A key can so take up to twice getBytes().length plus two bytes in a page;
+ * storedSize() gives the size to hold against the keysize of the tree.
+ */
+public class CompositeKey {
+
+	private ByteArrayOutputStream bytes;
+	private String chars; // of the key read
+	private int next; // char of the next part read
+
+	/**
+	 * create an empty key to add parts to.
+	 */
+	public CompositeKey() {
+		bytes = new ByteArrayOutputStream();
+	}
+
+	/**
+	 * read the parts of a key made by toKey().
+	 *
+	 * @param key the key. Input parameter.
+	 */
+	public CompositeKey(StringKey key) {
+		chars = key.getKey();
+	}
+
+	/**
+	 * @param value the value of the next part. Input parameter.
+	 * @return this key
+	 */
+	public CompositeKey add(int value) {
+		return add(value, false);
+	}
+
+	/**
+	 * @param value      the value of the next part. Input parameter.
+	 * @param descending sort the part from high to low. Input parameter.
+	 * @return this key
+	 */
+	public CompositeKey add(int value, boolean descending) {
+		return put(value ^ Integer.MIN_VALUE, 4, descending);
+	}
+
+	/**
+	 * @param value the value of the next part. Input parameter.
+	 * @return this key
+	 */
+	public CompositeKey add(long value) {
+		return add(value, false);
+	}
+
+	/**
+	 * @param value      the value of the next part. Input parameter.
+	 * @param descending sort the part from high to low. Input parameter.
+	 * @return this key
+	 */
+	public CompositeKey add(long value, boolean descending) {
+		return put(value ^ Long.MIN_VALUE, 8, descending);
+	}
+
+	/**
+	 * @param value the value of the next part. Input parameter.
+	 * @return this key
+	 */
+	public CompositeKey add(double value) {
+		return add(value, false);
+	}
+
+	/**
+	 * @param value      the value of the next part. Input parameter.
+	 * @param descending sort the part from high to low. Input parameter.
+	 * @return this key
+	 */
+	public CompositeKey add(double value, boolean descending) {
+		long bits = Double.doubleToLongBits(value);
+		return put(bits < 0 ? ~bits : bits ^ Long.MIN_VALUE, 8, descending);
+	}
+
+	/**
+	 * @param value the value of the next part. Input parameter.
+	 * @return this key
+	 */
+	public CompositeKey add(String value) {
+		return add(value, false);
+	}
+
+	/**
+	 * @param value      the value of the next part. Input parameter.
+	 * @param descending sort the part from high to low. Input parameter.
+	 * @return this key
+	 */
+	public CompositeKey add(String value, boolean descending) {
+		return add(value.getBytes(StandardCharsets.UTF_8), descending);
+	}
+
+	/**
+	 * @param value the value of the next part. Input parameter.
+	 * @return this key
+	 */
+	public CompositeKey add(byte[] value) {
+		return add(value, false);
+	}
+
+	/**
+	 * @param value      the value of the next part. Input parameter.
+	 * @param descending sort the part from high to low. Input parameter.
+	 * @return this key
+	 */
+	public CompositeKey add(byte[] value, boolean descending) {
+		int flip = descending ? 0xff : 0;
+		for (byte b : value) {
+			bytes.write(b ^ flip);
+			if (b == 0)
+				bytes.write(0xff ^ flip);
+		}
+		bytes.write(flip);
+		bytes.write(flip);
+		return this;
+	}
+
+	/**
+	 * @return the coded bytes of the parts added so far
+	 */
+	public byte[] getBytes() {
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return the bytes the key takes in a page of the tree: two for the
+	 *         length, one for each coded byte below 0x7f and two for the others
+	 */
+	public int storedSize() {
+		String key = chars != null ? chars : toKey().getKey();
+		int size = 2;
+		for (int i = 0; i < key.length(); i++)
+			size += key.charAt(i) < 0x80 ? 1 : 2;
+		return size;
+	}
+
+	/**
+	 * @return the key to insert into or search a tree with
+	 */
+	public StringKey toKey() {
+		byte[] coded = bytes.toByteArray();
+		char[] keyChars = new char[coded.length];
+		for (int i = 0; i < coded.length; i++)
+			keyChars[i] = (char) ((coded[i] & 0xff) + 1);
+		return new StringKey(new String(keyChars));
+	}
+
+	/**
+	 * @return the next part of the key read, an ascending int
+	 */
+	public int nextInt() {
+		return nextInt(false);
+	}
+
+	/**
+	 * @param descending the part was added descending. Input parameter.
+	 * @return the next part of the key read
+	 */
+	public int nextInt(boolean descending) {
+		return (int) take(4, descending) ^ Integer.MIN_VALUE;
+	}
+
+	/**
+	 * @return the next part of the key read, an ascending long
+	 */
+	public long nextLong() {
+		return nextLong(false);
+	}
+
+	/**
+	 * @param descending the part was added descending. Input parameter.
+	 * @return the next part of the key read
+	 */
+	public long nextLong(boolean descending) {
+		return take(8, descending) ^ Long.MIN_VALUE;
+	}
+
+	/**
+	 * @return the next part of the key read, an ascending double
+	 */
+	public double nextDouble() {
+		return nextDouble(false);
+	}
+
+	/**
+	 * @param descending the part was added descending. Input parameter.
+	 * @return the next part of the key read
+	 */
+	public double nextDouble(boolean descending) {
+		long bits = take(8, descending);
+		return Double.longBitsToDouble(bits < 0 ? bits ^ Long.MIN_VALUE : ~bits);
+	}
+
+	/**
+	 * @return the next part of the key read, an ascending string
+	 */
+	public String nextString() {
+		return nextString(false);
+	}
+
+	/**
+	 * @param descending the part was added descending. Input parameter.
+	 * @return the next part of the key read
+	 */
+	public String nextString(boolean descending) {
+		return new String(nextBytes(descending), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the next part of the key read, an ascending byte[]
+	 */
+	public byte[] nextBytes() {
+		return nextBytes(false);
+	}
+
+	/**
+	 * @param descending the part was added descending. Input parameter.
+	 * @return the next part of the key read
+	 */
+	public byte[] nextBytes(boolean descending) {
+		int flip = descending ? 0xff : 0;
+		ByteArrayOutputStream value = new ByteArrayOutputStream();
+		while (true) {
+			int b = byteAt(next++) ^ flip;
+			if (b == 0 && (byteAt(next++) ^ flip) == 0)
+				return value.toByteArray();
+			value.write(b);
+		}
+	}
+
+	private CompositeKey put(long value, int length, boolean descending) {
+		if (descending)
+			value = ~value;
+		for (int shift = 8 * (length - 1); shift >= 0; shift -= 8)
+			bytes.write((int) (value >>> shift) & 0xff);
+		return this;
+	}
+
+	private long take(int length, boolean descending) {
+		long value = 0;
+		for (int i = 0; i < length; i++)
+			value = (value << 8) | byteAt(next++);
+		return descending ? ~value : value;
+	}
+
+	private int byteAt(int i) {
+		if (chars == null || i >= chars.length())
+			throw new IllegalStateException("no more parts in the key");
+		return chars.charAt(i) - 1;
+	}
+}
@@ -0,0 +1,61 @@
+package btree;
+
+/**
+ * Options of a B+ tree file. They are chosen when the file is created, kept in
+ * its header page, and can be or-ed together.
+ */
+public class IndexOption {
+
+	/** plain B+ tree */
+	public static final int NONE = 0;
+
+	/**
+	 * every index page keeps the number of records below each of its children, so
+	 * count, rank and select run in one descent
+	 */
+	public static final int COUNTED = 1;
+
+	/**
+	 * a Bloom filter over all inserted keys lets lookup() answer most misses
+	 * without descending the tree
+	 */
+	public static final int BLOOM = 2;
+
+	/**
+	 * leaf pages store their records delta and varint coded (BTPackedLeafPage),
+	 * for integer keys only
+	 */
+	public static final int PACKED = 4;
+
+	/**
+	 * inserts and deletes are collected in a message buffer and reach the leaf
+	 * pages in key order, many at a time, when it is full
+	 */
+	public static final int BUFFERED = 8;
+
+	/**
+	 * inserts and deletes for leaf pages that are not in the buffer pool are kept
+	 * in a change buffer, and applied when the leaf page is read
+	 */
+	public static final int CHANGE_BUFFER = 16;
+
+	/**
+	 * lookup() keeps the leaf page and slot of hot keys in an in-memory hash
+	 * index (BTHashIndex) and goes straight to the leaf page for them
+	 */
+	public static final int ADAPTIVE_HASH = 32;
+
+	/**
+	 * leaf pages hold a value next to each key instead of a rid
+	 * (BTValueLeafPage), set with BTreeFile.put and read with BTreeFile.get;
+	 * not together with PACKED, BUFFERED or CHANGE_BUFFER
+	 */
+	public static final int VALUES = 64;
+
+	/**
+	 * leaf pages store each key once with the sorted list of its rids
+	 * (BTPostingLeafPage), for indexes with many duplicates; not together with
+	 * PACKED or VALUES
+	 */
+	public static final int POSTING = 128;
+}
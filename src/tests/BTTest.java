@@ -2,6 +2,8 @@ package tests;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
 import java.lang.*;
 
 import heap.*;
@@ -105,6 +107,34 @@ class BTDriver implements GlobalConst {
 		System.out.println("[4]   Delete a Record (Naive Delete)");
 		System.out.println("[5]   Delete some records (Naive Delete)");
 
+		System.out
+				.println("\n           ---Checks against a model (choices [7]-) ---");
+		System.out.println("\n[7]   Build a tree deeper than one index page");
+		System.out.println("[8]   Scan forward and backward with cursors");
+		System.out.println("[9]   Scan ranges in parallel");
+		System.out.println("[10]  Count, rank and select in a counted tree");
+		System.out.println("[11]  Look up keys through a Bloom filter");
+		System.out.println("[12]  Read snapshots while the tree changes");
+		System.out.println("[13]  Reorganize the leaf chain");
+		System.out.println("[14]  Allocate tree pages from extents");
+		System.out.println("[15]  Scan a tree with packed leaf pages");
+		System.out.println("[16]  Record the page size of a tree");
+		System.out.println("[17]  Use an integer and a string tree by turns");
+		System.out.println("[18]  Delete key ranges");
+		System.out.println("[19]  Vacuum empty leaf pages");
+		System.out.println("[20]  Insert from several threads through futures");
+		System.out.println("[21]  Insert from several threads through the latch-free front");
+		System.out.println("[22]  Insert through message buffers");
+		System.out.println("[23]  Insert through the change buffer");
+		System.out.println("[24]  Look up hot keys through the adaptive hash index");
+		System.out.println("[25]  Analyze the structure of a tree");
+		System.out.println("[26]  Put and get values in the leaf pages");
+		System.out.println("[27]  Keep duplicate keys in posting lists");
+		System.out.println("[28]  Sort composite keys");
+		System.out.println("[29]  Scan several key ranges at once");
+		System.out.println("[30]  Fetch records in batches");
+		System.out.println("[31]  Keep many scans open while the tree changes");
+
 		System.out.println("\n[6]  Quit!");
 		System.out.print("Hi, make your choice :");
 	}
@@ -239,6 +269,81 @@ class BTDriver implements GlobalConst {
 
 				case 6:
 					break;
+				case 7:
+					testDeepTree();
+					break;
+				case 8:
+					testCursors();
+					break;
+				case 9:
+					testParallelScan();
+					break;
+				case 10:
+					testCounted();
+					break;
+				case 11:
+					testBloom();
+					break;
+				case 12:
+					testSnapshots();
+					break;
+				case 13:
+					testReorganize();
+					break;
+				case 14:
+					testExtents();
+					break;
+				case 15:
+					testPacked();
+					break;
+				case 16:
+					testPageSize();
+					break;
+				case 17:
+					testPageViews();
+					break;
+				case 18:
+					testDeleteRange();
+					break;
+				case 19:
+					testVacuum();
+					break;
+				case 20:
+					testAsync();
+					break;
+				case 21:
+					testLatchFree();
+					break;
+				case 22:
+					testBuffered();
+					break;
+				case 23:
+					testChangeBuffer();
+					break;
+				case 24:
+					testAdaptiveHash();
+					break;
+				case 25:
+					testAnalyzer();
+					break;
+				case 26:
+					testValues();
+					break;
+				case 27:
+					testPostings();
+					break;
+				case 28:
+					testCompositeKeys();
+					break;
+				case 29:
+					testMultiRange();
+					break;
+				case 30:
+					testBatchScan();
+					break;
+				case 31:
+					testResumable();
+					break;
 				}
 
 			} catch (Exception e) {
@@ -522,6 +627,1839 @@ class BTDriver implements GlobalConst {
 		}
 	}
 
+	/*
+	 * inserts keys in random order until the index has more than two levels,
+	 * then checks a scan and NaiveDelete against a sorted model.
+	 */
+	void testDeepTree() throws Exception {
+		BTreeFile deep = newFile(AttrType.attrInteger, 4);
+		int pinned = pinned();
+
+		// at most 62 records fit a leaf page and 85 entries an index page
+		int n = 20000;
+		int[] k = shuffled(n);
+		TreeSet<Integer> model = new TreeSet<Integer>();
+		for (int i = 0; i < n; i++) {
+			deep.insert(new IntegerKey(k[i]), rid(k[i]));
+			model.add(k[i]);
+		}
+		check(scanKeys(deep.new_scan(null, null)).equals(new ArrayList<Integer>(model)), "scan after " + n
+				+ " inserts");
+
+		boolean deleted = true;
+		for (int i = 0; i < n; i += 3) {
+			deleted &= deep.Delete(new IntegerKey(k[i]), rid(k[i]));
+			model.remove(k[i]);
+		}
+		check(deleted, "every third key deleted");
+		check(!deep.Delete(new IntegerKey(n), rid(n)), "delete of a key behind the last one fails");
+		check(!deep.Delete(new IntegerKey(k[0]), rid(k[0])), "delete of a deleted key fails");
+		check(scanKeys(deep.new_scan(null, null)).equals(new ArrayList<Integer>(model)), "scan after deletes");
+		check(scanKeys(deep.new_scan(new IntegerKey(5000), new IntegerKey(5999))).equals(
+				new ArrayList<Integer>(model.subSet(5000, true, 5999, true))), "range scan after deletes");
+		check(pinned() == pinned, "no page pinned after the scans");
+
+		deep.destroyFile();
+	}
+
+	/*
+	 * walks BTCursors backward, forward and both ways over ranges of a tree with
+	 * duplicate keys and empty leaf pages, and deletes through a cursor.
+	 */
+	void testCursors() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		List<int[]> ents = new ArrayList<int[]>();
+		for (int i = 0; i < 6000; i++) {
+			int key = ran.nextInt(1500);
+			tree.insert(new IntegerKey(key), rid(key, i));
+			ents.add(new int[] { key, i });
+		}
+		// NaiveDelete leaves the leaf pages of [400, 600) empty
+		List<int[]> left = new ArrayList<int[]>();
+		for (int[] e : ents) {
+			if (e[0] >= 400 && e[0] < 600)
+				tree.Delete(new IntegerKey(e[0]), rid(e[0], e[1]));
+			else
+				left.add(e);
+		}
+		List<Integer> model = sortedKeys(left);
+
+		int[][] ranges = { { 0, 1499 }, { 100, 300 }, { 390, 610 }, { 450, 550 }, { 1499, 5000 }, { -5, 3 } };
+		boolean ok = true;
+		for (int[] range : ranges) {
+			List<Integer> expect = between(model, range[0], range[1]);
+			List<Integer> backward = new ArrayList<Integer>(expect);
+			Collections.reverse(backward);
+
+			BTCursor cursor = tree.new_descending_scan(new IntegerKey(range[0]), new IntegerKey(range[1]));
+			ok &= cursorKeys(cursor, false).equals(backward);
+			// turned around at the left end
+			ok &= cursorKeys(cursor, true).equals(expect);
+			cursor.DestroyBTreeFileScan();
+
+			cursor = tree.new_cursor(new IntegerKey(range[0]), new IntegerKey(range[1]));
+			ok &= cursorKeys(cursor, true).equals(expect);
+			ok &= cursorKeys(cursor, false).equals(backward);
+			cursor.DestroyBTreeFileScan();
+		}
+		check(ok, "cursors over " + ranges.length + " ranges, both ways");
+
+		BTCursor cursor = tree.new_descending_scan(null, null);
+		List<Integer> backward = cursorKeys(cursor, false);
+		cursor.DestroyBTreeFileScan();
+		Collections.reverse(backward);
+		check(backward.equals(model), "descending scan of the whole tree");
+
+		// delete the keys below 200 through a descending cursor
+		cursor = tree.new_descending_scan(null, new IntegerKey(199));
+		while (cursor.get_prev() != null) {
+			cursor.delete_current();
+		}
+		boolean refused = false;
+		try {
+			cursor.delete_current();
+		} catch (ScanDeleteException e) {
+			refused = true;
+		}
+		check(refused, "delete_current without a current record is refused");
+		cursor.DestroyBTreeFileScan();
+		model = between(model, 200, 1499);
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan after deletes through the cursor");
+		check(pinned() == pinned, "no page pinned after the cursors are destroyed");
+
+		tree.destroyFile();
+	}
+
+	/*
+	 * reads ranges through parallel_scan, and through the parts of a split
+	 * spliterator in their order, and compares them with the model.
+	 */
+	void testParallelScan() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		List<int[]> ents = new ArrayList<int[]>();
+		for (int i = 0; i < 20000; i++) {
+			int key = ran.nextInt(8000);
+			tree.insert(new IntegerKey(key), rid(key, i));
+			ents.add(new int[] { key, i });
+		}
+		List<Integer> model = sortedKeys(ents);
+
+		int[][] ranges = { { 0, 7999 }, { 100, 6000 }, { 5, 5 }, { 7990, 9000 }, { -10, -1 } };
+		boolean parallel = true;
+		boolean split = true;
+		for (int[] range : ranges) {
+			List<Integer> expect = between(model, range[0], range[1]);
+			KeyClass lo = new IntegerKey(range[0]);
+			KeyClass hi = new IntegerKey(range[1]);
+			List<Integer> keys = tree.parallel_scan(lo, hi).map(e -> ((IntegerKey) e.key).getKey())
+					.collect(Collectors.toList());
+			parallel &= keys.equals(expect);
+
+			keys = new ArrayList<Integer>();
+			splitKeys(tree.new_spliterator(lo, hi), 4, keys);
+			split &= keys.equals(expect);
+		}
+		check(parallel, "parallel_scan over " + ranges.length + " ranges");
+		check(split, "the parts of split spliterators in order");
+		check(tree.parallel_scan(null, null).count() == model.size(), "parallel_scan of the whole tree");
+		check(pinned() == pinned, "no page pinned after the streams are consumed");
+
+		tree.destroyFile();
+	}
+
+	/*
+	 * checks count, rank and select of a counted tree against the model after
+	 * deletes through Delete and through a cursor.
+	 */
+	void testCounted() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4, IndexOption.COUNTED);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		List<int[]> ents = new ArrayList<int[]>();
+		for (int i = 0; i < 12000; i++) {
+			int key = ran.nextInt(3000);
+			tree.insert(new IntegerKey(key), rid(key, i));
+			ents.add(new int[] { key, i });
+		}
+		check(tree.count(null, null) == ents.size(), "count after inserts");
+
+		Collections.shuffle(ents, ran);
+		boolean deleted = true;
+		for (int i = 0; i < 5000; i++) {
+			int[] e = ents.remove(ents.size() - 1);
+			deleted &= tree.Delete(new IntegerKey(e[0]), rid(e[0], e[1]));
+		}
+		check(deleted, "5000 records deleted");
+		BTCursor cursor = tree.new_cursor(new IntegerKey(1000), new IntegerKey(1100));
+		while (cursor.get_next() != null) {
+			cursor.delete_current();
+		}
+		cursor.DestroyBTreeFileScan();
+		List<Integer> model = sortedKeys(ents);
+		model.removeAll(between(model, 1000, 1100));
+
+		boolean counts = true;
+		boolean ranks = true;
+		boolean selects = true;
+		for (int t = 0; t < 200; t++) {
+			int lo = ran.nextInt(3200) - 100;
+			int hi = lo + ran.nextInt(800);
+			counts &= tree.count(new IntegerKey(lo), new IntegerKey(hi)) == between(model, lo, hi).size();
+			ranks &= tree.rank(new IntegerKey(lo)) == between(model, Integer.MIN_VALUE, lo - 1).size();
+			int i = ran.nextInt(model.size() + 5);
+			KeyDataEntry entry = tree.select(i);
+			selects &= i >= model.size() ? entry == null : ((IntegerKey) entry.key).getKey().equals(model.get(i));
+		}
+		check(tree.count(null, null) == model.size(), "count of the whole tree after deletes");
+		check(counts, "count of 200 ranges after deletes");
+		check(ranks, "rank of 200 keys after deletes");
+		check(selects, "select of 200 positions after deletes");
+		check(pinned() == pinned, "no page pinned after counting");
+
+		tree.destroyFile();
+	}
+
+	/*
+	 * checks lookups on a tree with a Bloom filter against the model, for keys
+	 * present, never inserted and deleted, before and after the filter is
+	 * rebuilt.
+	 */
+	void testBloom() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4, IndexOption.BLOOM);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+		for (int i = 0; i < 6000; i++) {
+			int key = ran.nextInt(1000000) * 2;
+			if (model.containsKey(key))
+				continue;
+			tree.insert(new IntegerKey(key), rid(key, i));
+			model.put(key, i);
+		}
+		List<Integer> deleted = new ArrayList<Integer>();
+		for (Iterator<Map.Entry<Integer, Integer>> it = model.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Integer, Integer> e = it.next();
+			if (ran.nextInt(3) == 0) {
+				tree.Delete(new IntegerKey(e.getKey()), rid(e.getKey(), e.getValue()));
+				deleted.add(e.getKey());
+				it.remove();
+			}
+		}
+
+		for (int pass = 0; pass < 2; pass++) {
+			String when = pass == 0 ? "" : " after rebuildBloomFilter";
+			boolean hits = true;
+			for (Map.Entry<Integer, Integer> e : model.entrySet()) {
+				KeyDataEntry entry = tree.lookup(new IntegerKey(e.getKey()));
+				hits &= entry != null && ((IntegerKey) entry.key).getKey().equals(e.getKey())
+						&& ((LeafData) entry.data).getData().slotNo == e.getValue();
+			}
+			check(hits, "lookup of " + model.size() + " keys present" + when);
+			boolean misses = true;
+			for (int i = 0; i < 5000; i++) {
+				misses &= tree.lookup(new IntegerKey(ran.nextInt(1000000) * 2 + 1)) == null;
+			}
+			for (int key : deleted) {
+				misses &= tree.lookup(new IntegerKey(key)) == null;
+			}
+			check(misses, "lookup of keys absent or deleted" + when);
+			tree.rebuildBloomFilter();
+		}
+		check(pinned() == pinned, "no page pinned after the lookups");
+		tree.destroyFile();
+
+		// the filter is sized for 6,553 keys at first and rebuilt larger as keys
+		// come, also while inserts wait in the message buffer
+		for (int options : new int[] { IndexOption.BLOOM, IndexOption.BLOOM | IndexOption.BUFFERED }) {
+			BTreeFile grown = newFile(AttrType.attrInteger, 4, options);
+			int[] keys = shuffled(60000);
+			for (int i = 0; i < keys.length; i++) {
+				grown.insert(new IntegerKey(keys[i] * 2), rid(keys[i] * 2, i));
+			}
+			boolean found = true;
+			for (int key : keys) {
+				found &= grown.lookup(new IntegerKey(key * 2)) != null;
+			}
+			boolean absent = true;
+			for (int i = 0; i < 5000; i++) {
+				absent &= grown.lookup(new IntegerKey(ran.nextInt(60000) * 2 + 1)) == null;
+			}
+			check(found && absent, "lookups in a tree of 60000 keys, options " + options);
+			check(pinned() == pinned, "no page pinned after the filter grew");
+			grown.destroyFile();
+		}
+
+		BTreeFile strings = newFile(AttrType.attrString, 20, IndexOption.BLOOM);
+		for (int i = 0; i < 500; i++) {
+			strings.insert(new StringKey("k" + i), rid(i, i));
+		}
+		check(strings.lookup(new StringKey("k77")) != null && strings.lookup(new StringKey("x77")) == null,
+				"lookup in a string tree");
+		strings.destroyFile();
+	}
+
+	/*
+	 * changes the tree while snapshots are open and checks that each snapshot
+	 * still sees the records of the time it was taken, also through a scan that
+	 * is read between the changes.
+	 */
+	void testSnapshots() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4, IndexOption.COUNTED);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		BTSnapshot empty = tree.snapshot();
+		List<int[]> ents = new ArrayList<int[]>();
+		for (int i = 0; i < 4000; i++) {
+			int key = ran.nextInt(2000);
+			tree.insert(new IntegerKey(key), rid(key, i));
+			ents.add(new int[] { key, i });
+		}
+		List<Integer> taken = sortedKeys(ents);
+		BTSnapshot snapshot = tree.snapshot();
+		BTSnapshotScan during = snapshot.new_scan(null, null);
+
+		List<Integer> read = new ArrayList<Integer>();
+		boolean deleted = true;
+		boolean unpinned = true;
+		Collections.shuffle(ents, ran);
+		for (int i = 0; i < 3000; i++) {
+			int[] e = ents.remove(0);
+			deleted &= tree.Delete(new IntegerKey(e[0]), rid(e[0], e[1]));
+			int key = ran.nextInt(2000);
+			tree.insert(new IntegerKey(key), rid(key, 10000 + i));
+			ents.add(new int[] { key, 10000 + i });
+
+			KeyDataEntry entry = during.get_next();
+			if (entry != null)
+				read.add(((IntegerKey) entry.key).getKey());
+			unpinned &= pinned() == pinned;
+		}
+		read.addAll(snapshotKeys(during));
+		check(deleted, "3000 records deleted while the snapshots are open");
+		check(unpinned, "the snapshot scan holds no page between calls");
+		check(read.equals(taken), "a snapshot scan read between changes sees the old records");
+		check(snapshotKeys(snapshot.new_scan(null, null)).equals(taken), "a new scan of the snapshot");
+		check(snapshotKeys(snapshot.new_scan(new IntegerKey(500), new IntegerKey(900))).equals(
+				between(taken, 500, 900)), "a range scan of the snapshot");
+		check(snapshotKeys(empty.new_scan(null, null)).isEmpty(), "the snapshot of the empty tree");
+
+		List<Integer> model = sortedKeys(ents);
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan of the tree itself");
+		check(tree.count(null, null) == model.size(), "count of the tree itself");
+
+		empty.close();
+		snapshot.close();
+		boolean refused = false;
+		try {
+			during.get_next();
+		} catch (ScanIteratorException e) {
+			refused = true;
+		}
+		check(refused, "a scan of a closed snapshot is refused");
+		for (int i = 0; i < 500; i++) {
+			int[] e = ents.remove(0);
+			deleted &= tree.Delete(new IntegerKey(e[0]), rid(e[0], e[1]));
+		}
+		check(deleted && scanKeys(tree.new_scan(null, null)).equals(sortedKeys(ents)),
+				"deletes after the snapshots are closed");
+		check(pinned() == pinned, "no page pinned after the snapshots are closed");
+
+		tree.destroyFile();
+	}
+
+	/*
+	 * reorganizes the leaf chain of a thinned out tree in steps, with inserts
+	 * between the steps, and checks scans, lookups and counts against the model.
+	 */
+	void testReorganize() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4, IndexOption.COUNTED);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		List<int[]> ents = new ArrayList<int[]>();
+		for (int i = 0; i < 12000; i++) {
+			int key = ran.nextInt(100000);
+			tree.insert(new IntegerKey(key), rid(key, i));
+			ents.add(new int[] { key, i });
+		}
+		Collections.shuffle(ents, ran);
+		for (int i = 0; i < 8000; i++) {
+			int[] e = ents.remove(ents.size() - 1);
+			tree.Delete(new IntegerKey(e[0]), rid(e[0], e[1]));
+		}
+
+		BTreeReorganizer reorganizer = new BTreeReorganizer(tree, 0.9);
+		boolean unpinned = true;
+		int steps = 0;
+		while (reorganizer.step(32)) {
+			unpinned &= pinned() == pinned;
+			int key = ran.nextInt(100000);
+			tree.insert(new IntegerKey(key), rid(key, 50000 + steps));
+			ents.add(new int[] { key, 50000 + steps });
+			steps++;
+		}
+		System.out.println("  " + steps + " steps, " + reorganizer.getMovedPages() + " pages moved, "
+				+ reorganizer.getMergedLeaves() + " leaves merged");
+		List<Integer> model = sortedKeys(ents);
+		check(unpinned, "no page pinned between the steps");
+		check(reorganizer.getMergedLeaves() > 0, "thinned out leaves merged");
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan after the reorganization");
+		boolean found = true;
+		for (int i = 0; i < 200; i++) {
+			int key = ents.get(ran.nextInt(ents.size()))[0];
+			found &= scanKeys(tree.new_scan(new IntegerKey(key), new IntegerKey(key))).equals(
+					between(model, key, key));
+		}
+		check(found, "200 keys found after the reorganization");
+		check(tree.count(null, null) == model.size(), "count after the reorganization");
+		BTreeAnalyzer analyzer = new BTreeAnalyzer(tree);
+		analyzer.run();
+		check(analyzer.getPhysicalOrder() > 0.9, "leaf chain in page order");
+
+		boolean deleted = true;
+		for (int i = 0; i < 2000; i++) {
+			int[] e = ents.remove(ents.size() - 1);
+			deleted &= tree.Delete(new IntegerKey(e[0]), rid(e[0], e[1]));
+		}
+		check(deleted && scanKeys(tree.new_scan(null, null)).equals(sortedKeys(ents)),
+				"deletes after the reorganization");
+		check(pinned() == pinned, "no page pinned at the end");
+		tree.destroyFile();
+
+		// long keys make a tree of three index levels, changed between the steps
+		BTreeFile deep = newFile(AttrType.attrString, 110);
+		TreeSet<String> keys = new TreeSet<String>();
+		for (int i = 0; i < 4000; i++) {
+			String key = longKey(ran.nextInt(1000000));
+			if (keys.add(key))
+				deep.insert(new StringKey(key), rid(i, i));
+		}
+		for (Iterator<String> it = keys.iterator(); it.hasNext();) {
+			String key = it.next();
+			if (ran.nextInt(4) > 0) {
+				deep.Delete(new StringKey(key), ridOf(deep, key));
+				it.remove();
+			}
+		}
+		reorganizer = new BTreeReorganizer(deep, 0.9);
+		unpinned = true;
+		steps = 0;
+		while (reorganizer.step(16)) {
+			unpinned &= pinned() == pinned;
+			String key = longKey(ran.nextInt(1000000));
+			if (keys.add(key))
+				deep.insert(new StringKey(key), rid(steps, steps));
+			key = keys.higher(longKey(ran.nextInt(1000000)));
+			if (key != null && deep.Delete(new StringKey(key), ridOf(deep, key)))
+				keys.remove(key);
+			steps++;
+		}
+		analyzer = new BTreeAnalyzer(deep);
+		analyzer.run();
+		System.out.println("  " + steps + " steps, " + reorganizer.getMovedPages() + " pages moved, "
+				+ reorganizer.getMergedLeaves() + " leaves merged, height " + analyzer.getHeight());
+		List<String> scanned = new ArrayList<String>();
+		BTFileScan scan = deep.new_scan(null, null);
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next()) {
+			scanned.add(((StringKey) entry.key).getKey());
+		}
+		scan.DestroyBTreeFileScan();
+		check(unpinned && pinned() == pinned, "no page pinned between the steps of a deep tree");
+		check(scanned.equals(new ArrayList<String>(keys)), "scan of a deep tree after the reorganization");
+		check(analyzer.getPhysicalOrder() > 0.9, "leaf chain of a deep tree in page order");
+		deep.destroyFile();
+	}
+
+	/*
+	 * fills a tree whose pages come from extents, closes and reopens it, opens
+	 * it again without closing it, and checks that destroyFile gives all pages
+	 * back, the unused ones of the extents included.
+	 */
+	void testExtents() throws Exception {
+		int free = freePages();
+		String name = "EXTENT" + postfix++;
+		System.out.println(" ***************** The file name is: " + name + "  **********");
+		BTreeFile tree = new BTreeFile(name, AttrType.attrInteger, 4, deleteFashion);
+		BTreeFile other = newFile(AttrType.attrInteger, 4);
+
+		List<Integer> model = new ArrayList<Integer>();
+		for (int i = 0; i < 8000; i++) {
+			// the other file grows at the same time
+			tree.insert(new IntegerKey(i), rid(i, i));
+			other.insert(new IntegerKey(i), rid(i, i));
+			model.add(i);
+		}
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan of a tree built from extents");
+		tree.close();
+		other.destroyFile();
+
+		tree = new BTreeFile(name);
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan after the tree is reopened");
+		for (int i = 0; i < 500; i++) {
+			tree.insert(new IntegerKey(i), rid(i, 10000 + i));
+			model.add(i);
+		}
+		Collections.sort(model);
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan after inserts into the reopened tree");
+
+		// a tree that is not closed: these inserts leave part of a leaf extent
+		// unused, and the header page is left as it is
+		for (int i = 8000; i < 8600; i++) {
+			tree.insert(new IntegerKey(i), rid(i, i));
+			model.add(i);
+		}
+		SystemDefs.JavabaseBM.unpinPage(SystemDefs.JavabaseDB.get_file_entry(name), true);
+		tree = new BTreeFile(name);
+		for (int i = 500; i < 600; i++) {
+			tree.insert(new IntegerKey(i), rid(i, 10000 + i));
+			model.add(i);
+		}
+		Collections.sort(model);
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan of a tree that was not closed");
+		tree.destroyFile();
+		check(freePages() == free, "all pages given back after destroyFile");
+	}
+
+	/*
+	 * checks scans of a tree with packed leaf pages against the model, and the
+	 * pinned frames after scans that end and scans that are stopped early.
+	 */
+	void testPacked() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4, IndexOption.PACKED);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		List<int[]> ents = new ArrayList<int[]>();
+		for (int i = 0; i < 15000; i++) {
+			int key = ran.nextInt(50000);
+			tree.insert(new IntegerKey(key), rid(key / 20, i % 40));
+			ents.add(new int[] { key, i });
+		}
+		Collections.shuffle(ents, ran);
+		boolean deleted = true;
+		for (int i = 0; i < 6000; i++) {
+			int[] e = ents.remove(ents.size() - 1);
+			deleted &= tree.Delete(new IntegerKey(e[0]), rid(e[0] / 20, e[1] % 40));
+		}
+		check(deleted, "6000 records deleted");
+		List<Integer> model = sortedKeys(ents);
+
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan of the packed tree");
+		check(scanKeys(tree.new_scan(new IntegerKey(1000), new IntegerKey(9000))).equals(
+				between(model, 1000, 9000)), "range scan of the packed tree");
+		// as with BTFileScan, the end of the range unpins the leaf page
+		BTFileScan scan = tree.new_scan(null, null);
+		while (scan.get_next() != null)
+			;
+		check(pinned() == pinned, "no page pinned after a scan read to its end");
+		scan.DestroyBTreeFileScan();
+		scan = tree.new_scan(null, null);
+		scan.get_next();
+		scan.DestroyBTreeFileScan();
+		check(pinned() == pinned, "no page pinned after a scan stopped early");
+
+		BTCursor cursor = tree.new_descending_scan(new IntegerKey(1000), new IntegerKey(9000));
+		List<Integer> backward = cursorKeys(cursor, false);
+		cursor.DestroyBTreeFileScan();
+		Collections.reverse(backward);
+		check(backward.equals(between(model, 1000, 9000)), "descending scan of the packed tree");
+
+		scan = tree.new_scan(new IntegerKey(2000), new IntegerKey(3000));
+		while (scan.get_next() != null) {
+			scan.delete_current();
+		}
+		scan.DestroyBTreeFileScan();
+		model.removeAll(between(model, 2000, 3000));
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan after deletes through a scan");
+		check(pinned() == pinned, "no page pinned at the end");
+
+		tree.destroyFile();
+	}
+
+	/*
+	 * checks that the page size is recorded in the header and read back, and
+	 * that a size the database does not use is refused.
+	 */
+	void testPageSize() throws Exception {
+		String name = "PAGESIZE" + postfix++;
+		System.out.println(" ***************** The file name is: " + name + "  **********");
+		BTreeFile tree = new BTreeFile(name, AttrType.attrInteger, 4, deleteFashion, IndexOption.NONE,
+				MINIBASE_PAGESIZE);
+		check(tree.getPageSize() == MINIBASE_PAGESIZE, "page size of a new tree");
+		tree.insert(new IntegerKey(1), rid(1, 1));
+		tree.close();
+		tree = new BTreeFile(name);
+		check(tree.getPageSize() == MINIBASE_PAGESIZE, "page size of the reopened tree");
+		check(scanKeys(tree.new_scan(null, null)).equals(Arrays.asList(1)), "scan of the reopened tree");
+		tree.destroyFile();
+
+		boolean refused = false;
+		try {
+			new BTreeFile("PAGESIZE" + postfix++, AttrType.attrInteger, 4, deleteFashion, IndexOption.NONE,
+					4 * MINIBASE_PAGESIZE);
+		} catch (ConstructPageException e) {
+			refused = true;
+		}
+		check(refused, "a page size the database does not use is refused");
+	}
+
+	/*
+	 * uses an integer tree and a string tree by turns, so that the reused page
+	 * views are pointed at the pages of both, and checks both against their
+	 * models.
+	 */
+	void testPageViews() throws Exception {
+		BTreeFile ints = newFile(AttrType.attrInteger, 4);
+		BTreeFile strings = newFile(AttrType.attrString, 20);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		List<int[]> ents = new ArrayList<int[]>();
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 6000; i++) {
+			int key = ran.nextInt(4000);
+			ints.insert(new IntegerKey(key), rid(key, i));
+			ents.add(new int[] { key, i });
+			String name = "k" + ran.nextInt(4000);
+			strings.insert(new StringKey(name), rid(1, i));
+			names.add(name);
+		}
+		boolean deleted = true;
+		for (int i = 0; i < 3000; i++) {
+			deleted &= ints.Delete(new IntegerKey(ents.get(i)[0]), rid(ents.get(i)[0], ents.get(i)[1]));
+			deleted &= strings.Delete(new StringKey(names.get(i)), rid(1, i));
+		}
+		check(deleted, "3000 records deleted from each tree");
+		ents = ents.subList(3000, 6000);
+		names = new ArrayList<String>(names.subList(3000, 6000));
+		Collections.sort(names);
+
+		check(scanKeys(ints.new_scan(null, null)).equals(sortedKeys(ents)), "scan of the integer tree");
+		String lo = names.get(100);
+		String hi = names.get(900);
+		List<String> expect = new ArrayList<String>();
+		for (String name : names) {
+			if (name.compareTo(lo) >= 0 && name.compareTo(hi) <= 0)
+				expect.add(name);
+		}
+		List<String> read = new ArrayList<String>();
+		BTFileScan scan = strings.new_scan(new StringKey(lo), new StringKey(hi));
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			read.add(((StringKey) entry.key).getKey());
+			// descend the integer tree between the records
+			ints.lookup(new IntegerKey(ran.nextInt(4000)));
+		}
+		scan.DestroyBTreeFileScan();
+		check(read.equals(expect), "range scan of the string tree between lookups in the other");
+		check(pinned() == pinned, "no page pinned at the end");
+
+		ints.destroyFile();
+		strings.destroyFile();
+	}
+
+	/*
+	 * deletes key ranges with deleteRange, one of them while a snapshot is open,
+	 * and checks the scans both ways and the counts against the model.
+	 */
+	void testDeleteRange() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4, IndexOption.COUNTED);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		List<Integer> model = new ArrayList<Integer>();
+		for (int i = 0; i < 15000; i++) {
+			int key = ran.nextInt(20000);
+			tree.insert(new IntegerKey(key), rid(key, i));
+			model.add(key);
+		}
+		Collections.sort(model);
+
+		int[][] ranges = { { -5, 3000 }, { 5000, 5000 }, { 7000, 12000 }, { 11000, 11500 }, { 15000, 100000 },
+				{ 100, 101 } };
+		boolean scans = true;
+		boolean counts = true;
+		for (int[] range : ranges) {
+			tree.deleteRange(new IntegerKey(range[0]), new IntegerKey(range[1]));
+			model.removeAll(between(model, range[0], range[1]));
+			scans &= scanKeys(tree.new_scan(null, null)).equals(model);
+			BTCursor cursor = tree.new_descending_scan(null, null);
+			List<Integer> backward = cursorKeys(cursor, false);
+			cursor.DestroyBTreeFileScan();
+			Collections.reverse(backward);
+			scans &= backward.equals(model);
+			counts &= tree.count(null, null) == model.size();
+		}
+		check(scans, "scans both ways after " + ranges.length + " range deletes");
+		check(counts, "counts after the range deletes");
+
+		BTSnapshot snapshot = tree.snapshot();
+		List<Integer> taken = new ArrayList<Integer>(model);
+		tree.deleteRange(new IntegerKey(3000), new IntegerKey(4000));
+		model.removeAll(between(model, 3000, 4000));
+		check(snapshotKeys(snapshot.new_scan(null, null)).equals(taken), "a snapshot keeps a deleted range");
+		snapshot.close();
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan after a range delete under a snapshot");
+
+		tree.deleteRange(null, null);
+		check(scanKeys(tree.new_scan(null, null)).isEmpty() && tree.count(null, null) == 0,
+				"the whole tree deleted");
+		tree.insert(new IntegerKey(1), rid(1, 1));
+		check(scanKeys(tree.new_scan(null, null)).equals(Arrays.asList(1)), "insert into the emptied tree");
+		check(pinned() == pinned, "no page pinned at the end");
+
+		tree.destroyFile();
+	}
+
+	/*
+	 * empties and thins out parts of a tree with NaiveDelete, vacuums it in steps
+	 * with inserts between them, and checks the scans both ways, lookups and
+	 * counts against the model.
+	 */
+	void testVacuum() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4, IndexOption.COUNTED);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		List<int[]> ents = new ArrayList<int[]>();
+		for (int i = 0; i < 15000; i++) {
+			int key = ran.nextInt(100000);
+			tree.insert(new IntegerKey(key), rid(key, i));
+			ents.add(new int[] { key, i });
+		}
+		// empty out [20000, 60000) and thin out the rest
+		List<int[]> left = new ArrayList<int[]>();
+		for (int[] e : ents) {
+			if ((e[0] >= 20000 && e[0] < 60000) || ran.nextInt(3) > 0)
+				tree.Delete(new IntegerKey(e[0]), rid(e[0], e[1]));
+			else
+				left.add(e);
+		}
+
+		BTreeVacuum vacuum = new BTreeVacuum(tree, 0.3);
+		boolean unpinned = true;
+		int steps = 0;
+		while (vacuum.step(16)) {
+			unpinned &= pinned() == pinned;
+			int key = ran.nextInt(100000);
+			tree.insert(new IntegerKey(key), rid(key, 90000 + steps));
+			left.add(new int[] { key, 90000 + steps });
+			steps++;
+		}
+		System.out.println("  " + steps + " steps, " + vacuum.getFreedPages() + " pages freed");
+		List<Integer> model = sortedKeys(left);
+		check(unpinned, "no page pinned between the steps");
+		check(vacuum.getFreedPages() > 0, "empty leaf pages freed");
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan after the vacuum");
+		BTCursor cursor = tree.new_descending_scan(null, null);
+		List<Integer> backward = cursorKeys(cursor, false);
+		cursor.DestroyBTreeFileScan();
+		Collections.reverse(backward);
+		check(backward.equals(model), "descending scan after the vacuum");
+		boolean found = true;
+		for (int i = 0; i < 200; i++) {
+			int key = left.get(ran.nextInt(left.size()))[0];
+			found &= scanKeys(tree.new_scan(new IntegerKey(key), new IntegerKey(key))).equals(
+					between(model, key, key));
+		}
+		check(found, "200 keys found after the vacuum");
+		check(tree.count(null, null) == model.size(), "count after the vacuum");
+
+		// delete everything, vacuum to an empty tree and insert again
+		for (int[] e : left) {
+			tree.Delete(new IntegerKey(e[0]), rid(e[0], e[1]));
+		}
+		vacuum.restart();
+		while (vacuum.step(50)) {
+		}
+		check(scanKeys(tree.new_scan(null, null)).isEmpty(), "scan of the tree vacuumed empty");
+		for (int i = 0; i < 3000; i++) {
+			tree.insert(new IntegerKey(i), rid(i, i));
+		}
+		check(scanKeys(tree.new_scan(null, null)).size() == 3000 && tree.count(null, null) == 3000,
+				"inserts into the tree vacuumed empty");
+		check(pinned() == pinned, "no page pinned at the end");
+		tree.destroyFile();
+
+		// long keys make a tree of three index levels; emptying a quarter of it
+		// frees whole index pages, and keys come in between the steps
+		BTreeFile deep = newFile(AttrType.attrString, 110);
+		TreeSet<String> keys = new TreeSet<String>();
+		for (int i = 0; i < 4000; i++) {
+			String key = longKey(ran.nextInt(1000000));
+			if (keys.add(key))
+				deep.insert(new StringKey(key), rid(i, i));
+		}
+		BTreeAnalyzer analyzer = new BTreeAnalyzer(deep);
+		analyzer.run();
+		int before = analyzer.getLeafPages();
+		for (Iterator<String> it = keys.iterator(); it.hasNext();) {
+			String key = it.next();
+			if (key.compareTo(longKey(500000)) >= 0 && key.compareTo(longKey(750000)) < 0 || ran.nextInt(3) > 0) {
+				deep.Delete(new StringKey(key), ridOf(deep, key));
+				it.remove();
+			}
+		}
+		vacuum = new BTreeVacuum(deep, 0.3);
+		unpinned = true;
+		steps = 0;
+		while (vacuum.step(16)) {
+			unpinned &= pinned() == pinned;
+			String key = longKey(ran.nextInt(1000000));
+			if (keys.add(key))
+				deep.insert(new StringKey(key), rid(steps, steps));
+			steps++;
+		}
+		analyzer.run();
+		System.out.println("  " + steps + " steps, " + vacuum.getFreedPages() + " pages freed, height "
+				+ analyzer.getHeight());
+		List<String> scanned = new ArrayList<String>();
+		BTFileScan scan = deep.new_scan(null, null);
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next()) {
+			scanned.add(((StringKey) entry.key).getKey());
+		}
+		scan.DestroyBTreeFileScan();
+		check(unpinned && pinned() == pinned, "no page pinned between the steps of a deep tree");
+		check(scanned.equals(new ArrayList<String>(keys)), "scan of a deep tree after the vacuum");
+		check(analyzer.getEmptyLeaves() == 0 && vacuum.getFreedPages() > before / 4,
+				"empty leaves and index pages of a deep tree freed");
+		deep.destroyFile();
+	}
+
+	/*
+	 * inserts from several threads through BTreeAsync and checks lookups,
+	 * deletes and scans of the futures against the model.
+	 */
+	void testAsync() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4);
+		int pinned = pinned();
+		BTreeAsync async = new BTreeAsync(tree);
+
+		List<CompletableFuture<Void>> inserts = Collections.synchronizedList(new ArrayList<CompletableFuture<Void>>());
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int first = t * 1000;
+			threads[t] = new Thread(() -> {
+				for (int key = first; key < first + 1000; key++) {
+					inserts.add(async.insertAsync(new IntegerKey(key), rid(key, key)));
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		CompletableFuture.allOf(inserts.toArray(new CompletableFuture<?>[0])).join();
+		List<Integer> model = new ArrayList<Integer>();
+		for (int key = 0; key < 8000; key++) {
+			model.add(key);
+		}
+
+		KeyDataEntry entry = async.lookupAsync(new IntegerKey(4321)).join();
+		check(entry != null && ((IntegerKey) entry.key).getKey() == 4321, "lookup of a key inserted");
+		check(async.lookupAsync(new IntegerKey(-5)).join() == null, "lookup of a key never inserted");
+		check(async.deleteAsync(new IntegerKey(10), rid(10, 10)).join(), "delete of a key inserted");
+		check(!async.deleteAsync(new IntegerKey(10), rid(10, 10)).join(), "delete of a key deleted");
+		model.remove(Integer.valueOf(10));
+
+		List<Integer> keys = new ArrayList<Integer>();
+		for (KeyDataEntry e : async.scanAsync(null, null).join()) {
+			keys.add(((IntegerKey) e.key).getKey());
+		}
+		check(keys.equals(model), "scan of the inserts from " + threads.length + " threads");
+		check(async.scanAsync(new IntegerKey(5), new IntegerKey(14)).join().size() == 9, "range scan");
+		async.close();
+
+		boolean refused = false;
+		try {
+			async.lookupAsync(new IntegerKey(1)).join();
+		} catch (CompletionException e) {
+			refused = true;
+		}
+		check(refused, "calls after close are refused");
+		check(pinned() == pinned, "no page pinned at the end");
+
+		tree.destroyFile();
+	}
+
+	/*
+	 * inserts and deletes from several threads through the latch-free front,
+	 * and checks its scans and lookups, and the file after flush, against the
+	 * model.
+	 */
+	void testLatchFree() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4);
+		int pinned = pinned();
+		List<Integer> model = Collections.synchronizedList(new ArrayList<Integer>());
+		for (int i = 0; i < 2000; i++) {
+			tree.insert(new IntegerKey(i * 10), rid(i, 0));
+			model.add(i * 10);
+		}
+		BTLatchFreeTree front = new BTLatchFreeTree(tree);
+		check(entryKeys(front.scan(null, null)).equals(model), "scan of the records loaded from the file");
+
+		final boolean[] ok = { true };
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread(() -> {
+				try {
+					Random ran = new Random();
+					List<Integer> mine = new ArrayList<Integer>();
+					for (int i = 0; i < 5000; i++) {
+						// ascending keys, all threads insert at the right end
+						int key = 20000 + i * threads.length + thread;
+						front.insert(new IntegerKey(key), rid(key, thread));
+						mine.add(key);
+						if (ran.nextInt(4) == 0) {
+							int gone = mine.remove(ran.nextInt(mine.size()));
+							boolean deleted = front.delete(new IntegerKey(gone), rid(gone, thread));
+							boolean again = front.delete(new IntegerKey(gone), rid(gone, thread));
+							if (!deleted || again)
+								ok[0] = false;
+						}
+					}
+					model.addAll(mine);
+				} catch (Exception e) {
+					e.printStackTrace();
+					ok[0] = false;
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Collections.sort(model);
+		check(ok[0], "inserts and deletes from " + threads.length + " threads");
+		check(entryKeys(front.scan(null, null)).equals(model), "scan after the threads are done");
+		check(entryKeys(front.scan(new IntegerKey(100), new IntegerKey(200))).size() == 11, "range scan");
+		boolean found = true;
+		for (int key : model) {
+			found &= front.lookup(new IntegerKey(key)) != null;
+		}
+		check(found && front.lookup(new IntegerKey(5)) == null, "lookups of all keys and of a missing one");
+
+		front.flush();
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan of the file after flush");
+		check(entryKeys(new BTLatchFreeTree(tree).scan(null, null)).equals(model), "a new front on the file");
+		check(pinned() == pinned, "no page pinned at the end");
+
+		tree.destroyFile();
+	}
+
+	void testBuffered() throws Exception {
+		testBuffered(IndexOption.BUFFERED | IndexOption.COUNTED, "buffered");
+	}
+
+	/*
+	 * mixes inserts, deletes and lookups on a tree with buffered writes and
+	 * checks lookups, scans and counts against the model, also after the file
+	 * is reopened.
+	 */
+	void testBuffered(int options, String what) throws Exception {
+		String name = "BUFFERED" + postfix++;
+		System.out.println(" ***************** The file name is: " + name + "  **********");
+		BTreeFile tree = new BTreeFile(name, AttrType.attrInteger, 4, deleteFashion, options);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		List<int[]> live = new ArrayList<int[]>();
+		boolean deleted = true;
+		boolean found = true;
+		for (int i = 0; i < 12000; i++) {
+			int key = ran.nextInt(50000);
+			tree.insert(new IntegerKey(key), rid(key, i));
+			live.add(new int[] { key, i });
+			if (i % 3 == 0) {
+				int[] e = live.remove(ran.nextInt(live.size()));
+				deleted &= tree.Delete(new IntegerKey(e[0]), rid(e[0], e[1]));
+			}
+			if (i % 500 == 5) {
+				int key2 = live.get(ran.nextInt(live.size()))[0];
+				KeyDataEntry entry = tree.lookup(new IntegerKey(key2));
+				found &= entry != null && ((IntegerKey) entry.key).getKey() == key2;
+			}
+		}
+		check(deleted, what + ": deletes of buffered and written records");
+		check(found, what + ": lookups between the inserts");
+
+		// an insert and its delete, both still buffered
+		tree.insert(new IntegerKey(-7), rid(1, 1));
+		found = tree.lookup(new IntegerKey(-7)) != null;
+		tree.Delete(new IntegerKey(-7), rid(1, 1));
+		check(found && tree.lookup(new IntegerKey(-7)) == null, what + ": an insert and its delete");
+
+		List<Integer> model = sortedKeys(live);
+		check(scanKeys(tree.new_scan(null, null)).equals(model), what + ": scan");
+		check(scanKeys(tree.new_scan(new IntegerKey(1000), new IntegerKey(3000))).equals(
+				between(model, 1000, 3000)), what + ": range scan");
+		check(tree.count(null, null) == model.size(), what + ": count");
+		check(pinned() == pinned, what + ": no page pinned after the scans");
+
+		tree.close();
+		tree = new BTreeFile(name);
+		tree.insert(new IntegerKey(-1), rid(0, 0));
+		model.add(0, -1);
+		check(scanKeys(tree.new_scan(null, null)).equals(model), what + ": scan after the tree is reopened");
+		tree.destroyFile();
+	}
+
+	/*
+	 * runs the buffered write checks on a tree with a change buffer, then
+	 * changes a reopened tree, whose leaf pages the new BTreeFile takes as not in
+	 * the buffer pool, and merges the buffered changes in steps.
+	 */
+	void testChangeBuffer() throws Exception {
+		testBuffered(IndexOption.CHANGE_BUFFER | IndexOption.COUNTED, "change buffered");
+
+		String name = "CHANGES" + postfix++;
+		System.out.println(" ***************** The file name is: " + name + "  **********");
+		BTreeFile tree = new BTreeFile(name, AttrType.attrInteger, 4, deleteFashion, IndexOption.CHANGE_BUFFER
+				| IndexOption.COUNTED);
+		Random ran = new Random(42);
+		List<int[]> live = new ArrayList<int[]>();
+		for (int i = 0; i < 20000; i++) {
+			int key = ran.nextInt(1 << 20);
+			tree.insert(new IntegerKey(key), rid(key, i));
+			live.add(new int[] { key, i });
+		}
+		tree.close();
+
+		// far fewer pages than the tree has are taken as in the buffer pool
+		tree = new BTreeFile(name);
+		tree.setResidentPages(32);
+		int pinned = pinned();
+		for (int i = 20000; i < 25000; i++) {
+			int key = ran.nextInt(1 << 20);
+			tree.insert(new IntegerKey(key), rid(key, i));
+			live.add(new int[] { key, i });
+			if (i % 4 == 0) {
+				int[] e = live.remove(ran.nextInt(live.size()));
+				tree.Delete(new IntegerKey(e[0]), rid(e[0], e[1]));
+			}
+		}
+		List<Integer> model = sortedKeys(live);
+		boolean found = true;
+		int steps = 0;
+		while (tree.mergeChanges(20)) {
+			int key = live.get(ran.nextInt(live.size()))[0];
+			found &= tree.lookup(new IntegerKey(key)) != null;
+			steps++;
+		}
+		System.out.println("  " + steps + " merge steps");
+		check(steps > 0, "changes of the reopened tree buffered");
+		check(found, "lookups between the merge steps");
+		check(tree.count(null, null) == model.size(), "count after the changes are merged");
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan after the changes are merged");
+		check(!tree.mergeChanges(20), "nothing left to merge");
+		check(pinned() == pinned, "no page pinned after the merge");
+		tree.destroyFile();
+	}
+
+	/*
+	 * looks up hot keys through the adaptive hash index while they are deleted
+	 * and inserted again, also through a cursor and a vacuum, and checks each
+	 * lookup against the model.
+	 */
+	void testAdaptiveHash() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4, IndexOption.ADAPTIVE_HASH);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+		List<Integer> hot = new ArrayList<Integer>();
+		boolean found = true;
+		for (int i = 0; i < 20000; i++) {
+			int key = ran.nextInt(1 << 22);
+			if (model.containsKey(key))
+				continue;
+			tree.insert(new IntegerKey(key), rid(key, i));
+			model.put(key, i);
+			if (hot.size() < 300 && ran.nextInt(50) == 0)
+				hot.add(key);
+			if (i % 3 == 0) {
+				found &= lookupMatches(tree, hot.isEmpty() ? key : hot.get(ran.nextInt(hot.size())), model);
+			}
+			if (i % 7 == 0 && !hot.isEmpty()) {
+				int h = hot.get(ran.nextInt(hot.size()));
+				Integer id = model.remove(h);
+				if (id != null) {
+					found &= tree.Delete(new IntegerKey(h), rid(h, id));
+				} else {
+					tree.insert(new IntegerKey(h), rid(h, i));
+					model.put(h, i);
+				}
+			}
+			if (i % 5000 == 4999) {
+				// delete around a hot key through a cursor, then vacuum
+				int h = hot.get(ran.nextInt(hot.size()));
+				BTCursor cursor = tree.new_cursor(new IntegerKey(h - 1000), new IntegerKey(h + 1000));
+				KeyDataEntry entry;
+				while ((entry = cursor.get_next()) != null) {
+					cursor.delete_current();
+					model.remove(((IntegerKey) entry.key).getKey());
+				}
+				cursor.DestroyBTreeFileScan();
+				BTreeVacuum vacuum = new BTreeVacuum(tree, 0.3);
+				while (vacuum.step(50)) {
+				}
+			}
+		}
+		check(found, "lookups and deletes of hot keys while the tree changes");
+		for (int h : hot) {
+			for (int j = 0; j < 3; j++) {
+				found &= lookupMatches(tree, h, model);
+			}
+		}
+		check(found, "lookups of " + hot.size() + " hot keys at the end");
+		check(scanKeys(tree.new_scan(null, null)).equals(new ArrayList<Integer>(model.keySet())), "scan at the end");
+		check(pinned() == pinned, "no page pinned at the end");
+
+		tree.destroyFile();
+	}
+
+	/*
+	 * checks the numbers of the structure analyzer against the model and against
+	 * each other, for an empty tree, a full one and one with empty leaf pages.
+	 */
+	void testAnalyzer() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4);
+		int pinned = pinned();
+		BTreeAnalyzer analyzer = new BTreeAnalyzer(tree);
+		analyzer.run();
+		check(analyzer.getHeight() == 0 && analyzer.getRecords() == 0, "analysis of an empty tree");
+
+		Random ran = new Random();
+		List<int[]> ents = new ArrayList<int[]>();
+		for (int i = 0; i < 20000; i++) {
+			int key = ran.nextInt(1 << 24);
+			tree.insert(new IntegerKey(key), rid(key, i));
+			ents.add(new int[] { key, i });
+		}
+		analyzer.run();
+		int[] levels = analyzer.getPagesPerLevel();
+		int leaves = 0;
+		for (int pages : analyzer.getLeafFillHistogram()) {
+			leaves += pages;
+		}
+		check(analyzer.getRecords() == ents.size(), "records counted");
+		check(analyzer.getHeight() >= 3 && levels[0] == 1 && levels.length == analyzer.getHeight(),
+				"levels of a tree of " + ents.size() + " records");
+		check(leaves == analyzer.getLeafPages() && levels[levels.length - 1] == leaves, "leaf pages counted");
+		check(analyzer.getAverageKeySize() == 4.0, "key size");
+
+		// NaiveDelete leaves the leaf pages of the lowest quarter of the keys empty
+		List<int[]> left = new ArrayList<int[]>();
+		for (int[] e : ents) {
+			if (e[0] < 1 << 22)
+				tree.Delete(new IntegerKey(e[0]), rid(e[0], e[1]));
+			else
+				left.add(e);
+		}
+		analyzer.run();
+		System.out.print(analyzer);
+		check(analyzer.getRecords() == left.size(), "records counted after deletes");
+		check(analyzer.getEmptyLeaves() > 0 && analyzer.getLeafPages() == leaves, "empty leaf pages counted");
+		double order = analyzer.getPhysicalOrder();
+
+		BTreeReorganizer reorganizer = new BTreeReorganizer(tree, 0.9);
+		while (reorganizer.step(100)) {
+		}
+		analyzer.run();
+		System.out.print(analyzer);
+		check(analyzer.getRecords() == left.size() && analyzer.getLeafPages() < leaves,
+				"records and leaf pages after a reorganization");
+		check(analyzer.getPhysicalOrder() > order, "physical order improved by a reorganization");
+		check(pinned() == pinned, "no page pinned after the analyses");
+
+		tree.destroyFile();
+	}
+
+	/*
+	 * mixes put, get and remove on trees with values in their leaf pages and
+	 * checks them, the values read by a cursor and deletes through it against a
+	 * map as the model.
+	 */
+	void testValues() throws Exception {
+		testValues(AttrType.attrInteger);
+		testValues(AttrType.attrString);
+	}
+
+	void testValues(int keytype) throws Exception {
+		String what = keytype == AttrType.attrInteger ? "integer keys" : "string keys";
+		BTreeFile tree = newFile(keytype, 24, IndexOption.VALUES | IndexOption.COUNTED);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		TreeMap<Integer, byte[]> model = new TreeMap<Integer, byte[]>();
+		boolean ok = true;
+		for (int i = 0; i < 6000; i++) {
+			int key = ran.nextInt(3000);
+			int op = ran.nextInt(10);
+			if (op < 6) {
+				// mostly short values, some longer than a page
+				byte[] value = new byte[ran.nextInt(10) == 0 ? ran.nextInt(3000) : ran.nextInt(60)];
+				ran.nextBytes(value);
+				tree.put(valueKey(keytype, key), value);
+				model.put(key, value);
+			} else if (op < 8) {
+				ok &= tree.remove(valueKey(keytype, key)) == (model.remove(key) != null);
+			} else {
+				byte[] value = model.get(key);
+				byte[] read = tree.get(valueKey(keytype, key));
+				ok &= value == null ? read == null : Arrays.equals(read, value);
+			}
+		}
+		check(ok, what + ": put, get and remove");
+		check(tree.count(null, null) == model.size(), what + ": count");
+
+		BTCursor cursor = tree.new_cursor(null, null);
+		Iterator<Map.Entry<Integer, byte[]>> it = model.entrySet().iterator();
+		KeyDataEntry entry;
+		while ((entry = cursor.get_next()) != null) {
+			Map.Entry<Integer, byte[]> e = it.next();
+			ok &= BT.keyCompare(entry.key, valueKey(keytype, e.getKey())) == 0
+					&& Arrays.equals(cursor.get_value(), e.getValue());
+		}
+		cursor.DestroyBTreeFileScan();
+		check(ok && !it.hasNext(), what + ": keys and values read by a cursor");
+		BTFileScan scan = tree.new_scan(null, null);
+		int records = 0;
+		while (scan.get_next() != null) {
+			records++;
+		}
+		check(records == model.size() && pinned() == pinned, what + ": a scan read to its end unpins its page");
+		scan.DestroyBTreeFileScan();
+
+		cursor = tree.new_cursor(null, null);
+		for (int i = 0; (entry = cursor.get_next()) != null; i++) {
+			if (i % 3 == 0) {
+				cursor.delete_current();
+				model.remove(keytype == AttrType.attrInteger ? ((IntegerKey) entry.key).getKey() : Integer
+						.parseInt(((StringKey) entry.key).getKey().substring(1)));
+			}
+		}
+		cursor.DestroyBTreeFileScan();
+		for (Map.Entry<Integer, byte[]> e : model.entrySet()) {
+			ok &= Arrays.equals(tree.get(valueKey(keytype, e.getKey())), e.getValue());
+		}
+		check(ok && tree.count(null, null) == model.size(), what + ": get after deletes through a cursor");
+
+		boolean refused = false;
+		try {
+			tree.insert(valueKey(keytype, 1), rid(1, 1));
+		} catch (InsertException e) {
+			refused = true;
+		}
+		check(refused, what + ": insert of a rid refused");
+		check(pinned() == pinned, what + ": no page pinned at the end");
+
+		tree.destroyFile();
+	}
+
+	/*
+	 * fills a tree with posting list leaf pages with few keys of many records
+	 * each, deletes single records, and checks scans, counts and a snapshot
+	 * against the model.
+	 */
+	void testPostings() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4, IndexOption.POSTING | IndexOption.COUNTED);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		List<int[]> ents = new ArrayList<int[]>();
+		for (int i = 0; i < 15000; i++) {
+			int key = ran.nextInt(50);
+			int page = ran.nextInt(5000);
+			tree.insert(new IntegerKey(key), rid(page, i));
+			ents.add(new int[] { key, i, page });
+		}
+		BTFileScan scan = tree.new_scan(null, null);
+		int records = 0;
+		while (scan.get_next() != null) {
+			records++;
+		}
+		check(records == ents.size() && pinned() == pinned, "scan of all records, read to its end");
+		scan.DestroyBTreeFileScan();
+
+		Collections.shuffle(ents, ran);
+		boolean deleted = true;
+		for (int i = 0; i < 6000; i++) {
+			int[] e = ents.remove(ents.size() - 1);
+			deleted &= tree.Delete(new IntegerKey(e[0]), rid(e[2], e[1]));
+		}
+		check(deleted, "6000 records deleted from the posting lists");
+		List<Integer> taken = sortedKeys(ents);
+		BTSnapshot snapshot = tree.snapshot();
+		for (int i = 0; i < 500; i++) {
+			int[] e = ents.remove(ents.size() - 1);
+			deleted &= tree.Delete(new IntegerKey(e[0]), rid(e[2], e[1]));
+		}
+		check(snapshotKeys(snapshot.new_scan(null, null)).equals(taken), "the snapshot before the last deletes");
+		snapshot.close();
+
+		List<Integer> model = sortedKeys(ents);
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan after the deletes");
+		check(scanKeys(tree.new_scan(new IntegerKey(10), new IntegerKey(40))).equals(between(model, 10, 40)),
+				"range scan after the deletes");
+		BTCursor cursor = tree.new_descending_scan(new IntegerKey(10), new IntegerKey(40));
+		List<Integer> backward = cursorKeys(cursor, false);
+		cursor.DestroyBTreeFileScan();
+		Collections.reverse(backward);
+		check(backward.equals(between(model, 10, 40)), "descending scan after the deletes");
+		check(tree.count(new IntegerKey(10), new IntegerKey(40)) == between(model, 10, 40).size(),
+				"count after the deletes");
+
+		scan = tree.new_scan(new IntegerKey(20), new IntegerKey(30));
+		while (scan.get_next() != null) {
+			scan.delete_current();
+		}
+		scan.DestroyBTreeFileScan();
+		model.removeAll(between(model, 20, 30));
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan after deletes through a scan");
+		check(pinned() == pinned, "no page pinned at the end");
+
+		tree.destroyFile();
+	}
+
+	/*
+	 * compares the order of composite keys with the order of their parts, reads
+	 * the parts back, and checks a scan of a tree of composite keys against the
+	 * sorted rows.
+	 */
+	void testCompositeKeys() throws Exception {
+		Random ran = new Random();
+		double[] special = { -1e300, -2.5, -0.0, 0.0, 1e-300, 3.25, Double.POSITIVE_INFINITY,
+				Double.NEGATIVE_INFINITY };
+		boolean longs = true;
+		boolean doubles = true;
+		boolean parts = true;
+		boolean sizes = true;
+		for (int i = 0; i < 5000; i++) {
+			long x = ran.nextLong() >> ran.nextInt(64);
+			long y = ran.nextLong() >> ran.nextInt(64);
+			double p = i < 64 ? special[i % 8] : ran.nextGaussian() * 1e6;
+			double q = i < 64 ? special[i / 8 % 8] : ran.nextGaussian() * 1e6;
+			int c = BT.keyCompare(new CompositeKey().add(x).toKey(), new CompositeKey().add(y).toKey());
+			longs &= Integer.signum(c) == Long.signum(Long.compare(x, y));
+			c = BT.keyCompare(new CompositeKey().add(p, true).toKey(), new CompositeKey().add(q, true).toKey());
+			doubles &= Integer.signum(c) == -Integer.signum(Double.compare(p, q));
+			CompositeKey key = new CompositeKey(new CompositeKey().add(p, true).add(x).add("a\0b").toKey());
+			parts &= key.nextDouble(true) == p && key.nextLong() == x && key.nextString().equals("a\0b");
+			// the size as BT writes a StringKey
+			CompositeKey built = new CompositeKey().add(x).add(p, true).add("\u00e9t\u00e9" + i);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new DataOutputStream(out).writeUTF(built.toKey().getKey());
+			sizes &= built.storedSize() == out.size()
+					&& new CompositeKey(built.toKey()).storedSize() == out.size();
+		}
+		check(longs, "order of long parts");
+		check(doubles, "order of descending double parts");
+		check(parts, "parts read back from the keys");
+		check(sizes, "stored sizes of the keys");
+		// 1 is coded as 80 00 00 01, "ab" descending as 9e 9d ff ff
+		check(new CompositeKey().add(1).storedSize() == 7
+				&& new CompositeKey().add("ab", true).storedSize() == 10, "bytes 0x7f and up stored in two bytes");
+
+		BTreeFile tree = newFile(AttrType.attrString, 40);
+		int pinned = pinned();
+		String[] names = { "", "a", "a\0", "ab", "b", "\u00e9t\u00e9", "z\0z" };
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (int i = 0; i < 3000; i++) {
+			int t = ran.nextInt(20) - 10;
+			String name = names[ran.nextInt(names.length)];
+			rows.add(new Object[] { t, name });
+			tree.insert(new CompositeKey().add(t).add(name, true).add(new byte[] { 0, (byte) i }).toKey(),
+					rid(i, 0));
+		}
+		// by the int ascending, then by the string descending
+		Collections.sort(rows, (a, b) -> {
+			int c = Integer.compare((Integer) a[0], (Integer) b[0]);
+			return c != 0 ? c : ((String) b[1]).compareTo((String) a[1]);
+		});
+		BTFileScan scan = tree.new_scan(new CompositeKey().add(-5).toKey(), new CompositeKey().add(5).toKey());
+		List<Object[]> expect = new ArrayList<Object[]>();
+		for (Object[] row : rows) {
+			if ((Integer) row[0] >= -5 && (Integer) row[0] < 5)
+				expect.add(row);
+		}
+		boolean ordered = true;
+		int n = 0;
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			CompositeKey key = new CompositeKey((StringKey) entry.key);
+			int t = key.nextInt();
+			String name = key.nextString(true);
+			ordered &= n < expect.size() && t == (Integer) expect.get(n)[0] && name.equals(expect.get(n)[1])
+					&& key.nextBytes().length == 2;
+			n++;
+		}
+		scan.DestroyBTreeFileScan();
+		check(ordered && n == expect.size(), "range scan of a tree of composite keys");
+		check(pinned() == pinned, "no page pinned at the end");
+
+		tree.destroyFile();
+	}
+
+	/*
+	 * checks IN-list scans and scans of overlapping ranges against the model,
+	 * and deletes through an IN-list scan.
+	 */
+	void testMultiRange() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4);
+		int pinned = pinned();
+
+		Random ran = new Random();
+		List<Integer> model = new ArrayList<Integer>();
+		for (int i = 0; i < 20000; i++) {
+			int key = ran.nextInt(100000);
+			tree.insert(new IntegerKey(key), rid(key, i));
+			model.add(key);
+		}
+		Collections.sort(model);
+
+		boolean lists = true;
+		boolean ranges = true;
+		for (int t = 0; t < 20; t++) {
+			TreeSet<Integer> in = new TreeSet<Integer>();
+			for (int i = 1 + ran.nextInt(400); i > 0; i--) {
+				in.add(ran.nextInt(100100) - 50);
+			}
+			List<Integer> expect = new ArrayList<Integer>();
+			for (int key : model) {
+				if (in.contains(key))
+					expect.add(key);
+			}
+			lists &= multiKeys(tree.new_in_scan(intKeys(in))).equals(expect);
+
+			// overlapping ranges, the first open below and the last above
+			int m = 1 + ran.nextInt(30);
+			int[] lo = new int[m];
+			for (int i = 0; i < m; i++) {
+				lo[i] = ran.nextInt(100000);
+			}
+			Arrays.sort(lo);
+			KeyClass[] lokeys = new KeyClass[m];
+			KeyClass[] hikeys = new KeyClass[m];
+			int[] hi = new int[m];
+			for (int i = 0; i < m; i++) {
+				hi[i] = lo[i] + ran.nextInt(3000) - 100;
+				lokeys[i] = i == 0 ? null : new IntegerKey(lo[i]);
+				hikeys[i] = i == m - 1 ? null : new IntegerKey(hi[i]);
+			}
+			expect.clear();
+			for (int key : model) {
+				boolean inside = false;
+				for (int i = 0; i < m; i++) {
+					inside |= (i == 0 || key >= lo[i]) && (i == m - 1 || key <= hi[i]);
+				}
+				if (inside)
+					expect.add(key);
+			}
+			ranges &= multiKeys(tree.new_multi_scan(lokeys, hikeys)).equals(expect);
+		}
+		check(lists, "20 IN-list scans");
+		check(ranges, "20 scans of overlapping ranges");
+
+		TreeSet<Integer> gone = new TreeSet<Integer>();
+		for (int i = 0; i < 200; i++) {
+			gone.add(model.get(i * 90));
+		}
+		BTMultiRangeScan scan = tree.new_in_scan(intKeys(gone));
+		while (scan.get_next() != null) {
+			scan.delete_current();
+		}
+		boolean refused = false;
+		try {
+			scan.delete_current();
+		} catch (ScanDeleteException e) {
+			refused = true;
+		}
+		scan.DestroyBTreeFileScan();
+		check(refused, "delete_current without a current record is refused");
+		model.removeAll(gone);
+		check(scanKeys(tree.new_scan(null, null)).equals(model), "scan after deletes through an IN-list scan");
+		check(pinned() == pinned, "no page pinned at the end");
+
+		tree.destroyFile();
+	}
+
+	/*
+	 * checks the keys and rids of batch scans against scans of the same ranges,
+	 * for plain, packed and posting list leaf pages.
+	 */
+	void testBatchScan() throws Exception {
+		check(BTBatchScan.pageNo(BTBatchScan.pack(-7, 65535)) == -7
+				&& BTBatchScan.slotNo(BTBatchScan.pack(-7, 65535)) == 65535
+				&& BTBatchScan.slotNo(BTBatchScan.pack(3, -1)) == -1, "rids packed and read back");
+
+		int[] options = { IndexOption.NONE, IndexOption.PACKED, IndexOption.POSTING };
+		Random ran = new Random();
+		for (int option : options) {
+			BTreeFile tree = newFile(AttrType.attrInteger, 4, option);
+			int pinned = pinned();
+			for (int i = 0; i < 20000; i++) {
+				int key = ran.nextInt(5000);
+				tree.insert(new IntegerKey(key), rid(key, i));
+			}
+
+			boolean same = true;
+			for (int t = 0; t < 20; t++) {
+				int lo = ran.nextInt(5200) - 100;
+				int hi = lo + ran.nextInt(2000);
+				KeyClass lokey = t % 5 == 0 ? null : new IntegerKey(lo);
+				KeyClass hikey = t % 7 == 0 ? null : new IntegerKey(hi);
+				same &= batchRecords(tree.new_batch_scan(lokey, hikey), 1 + ran.nextInt(300))
+						.equals(scanRecords(tree.new_scan(lokey, hikey)));
+			}
+			check(same, "20 batch scans against scans, options " + option);
+			check(pinned() == pinned, "no page pinned after the end of the batch scans");
+
+			BTBatchScan scan = tree.new_batch_scan(new IntegerKey(100), null);
+			scan.next_batch(new int[50], new long[50]);
+			scan.DestroyBTreeFileScan();
+			check(pinned() == pinned, "no page pinned after a batch scan ended early");
+
+			tree.destroyFile();
+		}
+	}
+
+	/*
+	 * keeps many resumable scans open while the tree is changed between their
+	 * fetches, and checks that each returns the records that stay in the tree
+	 * once, in key order, and that no page is pinned between fetches.
+	 */
+	void testResumable() throws Exception {
+		BTreeFile tree = newFile(AttrType.attrInteger, 4);
+		int pinned = pinned();
+
+		// even keys stay in the tree, odd keys come and go
+		Random ran = new Random();
+		TreeSet<Integer> odd = new TreeSet<Integer>();
+		for (int key = 0; key < 20000; key += 2) {
+			tree.insert(new IntegerKey(key), rid(key));
+		}
+
+		int n = 50;
+		BTResumableScan[] scans = new BTResumableScan[n];
+		int[] lo = new int[n];
+		int[] hi = new int[n];
+		List<List<Integer>> stable = new ArrayList<List<Integer>>();
+		for (int i = 0; i < n; i++) {
+			lo[i] = ran.nextInt(20000);
+			hi[i] = lo[i] + ran.nextInt(6000);
+			scans[i] = tree.new_resumable_scan(new IntegerKey(lo[i]), new IntegerKey(hi[i]));
+			stable.add(new ArrayList<Integer>());
+		}
+
+		boolean order = true;
+		boolean free = true;
+		boolean inRange = true;
+		boolean open = true;
+		int[] last = new int[n];
+		Arrays.fill(last, Integer.MIN_VALUE);
+		KeyDataEntry[] entries = new KeyDataEntry[20];
+		while (open) {
+			open = false;
+			for (int i = 0; i < n; i++) {
+				int got = scans[i].get_next(entries);
+				for (int j = 0; j < got; j++) {
+					int key = ((IntegerKey) entries[j].key).getKey();
+					order &= key > last[i];
+					inRange &= key >= lo[i] && key <= hi[i];
+					last[i] = key;
+					if (key % 2 == 0)
+						stable.get(i).add(key);
+				}
+				open |= got == entries.length;
+				free &= pinned() == pinned;
+
+				for (int c = 0; c < 10; c++) {
+					int key = 2 * ran.nextInt(10000) + 1;
+					if (odd.add(key)) {
+						tree.insert(new IntegerKey(key), rid(key));
+					} else {
+						tree.Delete(new IntegerKey(key), rid(key));
+						odd.remove(key);
+					}
+				}
+			}
+		}
+
+		boolean all = true;
+		for (int i = 0; i < n; i++) {
+			List<Integer> expect = new ArrayList<Integer>();
+			for (int key = lo[i] + lo[i] % 2; key <= hi[i] && key < 20000; key += 2) {
+				expect.add(key);
+			}
+			all &= stable.get(i).equals(expect);
+		}
+		check(order, "50 scans return their keys in order, each once");
+		check(inRange, "50 scans stay in their ranges");
+		check(all, "50 scans return every record that stayed in the tree");
+		check(free, "no page pinned between fetches");
+
+		tree.destroyFile();
+	}
+
+	/*
+	 * a new file for one of the checks against a model.
+	 */
+	BTreeFile newFile(int keytype, int keysize) throws Exception {
+		return newFile(keytype, keysize, IndexOption.NONE);
+	}
+
+	BTreeFile newFile(int keytype, int keysize, int options) throws Exception {
+		String name = "MODEL" + postfix++;
+		System.out.println(" ***************** The file name is: " + name + "  **********");
+		return new BTreeFile(name, keytype, keysize, deleteFashion, options);
+	}
+
+	/*
+	 * the keys 0 to n-1 in random order.
+	 */
+	int[] shuffled(int n) {
+		int[] k = new int[n];
+		for (int i = 0; i < n; i++) {
+			k[i] = i;
+		}
+		Random ran = new Random();
+		for (int i = n - 1; i > 0; i--) {
+			int random = ran.nextInt(i + 1);
+			int tmp = k[i];
+			k[i] = k[random];
+			k[random] = tmp;
+		}
+		return k;
+	}
+
+	RID rid(int key) {
+		return new RID(new PageId(key), key);
+	}
+
+	/*
+	 * reads a scan to its end and returns the integer keys in the order read.
+	 */
+	List<Integer> scanKeys(BTFileScan scan) throws Exception {
+		List<Integer> keys = new ArrayList<Integer>();
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			keys.add(((IntegerKey) entry.key).getKey());
+		}
+		scan.DestroyBTreeFileScan();
+		return keys;
+	}
+
+	RID rid(int key, int id) {
+		return new RID(new PageId(key), id);
+	}
+
+	/*
+	 * the keys of the records {key, id} in sorted order.
+	 */
+	List<Integer> sortedKeys(List<int[]> ents) {
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int[] e : ents) {
+			keys.add(e[0]);
+		}
+		Collections.sort(keys);
+		return keys;
+	}
+
+	/*
+	 * the keys of a sorted list from lo to hi.
+	 */
+	List<Integer> between(List<Integer> keys, int lo, int hi) {
+		List<Integer> range = new ArrayList<Integer>();
+		for (int key : keys) {
+			if (key >= lo && key <= hi)
+				range.add(key);
+		}
+		return range;
+	}
+
+	/*
+	 * moves a cursor to the end of its range, forward or backward, and returns
+	 * the integer keys in the order read.
+	 */
+	List<Integer> cursorKeys(BTCursor cursor, boolean forward) throws Exception {
+		List<Integer> keys = new ArrayList<Integer>();
+		KeyDataEntry entry;
+		while ((entry = forward ? cursor.get_next() : cursor.get_prev()) != null) {
+			keys.add(((IntegerKey) entry.key).getKey());
+		}
+		return keys;
+	}
+
+	/*
+	 * splits a spliterator depth times where it can and adds the integer keys of
+	 * the parts, the prefix first.
+	 */
+	void splitKeys(Spliterator<KeyDataEntry> part, int depth, List<Integer> keys) {
+		Spliterator<KeyDataEntry> prefix = depth > 0 ? part.trySplit() : null;
+		if (prefix != null) {
+			splitKeys(prefix, depth - 1, keys);
+			splitKeys(part, depth - 1, keys);
+		} else {
+			part.forEachRemaining(e -> keys.add(((IntegerKey) e.key).getKey()));
+		}
+	}
+
+	/*
+	 * reads a snapshot scan to its end and returns the integer keys in the order
+	 * read.
+	 */
+	List<Integer> snapshotKeys(BTSnapshotScan scan) throws Exception {
+		List<Integer> keys = new ArrayList<Integer>();
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			keys.add(((IntegerKey) entry.key).getKey());
+		}
+		return keys;
+	}
+
+	/*
+	 * the number of pages the database can still allocate.
+	 */
+	int freePages() throws Exception {
+		List<PageId> taken = new ArrayList<PageId>();
+		try {
+			while (true) {
+				PageId pageno = new PageId();
+				SystemDefs.JavabaseDB.allocate_page(pageno);
+				taken.add(pageno);
+			}
+		} catch (OutOfSpaceException e) {
+			// all taken
+		}
+		for (PageId pageno : taken)
+			SystemDefs.JavabaseDB.deallocate_page(pageno);
+		return taken.size();
+	}
+
+	List<Integer> entryKeys(List<KeyDataEntry> entries) {
+		List<Integer> keys = new ArrayList<Integer>();
+		for (KeyDataEntry entry : entries) {
+			keys.add(((IntegerKey) entry.key).getKey());
+		}
+		return keys;
+	}
+
+	/*
+	 * true if lookup finds the record of key in the model {key: id}, or nothing
+	 * if the key is not there.
+	 */
+	boolean lookupMatches(BTreeFile tree, int key, Map<Integer, Integer> model) throws Exception {
+		KeyDataEntry entry = tree.lookup(new IntegerKey(key));
+		Integer id = model.get(key);
+		if (id == null)
+			return entry == null;
+		return entry != null && ((IntegerKey) entry.key).getKey() == key
+				&& ((LeafData) entry.data).getData().slotNo == id;
+	}
+
+	KeyClass valueKey(int keytype, int key) {
+		if (keytype == AttrType.attrInteger)
+			return new IntegerKey(key);
+		return new StringKey(String.format("k%06d", key));
+	}
+
+	KeyClass[] intKeys(Collection<Integer> keys) {
+		KeyClass[] intKeys = new KeyClass[keys.size()];
+		int i = 0;
+		for (int key : keys) {
+			intKeys[i++] = new IntegerKey(key);
+		}
+		return intKeys;
+	}
+
+	/*
+	 * reads a multi-range scan to its end and returns the integer keys in the
+	 * order read.
+	 */
+	List<Integer> multiKeys(BTMultiRangeScan scan) throws Exception {
+		List<Integer> keys = new ArrayList<Integer>();
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			keys.add(((IntegerKey) entry.key).getKey());
+		}
+		scan.DestroyBTreeFileScan();
+		return keys;
+	}
+
+	/*
+	 * reads a batch scan to its end, n records at a time, and returns its
+	 * records as "key page slot".
+	 */
+	List<String> batchRecords(BTBatchScan scan, int n) throws Exception {
+		List<String> records = new ArrayList<String>();
+		int[] keys = new int[n];
+		long[] rids = new long[n];
+		int got;
+		while ((got = scan.next_batch(keys, rids)) > 0) {
+			for (int i = 0; i < got; i++) {
+				records.add(keys[i] + " " + BTBatchScan.pageNo(rids[i]) + " " + BTBatchScan.slotNo(rids[i]));
+			}
+		}
+		return records;
+	}
+
+	/*
+	 * reads a scan to its end and returns its records as "key page slot".
+	 */
+	List<String> scanRecords(BTFileScan scan) throws Exception {
+		List<String> records = new ArrayList<String>();
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			RID rid = ((LeafData) entry.data).getData();
+			records.add(((IntegerKey) entry.key).getKey() + " " + rid.pageNo.pid + " " + rid.slotNo);
+		}
+		scan.DestroyBTreeFileScan();
+		return records;
+	}
+
+	String longKey(int i) {
+		return String.format("%0100d", i);
+	}
+
+	/*
+	 * the rid of the first record with key in a tree of string keys.
+	 */
+	RID ridOf(BTreeFile tree, String key) throws Exception {
+		return ((LeafData) tree.lookup(new StringKey(key)).data).getData();
+	}
+
+	/*
+	 * the number of buffer frames pinned.
+	 */
+	int pinned() {
+		return SystemDefs.JavabaseBM.getNumBuffers() - SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+	}
+
+	boolean check(boolean ok, String what) {
+		if (ok) {
+			System.out.println("  passed: " + what);
+		} else {
+			System.out
+					.println("*********************************************************");
+			System.out.println("*     FAILED: " + what);
+			System.out
+					.println("*********************************************************");
+		}
+		return ok;
+	}
+
+
 }
 
 /**